@@ -0,0 +1,158 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.ohd.pophealth.api;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the evaluations of a batch of CCRs on a worker pool and hands back the
+ * results as they are asked for.  Only a limited number of CCRs are in flight
+ * at once so a large batch does not have to be held in memory.  CCRs that can
+ * only be read once (such as those from a <code>CCRBundleReader</code>) are
+ * read into memory by the calling thread, in order, before they are handed to
+ * a worker.
+ *
+ * @author ohdohd
+ */
+class BatchEvaluation implements Iterator<EvaluationResult> {
+
+    private final static Logger LOG = Logger.getLogger(BatchEvaluation.class.getName());
+    private final Evaluator evaluator;
+    private final Iterator<CCRSource> sources;
+    private final int maxInFlight;
+    private final CompletionService<EvaluationResult> completion;
+    private final ExecutorService executor;
+    // Futures in input order, used for INPUT order
+    private final LinkedList<Future<EvaluationResult>> pending = new LinkedList<Future<EvaluationResult>>();
+    private int inFlight = 0;
+    private int submitted = 0;
+
+    BatchEvaluation(Evaluator evaluator, Iterable<CCRSource> sources, Evaluator.ResultOrder order,
+            ExecutorService executor, int maxInFlight) {
+        this.evaluator = evaluator;
+        this.sources = sources.iterator();
+        this.executor = executor;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.completion = order == Evaluator.ResultOrder.COMPLETION ? new ExecutorCompletionService<EvaluationResult>(executor) : null;
+    }
+
+    public synchronized boolean hasNext() {
+        fill();
+        return inFlight > 0;
+    }
+
+    public synchronized EvaluationResult next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Future<EvaluationResult> f;
+        try {
+            if (completion != null) {
+                f = completion.take();
+            } else {
+                f = pending.removeFirst();
+            }
+            inFlight--;
+            return f.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for CCR evaluation", ex);
+        } catch (ExecutionException ex) {
+            // The task catches its own exceptions so this should not happen
+            throw new IllegalStateException("CCR evaluation failed", ex.getCause());
+        } finally {
+            fill();
+        }
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /*
+     * Hands CCRs to the workers until the in flight limit is reached
+     */
+    private void fill() {
+        while (inFlight < maxInFlight && sources.hasNext()) {
+            CCRSource source = sources.next();
+            Task t = new Task(evaluator, submitted++, source, true, null);
+            if (completion != null) {
+                completion.submit(t);
+            } else {
+                pending.addLast(executor.submit(t));
+            }
+            inFlight++;
+        }
+    }
+
+    /*
+     * Evaluates one CCR, turning any exception into a failed result
+     */
+    static class Task implements Callable<EvaluationResult> {
+
+        private final Evaluator evaluator;
+        private final int index;
+        private final String name;
+        private final EvaluationListener listener;
+        private CCRSource source;
+        private IOException readFailure;
+
+        /*
+         * When detach is set a CCR that can only be read once is read into
+         * memory by the calling thread
+         */
+        Task(Evaluator evaluator, int index, CCRSource source, boolean detach, EvaluationListener listener) {
+            this.evaluator = evaluator;
+            this.index = index;
+            this.name = source == null ? null : source.getName();
+            this.listener = listener;
+            try {
+                this.source = source == null || !detach ? source : CCRSource.repeatable(source);
+            } catch (IOException ex) {
+                readFailure = ex;
+            }
+        }
+
+        public EvaluationResult call() {
+            EvaluationResult r = evaluate();
+            if (listener != null) {
+                try {
+                    listener.evaluated(r);
+                } catch (RuntimeException ex) {
+                    LOG.log(Level.WARNING, "Evaluation listener failed for CCR [" + name + "]", ex);
+                }
+            }
+            return r;
+        }
+
+        private EvaluationResult evaluate() {
+            if (readFailure != null) {
+                LOG.log(Level.WARNING, "Could not read CCR [" + name + "]", readFailure);
+                return new EvaluationResult(index, name, readFailure, 0);
+            }
+            // evaluateResult catches runtime exceptions, but not errors
+            try {
+                EvaluationResult r = evaluator.evaluateResult(source);
+                r.setIndex(index);
+                return r;
+            } catch (StackOverflowError ex) {
+                LOG.log(Level.WARNING, "Could not evaluate CCR [" + name + "]", ex);
+                return new EvaluationResult(index, name, ex, 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,633 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.ohd.pophealth.api;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads the CCRs in a bundle one at a time without extracting the bundle to
+ * disk.  A bundle can be a zip file, a tar file (optionally gzipped) or a
+ * single file holding many concatenated <code>ContinuityOfCareRecord</code>
+ * documents.  Only the current CCR is read from the bundle at any time so
+ * memory use does not depend on the size of the bundle.
+ * <p>
+ * Each CCR is returned as a <code>CCRSource</code> that can be read once, and
+ * must be read (or skipped) before moving to the next one:
+ * <pre>
+ *   CCRBundleReader bundle = CCRBundleReader.open(new File("export.zip"));
+ *   try {
+ *       for (CCRSource ccr : bundle) {
+ *           String result = evaluator.evaluate(ccr);
+ *       }
+ *   } finally {
+ *       bundle.close();
+ *   }
+ * </pre>
+ * Only zip and tar entries ending in <code>.xml</code> are read.  Concatenated
+ * documents are split on the <code>ContinuityOfCareRecord</code> end tag so they
+ * must use an ASCII compatible encoding such as UTF-8.
+ *
+ * @author ohdohd
+ */
+public class CCRBundleReader implements Iterable<CCRSource>, Closeable {
+
+    private final static Logger LOG = Logger.getLogger(CCRBundleReader.class.getName());
+
+    public static enum Format {
+
+        ZIP, TAR, CONCATENATED
+    };
+    private static final String ROOT = "ContinuityOfCareRecord";
+    private static final int TAR_BLOCK = 512;
+    private final InputStream in;
+    private final Format format;
+    private final String name;
+    private ZipInputStream zip;
+    private EntryStream current;
+    private boolean iterated = false;
+    private boolean finished = false;
+    private int count = 0;
+    // Read buffer used to split concatenated documents
+    private final byte[] buf = new byte[8192];
+    private int pos = 0;
+    private int limit = 0;
+
+    /**
+     * Creates a reader over a bundle in a known format
+     * @param in The bundle, already un-gzipped if needed
+     * @param format The bundle format
+     * @param name A name for the bundle used for the CCR names and logging
+     */
+    public CCRBundleReader(InputStream in, Format format, String name) {
+        this.in = in;
+        this.format = format;
+        this.name = name;
+        if (format == Format.ZIP) {
+            zip = new ZipInputStream(in);
+        }
+    }
+
+    /**
+     * Opens a bundle file, working out the format from its content
+     * @param file The bundle file
+     * @return the reader
+     * @throws IOException
+     */
+    public static CCRBundleReader open(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            return open(is, file.getName());
+        } catch (IOException ex) {
+            is.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Opens a bundle stream, working out the format from its content.  Gzipped
+     * streams are un-gzipped and then checked for a tar header.
+     * @param is The bundle stream
+     * @param name A name for the bundle
+     * @return the reader
+     * @throws IOException
+     */
+    public static CCRBundleReader open(InputStream is, String name) throws IOException {
+        BufferedInputStream bis = new BufferedInputStream(is, 64 * 1024);
+        byte[] magic = peek(bis, 4);
+        if (magic.length >= 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4) {
+            return new CCRBundleReader(bis, Format.ZIP, name);
+        }
+        InputStream data = bis;
+        if (magic.length >= 2 && (magic[0] & 0xFF) == 0x1F && (magic[1] & 0xFF) == 0x8B) {
+            data = new BufferedInputStream(new GZIPInputStream(bis, 64 * 1024), 64 * 1024);
+        }
+        if (isTar(peek(data, TAR_BLOCK)) || isTarName(name)) {
+            return new CCRBundleReader(data, Format.TAR, name);
+        }
+        return new CCRBundleReader(data, Format.CONCATENATED, name);
+    }
+
+    /*
+     * Reads the first bytes of a stream without consuming them
+     */
+    private static byte[] peek(InputStream is, int n) throws IOException {
+        is.mark(n);
+        try {
+            byte[] b = new byte[n];
+            int read = 0;
+            while (read < n) {
+                int r = is.read(b, read, n - read);
+                if (r < 0) {
+                    break;
+                }
+                read += r;
+            }
+            if (read < n) {
+                byte[] shorter = new byte[read];
+                System.arraycopy(b, 0, shorter, 0, read);
+                return shorter;
+            }
+            return b;
+        } finally {
+            is.reset();
+        }
+    }
+
+    private static boolean isTar(byte[] header) {
+        return header.length == TAR_BLOCK && header[257] == 'u' && header[258] == 's'
+                && header[259] == 't' && header[260] == 'a' && header[261] == 'r';
+    }
+
+    private static boolean isTarName(String name) {
+        if (name == null) {
+            return false;
+        }
+        String n = name.toLowerCase();
+        return n.endsWith(".tar") || n.endsWith(".tar.gz") || n.endsWith(".tgz");
+    }
+
+    private static boolean isXml(String entryName) {
+        return entryName != null && entryName.toLowerCase().endsWith(".xml");
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Number of CCRs returned so far
+     * @return the count
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns an iterator over the CCRs.  A bundle can only be iterated once.
+     * The iterator throws <code>IllegalStateException</code> if the bundle
+     * can not be read.
+     * @return the iterator
+     */
+    public synchronized Iterator<CCRSource> iterator() {
+        if (iterated) {
+            throw new IllegalStateException("CCR bundle [" + name + "] has already been read");
+        }
+        iterated = true;
+        return new Iterator<CCRSource>() {
+
+            private CCRSource next;
+
+            public boolean hasNext() {
+                if (next == null && !finished) {
+                    try {
+                        next = nextSource();
+                    } catch (IOException ex) {
+                        LOG.log(Level.SEVERE, "Could not read CCR bundle [" + name + "]", ex);
+                        finished = true;
+                        throw new IllegalStateException("Could not read CCR bundle [" + name + "]", ex);
+                    }
+                    if (next == null) {
+                        finished = true;
+                    }
+                }
+                return next != null;
+            }
+
+            public CCRSource next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                CCRSource s = next;
+                next = null;
+                return s;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /*
+     * Skips whatever is left of the current CCR and moves to the next one
+     */
+    private CCRSource nextSource() throws IOException {
+        if (current != null) {
+            current.finish();
+            current = null;
+        }
+        String entryName;
+        switch (format) {
+            case ZIP:
+                entryName = nextZipEntry();
+                break;
+            case TAR:
+                entryName = nextTarEntry();
+                break;
+            default:
+                entryName = nextDocument();
+        }
+        if (entryName == null) {
+            LOG.log(Level.FINE, "Read {0} CCRs from bundle [{1}]", new Object[]{count, name});
+            return null;
+        }
+        count++;
+        CCRSource source = CCRSource.fromStream(current, entryName);
+        source.setFeed(name);
+        return source;
+    }
+
+    private String nextZipEntry() throws IOException {
+        ZipEntry ze;
+        while ((ze = zip.getNextEntry()) != null) {
+            if (!ze.isDirectory() && isXml(ze.getName())) {
+                current = new EntryStream(zip, -1);
+                return ze.getName();
+            }
+        }
+        return null;
+    }
+
+    private String nextTarEntry() throws IOException {
+        byte[] header = new byte[TAR_BLOCK];
+        String longName = null;
+        while (true) {
+            if (!readBlock(header)) {
+                return null;
+            }
+            if (isZeroBlock(header)) {
+                return null;
+            }
+            String entryName = longName != null ? longName : tarName(header);
+            longName = null;
+            long size = tarSize(header);
+            byte type = header[156];
+            if (type == 'L') {
+                // GNU long name for the next entry
+                byte[] nb = new byte[(int) size];
+                readFully(nb);
+                skipFully(tarPadding(size));
+                longName = cString(nb, 0, nb.length);
+            } else if (type == 'x') {
+                // PAX extended header for the next entry, may hold its full name
+                byte[] pb = new byte[(int) size];
+                readFully(pb);
+                skipFully(tarPadding(size));
+                longName = paxPath(pb);
+            } else if ((type == '0' || type == 0) && isXml(entryName)) {
+                current = new EntryStream(in, size);
+                return entryName;
+            } else {
+                if (type == '0' || type == 0) {
+                    LOG.log(Level.FINE, "Skipped tar entry [{0}] in [{1}], not an XML file", new Object[]{entryName, name});
+                }
+                skipFully(size + tarPadding(size));
+            }
+        }
+    }
+
+    /*
+     * Positions the reader at the start of the next concatenated document,
+     * returns null if there is only white space left
+     */
+    private String nextDocument() throws IOException {
+        while (fill()) {
+            byte b = buf[pos];
+            if (b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == 0) {
+                pos++;
+            } else {
+                current = new DocumentStream();
+                return (name == null ? "ccr" : name) + "#" + (count + 1);
+            }
+        }
+        return null;
+    }
+
+    private boolean fill() throws IOException {
+        if (pos < limit) {
+            return true;
+        }
+        pos = 0;
+        limit = in.read(buf, 0, buf.length);
+        if (limit <= 0) {
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+
+    private boolean readBlock(byte[] block) throws IOException {
+        int read = 0;
+        while (read < block.length) {
+            int r = in.read(block, read, block.length - read);
+            if (r < 0) {
+                if (read == 0) {
+                    return false;
+                }
+                throw new EOFException("Truncated tar header in [" + name + "]");
+            }
+            read += r;
+        }
+        return true;
+    }
+
+    private void readFully(byte[] b) throws IOException {
+        int read = 0;
+        while (read < b.length) {
+            int r = in.read(b, read, b.length - read);
+            if (r < 0) {
+                throw new EOFException("Truncated tar entry in [" + name + "]");
+            }
+            read += r;
+        }
+    }
+
+    private void skipFully(long n) throws IOException {
+        while (n > 0) {
+            long s = in.skip(n);
+            if (s <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Truncated tar entry in [" + name + "]");
+                }
+                s = 1;
+            }
+            n -= s;
+        }
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * The path record of a PAX extended header, null if it has none.  Each
+     * record is "length key=value\n" where length counts the whole record.
+     */
+    private static String paxPath(byte[] b) {
+        int i = 0;
+        String path = null;
+        while (i < b.length) {
+            int sp = i;
+            while (sp < b.length && b[sp] != ' ') {
+                sp++;
+            }
+            int len;
+            try {
+                len = Integer.parseInt(new String(b, i, sp - i, "US-ASCII").trim());
+            } catch (Exception ex) {
+                return path;
+            }
+            if (len <= 0 || i + len > b.length) {
+                return path;
+            }
+            int eq = sp + 1;
+            while (eq < i + len && b[eq] != '=') {
+                eq++;
+            }
+            try {
+                if ("path".equals(new String(b, sp + 1, eq - sp - 1, "UTF-8")) && eq < i + len) {
+                    // The value ends before the record's newline
+                    path = new String(b, eq + 1, i + len - eq - 2, "UTF-8");
+                }
+            } catch (java.io.UnsupportedEncodingException ex) {
+                return path;
+            }
+            i += len;
+        }
+        return path;
+    }
+
+    private static String tarName(byte[] header) {
+        String n = cString(header, 0, 100);
+        String prefix = cString(header, 345, 155);
+        if (prefix.length() > 0) {
+            return prefix + "/" + n;
+        }
+        return n;
+    }
+
+    /*
+     * Entry size, stored as octal text or as base 256 for large entries
+     */
+    private static long tarSize(byte[] header) {
+        long size = 0;
+        if ((header[124] & 0x80) != 0) {
+            for (int i = 125; i < 136; i++) {
+                size = (size << 8) | (header[i] & 0xFF);
+            }
+            return size;
+        }
+        for (int i = 124; i < 136; i++) {
+            byte b = header[i];
+            if (b >= '0' && b <= '7') {
+                size = (size << 3) + (b - '0');
+            } else if (b == 0 || (b == ' ' && size > 0)) {
+                break;
+            }
+        }
+        return size;
+    }
+
+    private static long tarPadding(long size) {
+        long r = size % TAR_BLOCK;
+        return r == 0 ? 0 : TAR_BLOCK - r;
+    }
+
+    private static String cString(byte[] b, int off, int len) {
+        int end = off;
+        while (end < off + len && b[end] != 0) {
+            end++;
+        }
+        try {
+            return new String(b, off, end - off, "UTF-8").trim();
+        } catch (java.io.UnsupportedEncodingException ex) {
+            return new String(b, off, end - off).trim();
+        }
+    }
+
+    public void close() throws IOException {
+        finished = true;
+        in.close();
+    }
+
+    /*
+     * The bytes of one CCR in the bundle.  Closing it does not close the
+     * bundle, whatever is left unread is skipped when the next CCR is read.
+     */
+    private class EntryStream extends InputStream {
+
+        private final InputStream source;
+        // Bytes left in the entry, -1 if the source marks the end itself
+        private long remaining;
+        private final long padding;
+        protected boolean closed = false;
+
+        EntryStream(InputStream source, long size) {
+            this.source = source;
+            this.remaining = size;
+            this.padding = size < 0 ? 0 : tarPadding(size);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n <= 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed || remaining == 0) {
+                return -1;
+            }
+            if (remaining > 0 && len > remaining) {
+                len = (int) remaining;
+            }
+            int n = source.read(b, off, len);
+            if (n > 0 && remaining > 0) {
+                remaining -= n;
+            } else if (n < 0 && remaining > 0) {
+                throw new EOFException("Truncated entry in [" + name + "]");
+            }
+            return n;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        /*
+         * Skips the rest of the entry
+         */
+        void finish() throws IOException {
+            closed = true;
+            if (remaining > 0) {
+                skipFully(remaining + padding);
+            } else if (remaining == 0) {
+                skipFully(padding);
+            }
+            remaining = 0;
+        }
+    }
+
+    /*
+     * One document of a concatenated bundle.  Ends after the '>' of the
+     * root end tag, which may have a namespace prefix.
+     */
+    private class DocumentStream extends EntryStream {
+
+        private boolean ended = false;
+        private int state = 0;
+        private final byte[] tag = new byte[64];
+        private int tagLen = 0;
+
+        DocumentStream() {
+            super(in, -1);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed || ended) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                ended = true;
+                return -1;
+            }
+            int n = 0;
+            while (n < len && pos < limit && !ended) {
+                byte c = buf[pos++];
+                b[off + n++] = c;
+                scan(c);
+            }
+            return n;
+        }
+
+        /*
+         * Looks for </ContinuityOfCareRecord> or </prefix:ContinuityOfCareRecord>
+         */
+        private void scan(byte c) {
+            switch (state) {
+                case 0:
+                    if (c == '<') {
+                        state = 1;
+                    }
+                    break;
+                case 1:
+                    if (c == '/') {
+                        state = 2;
+                        tagLen = 0;
+                    } else if (c != '<') {
+                        state = 0;
+                    }
+                    break;
+                default:
+                    if (c == '>') {
+                        ended = isRootEndTag();
+                        state = 0;
+                    } else if (c == '<') {
+                        state = 1;
+                    } else if (tagLen < tag.length) {
+                        tag[tagLen++] = c;
+                    } else {
+                        state = 0;
+                    }
+            }
+        }
+
+        private boolean isRootEndTag() {
+            int end = tagLen;
+            while (end > 0 && (tag[end - 1] == ' ' || tag[end - 1] == '\t' || tag[end - 1] == '\r' || tag[end - 1] == '\n')) {
+                end--;
+            }
+            int start = end - ROOT.length();
+            if (start < 0 || (start > 0 && tag[start - 1] != ':')) {
+                return false;
+            }
+            for (int i = 0; i < ROOT.length(); i++) {
+                if (tag[start + i] != ROOT.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        void finish() throws IOException {
+            closed = true;
+            while (!ended && fill()) {
+                scan(buf[pos++]);
+            }
+            ended = true;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.ohd.pophealth.api;
+
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.XMLConstants;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+import org.xml.sax.SAXException;
+
+/**
+ * Process wide CCR parsing engine.  The <code>JAXBContext</code> for
+ * <code>org.astm.ccr</code> and the compiled CCR <code>Schema</code> are
+ * expensive to build so they are created once and shared.  <code>Unmarshaller</code>
+ * and <code>Validator</code> instances are not thread safe, so they are handed
+ * out from a pool and must be returned after use.
+ *
+ * @author ohdohd
+ */
+public class CCREngine {
+
+    private final static Logger LOG = Logger.getLogger(CCREngine.class.getName());
+    public static final String CCR_PACKAGE = "org.astm.ccr";
+    // Engines by XSD location, all engines share the one JAXBContext
+    private static final ConcurrentHashMap<String, CCREngine> engines = new ConcurrentHashMap<String, CCREngine>();
+    private static JAXBContext sharedContext;
+
+    private final JAXBContext context;
+    private final Schema schema;
+    private final String xsdLocation;
+    private final ConcurrentLinkedQueue<Unmarshaller> unmarshallers = new ConcurrentLinkedQueue<Unmarshaller>();
+    private final ConcurrentLinkedQueue<Validator> validators = new ConcurrentLinkedQueue<Validator>();
+    // Idle counts kept separately since ConcurrentLinkedQueue.size() walks the queue
+    private final AtomicInteger idleUnmarshallers = new AtomicInteger();
+    private final AtomicInteger idleValidators = new AtomicInteger();
+    private volatile int maxPoolSize = Runtime.getRuntime().availableProcessors() * 2;
+    private boolean poolSizeRequested = false;  // set by the first Configuration asking for a size
+    // Pool metrics
+    private final AtomicLong unmarshallerHits = new AtomicLong();
+    private final AtomicLong unmarshallerMisses = new AtomicLong();
+    private final AtomicLong validatorHits = new AtomicLong();
+    private final AtomicLong validatorMisses = new AtomicLong();
+
+    private CCREngine(JAXBContext context, Schema schema, String xsdLocation) {
+        this.context = context;
+        this.schema = schema;
+        this.xsdLocation = xsdLocation;
+    }
+
+    /**
+     * Returns the shared engine for the CCR XSD named in the configuration.
+     * The engine is shared by every Configuration, so its pool size is the
+     * largest parser pool size any of them asked for.
+     * @param config The configuration holding the CCR XSD location
+     * @return the shared engine
+     * @throws JAXBException Thrown if the JAXBContext could not be created
+     */
+    public static CCREngine getInstance(Configuration config) throws JAXBException {
+        CCREngine engine = getInstance(config.getCcrXSDLocation());
+        if (config.getParserPoolSize() > 0) {
+            engine.requestPoolSize(config.getParserPoolSize());
+        }
+        return engine;
+    }
+
+    /**
+     * Returns the shared engine for a CCR XSD, creating it on first use.  If
+     * the XSD can not be loaded an engine without a schema is returned and
+     * not shared, so the next call tries to load the XSD again.
+     * @param xsdLocation Class path location of the CCR XSD
+     * @return the shared engine
+     * @throws JAXBException Thrown if the JAXBContext could not be created
+     */
+    public static CCREngine getInstance(String xsdLocation) throws JAXBException {
+        CCREngine engine = engines.get(xsdLocation);
+        if (engine == null) {
+            synchronized (engines) {
+                engine = engines.get(xsdLocation);
+                if (engine == null) {
+                    engine = new CCREngine(getContext(), loadSchema(xsdLocation), xsdLocation);
+                    if (engine.getSchema() != null) {
+                        engines.put(xsdLocation, engine);
+                    }
+                }
+            }
+        }
+        return engine;
+    }
+
+    /*
+     * Creates the JAXBContext once for the whole process
+     */
+    private static synchronized JAXBContext getContext() throws JAXBException {
+        if (sharedContext == null) {
+            long start = System.currentTimeMillis();
+            sharedContext = JAXBContext.newInstance(CCR_PACKAGE);
+            LOG.log(Level.FINE, "Created JAXBContext in {0} ms", System.currentTimeMillis() - start);
+        }
+        return sharedContext;
+    }
+
+    /*
+     * Compiles the CCR schema, returns null if it can not be loaded
+     */
+    private static Schema loadSchema(String xsdLocation) {
+        URL xsdURL = CCREngine.class.getClassLoader().getResource(xsdLocation);
+        if (xsdURL == null) {
+            LOG.log(Level.SEVERE, "Could not find CCR XSD [{0}]", xsdLocation);
+            return null;
+        }
+        try {
+            SchemaFactory sf = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+            return sf.newSchema(xsdURL);
+        } catch (SAXException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+
+    public JAXBContext getJAXBContext() {
+        return context;
+    }
+
+    /**
+     * Get the compiled CCR schema
+     * @return the schema or <code>null</code> if the XSD could not be loaded
+     */
+    public Schema getSchema() {
+        return schema;
+    }
+
+    public String getXsdLocation() {
+        return xsdLocation;
+    }
+
+    /**
+     * Takes an <code>Unmarshaller</code> from the pool or creates a new one
+     * if the pool is empty.  Must be handed back with <code>returnUnmarshaller</code>
+     * @return an Unmarshaller for the CCR package
+     * @throws JAXBException
+     */
+    public Unmarshaller borrowUnmarshaller() throws JAXBException {
+        Unmarshaller u = unmarshallers.poll();
+        if (u != null) {
+            idleUnmarshallers.decrementAndGet();
+            unmarshallerHits.incrementAndGet();
+            return u;
+        }
+        unmarshallerMisses.incrementAndGet();
+        return context.createUnmarshaller();
+    }
+
+    /**
+     * Hands an <code>Unmarshaller</code> back to the pool.  Any schema or event
+     * handler set by the borrower is cleared.
+     * @param u The Unmarshaller to return
+     */
+    public void returnUnmarshaller(Unmarshaller u) {
+        if (u == null) {
+            return;
+        }
+        try {
+            u.setSchema(null);
+            u.setEventHandler(null);
+            u.setListener(null);
+        } catch (JAXBException ex) {
+            // Do not pool an Unmarshaller in an unknown state
+            LOG.log(Level.FINE, null, ex);
+            return;
+        }
+        if (idleUnmarshallers.incrementAndGet() <= maxPoolSize) {
+            unmarshallers.offer(u);
+        } else {
+            idleUnmarshallers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Takes a <code>Validator</code> from the pool or creates a new one if the
+     * pool is empty.  Must be handed back with <code>returnValidator</code>
+     * @return a Validator for the CCR schema or <code>null</code> if there is no schema
+     */
+    public Validator borrowValidator() {
+        if (schema == null) {
+            return null;
+        }
+        Validator v = validators.poll();
+        if (v != null) {
+            idleValidators.decrementAndGet();
+            validatorHits.incrementAndGet();
+            return v;
+        }
+        validatorMisses.incrementAndGet();
+        return schema.newValidator();
+    }
+
+    /**
+     * Hands a <code>Validator</code> back to the pool after resetting it
+     * @param v The Validator to return
+     */
+    public void returnValidator(Validator v) {
+        if (v == null) {
+            return;
+        }
+        v.reset();
+        v.setErrorHandler(null);
+        if (idleValidators.incrementAndGet() <= maxPoolSize) {
+            validators.offer(v);
+        } else {
+            idleValidators.decrementAndGet();
+        }
+    }
+
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    /**
+     * Sets the maximum number of idle instances of each kind kept in the pool
+     * @param maxPoolSize
+     */
+    public void setMaxPoolSize(int maxPoolSize) {
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    /*
+     * Sets the pool size asked for by a Configuration, keeping the largest
+     * size asked for so far
+     */
+    private synchronized void requestPoolSize(int size) {
+        if (!poolSizeRequested || size > maxPoolSize) {
+            maxPoolSize = size;
+        }
+        poolSizeRequested = true;
+    }
+
+    public int getIdleUnmarshallers() {
+        return idleUnmarshallers.get();
+    }
+
+    public int getIdleValidators() {
+        return idleValidators.get();
+    }
+
+    public long getUnmarshallerHits() {
+        return unmarshallerHits.get();
+    }
+
+    public long getUnmarshallerMisses() {
+        return unmarshallerMisses.get();
+    }
+
+    public long getValidatorHits() {
+        return validatorHits.get();
+    }
+
+    public long getValidatorMisses() {
+        return validatorMisses.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuffer sb = new StringBuffer();
+        sb.append("CCREngine [").append(xsdLocation).append("] ");
+        sb.append("max pool=").append(maxPoolSize);
+        sb.append(" unmarshallers{idle=").append(getIdleUnmarshallers());
+        sb.append(", hits=").append(getUnmarshallerHits());
+        sb.append(", misses=").append(getUnmarshallerMisses()).append("}");
+        sb.append(" validators{idle=").append(getIdleValidators());
+        sb.append(", hits=").append(getValidatorHits());
+        sb.append(", misses=").append(getValidatorMisses()).append("}");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.ohd.pophealth.api;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A quick check of the raw bytes of a CCR before it is parsed and validated
+ * against the XSD.  Only the first and last few kilobytes of the CCR are
+ * looked at, so obvious junk (HTML error pages, empty or truncated uploads,
+ * other XML documents) is rejected without starting the XML parser.
+ * <p>
+ * Lenient validation only rejects CCRs the XML parser can not read, so it
+ * ignores the structural rejections, see <code>Result.isStructural</code>.
+ * <p>
+ * A CCR that passes the pre-screen can still fail validation.  When a check
+ * can not be decided from the bytes that were read, such as the end of a
+ * stream that can only be read once, the check is passed.
+ *
+ * @author ohdohd
+ */
+public class CCRPreScreen {
+
+    private final static Logger LOG = Logger.getLogger(CCRPreScreen.class.getName());
+    public static final String CCR_NAMESPACE = "urn:astm-org:CCR";
+    // Error codes
+    public static final String EMPTY = "prescreen-empty";
+    public static final String TOO_LARGE = "prescreen-too-large";
+    public static final String ENCODING = "prescreen-encoding";
+    public static final String NOT_XML = "prescreen-not-xml";
+    public static final String PROLOG = "prescreen-prolog";
+    public static final String HTML = "prescreen-html";
+    public static final String ROOT = "prescreen-root";
+    public static final String NAMESPACE = "prescreen-namespace";
+    public static final String NO_PATIENT = "prescreen-no-patient";
+    public static final String NO_ACTORS = "prescreen-no-actors";
+    public static final String TRUNCATED = "prescreen-truncated";
+    private static final int HEAD_SIZE = 8 * 1024;
+    private static final int TAIL_SIZE = 4 * 1024;
+    private static final Pattern DECLARED_ENCODING = Pattern.compile("encoding\\s*=\\s*[\"']([A-Za-z][A-Za-z0-9._\\-]*)[\"']");
+    private static final Pattern VERSION = Pattern.compile("version\\s*=\\s*[\"']1\\.[0-9]+[\"']");
+    // The root end tag, then only white space, comments and processing
+    // instructions, which XML allows after the root element
+    private static final Pattern ROOT_END = Pattern.compile("</([A-Za-z_][\\w.\\-]*:)?ContinuityOfCareRecord\\s*>"
+            + "(?:\\s|<!--(?:[^-]|-(?!-))*-->|<\\?(?:[^?]|\\?(?!>))*\\?>)*$");
+    private long maxSize;
+
+    /**
+     * Creates a pre-screen
+     * @param maxSize Largest CCR accepted, 0 for no limit
+     */
+    public CCRPreScreen(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * The outcome of a pre-screen
+     */
+    public static class Result {
+
+        public static final Result PASSED = new Result(null, null);
+        private String code;
+        private String message;
+
+        Result(String code, String message) {
+            this.code = code;
+            this.message = message;
+        }
+
+        public boolean isPassed() {
+            return code == null;
+        }
+
+        /**
+         * The reason the CCR was rejected
+         * @return one of the <code>CCRPreScreen</code> error codes or <code>null</code>
+         */
+        public String getCode() {
+            return code;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * Checks if the CCR was rejected for its structure, a wrong root
+         * element or namespace or a missing Patient or Actors, rather than
+         * for content an XML parser could not read at all
+         * @return true for the structural error codes
+         */
+        public boolean isStructural() {
+            return ROOT.equals(code) || NAMESPACE.equals(code)
+                    || NO_PATIENT.equals(code) || NO_ACTORS.equals(code);
+        }
+    }
+
+    private static Result reject(String code, String message) {
+        return new Result(code, message);
+    }
+
+    /**
+     * Checks a CCR source, reading only its first and last bytes
+     * @param source The CCR source
+     * @return the result
+     */
+    public Result screen(CCRSource source) {
+        try {
+            long size = source.getLength();
+            if (maxSize > 0 && size > maxSize) {
+                return reject(TOO_LARGE, "CCR is " + size + " bytes, the limit is " + maxSize);
+            }
+            byte[] head = source.readHead(HEAD_SIZE);
+            if (head == null) {
+                return Result.PASSED;
+            }
+            // The size is in characters for String sources so compare it with
+            // the number asked for rather than the number of bytes returned
+            boolean whole = size >= 0 && size <= HEAD_SIZE;
+            byte[] tail = whole ? null : source.readTail(TAIL_SIZE);
+            return screen(head, tail, size, whole);
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, "Could not pre-screen CCR [" + source.getName() + "]", ex);
+            return Result.PASSED;
+        }
+    }
+
+    /**
+     * Checks the first and last bytes of a CCR
+     * @param head The first bytes of the CCR
+     * @param tail The last bytes of the CCR, <code>null</code> if not known or
+     *      if the head holds the whole CCR
+     * @param size The size of the CCR, -1 if not known
+     * @return the result
+     */
+    public Result screen(byte[] head, byte[] tail, long size) {
+        return screen(head, tail, size, tail == null && size >= 0 && size <= head.length);
+    }
+
+    private Result screen(byte[] head, byte[] tail, long size, boolean whole) {
+        if (head.length == 0 || size == 0) {
+            return reject(EMPTY, "CCR is empty");
+        }
+        // Work out the character encoding
+        String charset = sniffCharset(head);
+        String h = decode(head, charset);
+        int start = 0;
+        if (h.length() > 0 && h.charAt(0) == '\uFEFF') {
+            start = 1;
+        }
+        if (h.startsWith("<?xml", start)) {
+            int end = h.indexOf("?>", start);
+            if (end < 0) {
+                return reject(PROLOG, "XML declaration is not closed");
+            }
+            String decl = h.substring(start, end);
+            if (!VERSION.matcher(decl).find()) {
+                return reject(PROLOG, "XML declaration has no valid version");
+            }
+            Matcher m = DECLARED_ENCODING.matcher(decl);
+            if (m.find()) {
+                String declared = m.group(1);
+                if (!isSupported(declared)) {
+                    return reject(ENCODING, "Unsupported encoding [" + declared + "]");
+                }
+            }
+            start = end + 2;
+        }
+        // Find the root element, skipping comments, processing instructions and doctype
+        int root = -1;
+        int i = start;
+        while (i < h.length()) {
+            char c = h.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c != '<') {
+                return reject(NOT_XML, "Content does not start with XML markup");
+            } else if (h.startsWith("<!--", i)) {
+                int end = h.indexOf("-->", i + 4);
+                if (end < 0) {
+                    break;
+                }
+                i = end + 3;
+            } else if (h.startsWith("<?", i)) {
+                int end = h.indexOf("?>", i + 2);
+                if (end < 0) {
+                    break;
+                }
+                i = end + 2;
+            } else if (h.startsWith("<!", i)) {
+                if (h.regionMatches(true, i, "<!DOCTYPE html", 0, 14)) {
+                    return reject(HTML, "Content is an HTML page");
+                }
+                int end = h.indexOf('>', i);
+                if (end < 0) {
+                    break;
+                }
+                i = end + 1;
+            } else {
+                root = i;
+                break;
+            }
+        }
+        if (root < 0) {
+            return whole ? reject(NOT_XML, "No root element found") : Result.PASSED;
+        }
+        int nameEnd = root + 1;
+        while (nameEnd < h.length() && isNameChar(h.charAt(nameEnd))) {
+            nameEnd++;
+        }
+        String qName = h.substring(root + 1, nameEnd);
+        int colon = qName.indexOf(':');
+        String prefix = colon < 0 ? null : qName.substring(0, colon);
+        String localName = qName.substring(colon + 1);
+        if ("html".equalsIgnoreCase(localName)) {
+            return reject(HTML, "Content is an HTML page");
+        }
+        if (!"ContinuityOfCareRecord".equals(localName)) {
+            return reject(ROOT, "Root element is [" + qName + "] not ContinuityOfCareRecord");
+        }
+        int tagEnd = h.indexOf('>', nameEnd);
+        if (tagEnd > 0) {
+            String tag = h.substring(nameEnd, tagEnd);
+            String attr = prefix == null ? "xmlns" : "xmlns:" + prefix;
+            if (!CCR_NAMESPACE.equals(attributeValue(tag, attr))) {
+                return reject(NAMESPACE, "Root element is not in the " + CCR_NAMESPACE + " namespace");
+            }
+        }
+        String p = prefix == null ? "" : prefix + ":";
+        // The end of the CCR
+        String t = whole ? h : (tail == null ? null : decode(tail, charset));
+        if (t != null) {
+            if (!ROOT_END.matcher(t).find()) {
+                return reject(TRUNCATED, "CCR does not end with the ContinuityOfCareRecord end tag");
+            }
+            // <Actors> comes after </Body>, if the tail reaches </Body> it must have <Actors>
+            boolean hasActors = t.indexOf("</" + p + "Actors>") >= 0 || t.indexOf("</" + p + "Actors ") >= 0;
+            if (!hasActors && (whole || t.indexOf("</" + p + "Body>") >= 0)) {
+                return reject(NO_ACTORS, "CCR has no Actors");
+            }
+        }
+        // <Patient> comes before <Body>, if the head reaches <Body> it must have a <Patient>
+        int body = indexOfStartTag(h, p + "Body", root);
+        int patient = indexOfStartTag(h, p + "Patient", root);
+        if (patient < 0 && (body >= 0 || whole)) {
+            return reject(NO_PATIENT, "CCR has no Patient");
+        }
+        return Result.PASSED;
+    }
+
+    /*
+     * Gets the value of an attribute from the text of a start tag
+     */
+    private static String attributeValue(String tag, String attr) {
+        int i = tag.indexOf(attr);
+        while (i >= 0) {
+            int j = i + attr.length();
+            if (i > 0 && Character.isWhitespace(tag.charAt(i - 1))) {
+                while (j < tag.length() && Character.isWhitespace(tag.charAt(j))) {
+                    j++;
+                }
+                if (j < tag.length() && tag.charAt(j) == '=') {
+                    j++;
+                    while (j < tag.length() && Character.isWhitespace(tag.charAt(j))) {
+                        j++;
+                    }
+                    if (j < tag.length() && (tag.charAt(j) == '"' || tag.charAt(j) == '\'')) {
+                        int end = tag.indexOf(tag.charAt(j), j + 1);
+                        if (end > 0) {
+                            return tag.substring(j + 1, end);
+                        }
+                    }
+                }
+            }
+            i = tag.indexOf(attr, i + attr.length());
+        }
+        return null;
+    }
+
+    /*
+     * Finds a start tag, making sure the name is not just the start of a longer name
+     */
+    private static int indexOfStartTag(String s, String qName, int from) {
+        String open = "<" + qName;
+        int i = s.indexOf(open, from);
+        while (i >= 0) {
+            int after = i + open.length();
+            if (after >= s.length() || !isNameChar(s.charAt(after))) {
+                return i;
+            }
+            i = s.indexOf(open, after);
+        }
+        return -1;
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == ':' || c == '_' || c == '-' || c == '.';
+    }
+
+    /*
+     * Works out the encoding family from the byte order mark or the first bytes
+     * of "<?xml".  Any ASCII compatible encoding is read as ISO-8859-1, which is
+     * enough to find the markup.
+     */
+    private static String sniffCharset(byte[] b) {
+        if (b.length >= 2) {
+            int b0 = b[0] & 0xFF;
+            int b1 = b[1] & 0xFF;
+            if ((b0 == 0xFE && b1 == 0xFF) || (b0 == 0x00 && b1 == 0x3C)) {
+                return "UTF-16BE";
+            }
+            if ((b0 == 0xFF && b1 == 0xFE) || (b0 == 0x3C && b1 == 0x00)) {
+                return "UTF-16LE";
+            }
+        }
+        return "ISO-8859-1";
+    }
+
+    private static String decode(byte[] b, String charset) {
+        try {
+            String s = new String(b, charset);
+            if (s.length() > 0 && s.charAt(0) == '\u00EF' && s.startsWith("\u00EF\u00BB\u00BF")) {
+                // UTF-8 byte order mark read as ISO-8859-1
+                return "\uFEFF" + s.substring(3);
+            }
+            return s;
+        } catch (UnsupportedEncodingException ex) {
+            return new String(b);
+        }
+    }
+
+    private static boolean isSupported(String charset) {
+        try {
+            return Charset.isSupported(charset);
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+}
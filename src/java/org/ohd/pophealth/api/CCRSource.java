@@ -0,0 +1,437 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.ohd.pophealth.api;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * The input for a CCR.  A CCR can be read straight from a stream, file or
+ * buffer so callers do not have to load the whole document into a
+ * <code>String</code> first.  Byte based sources are handed to the XML parser
+ * as bytes so the parser handles the character encoding.
+ *
+ * @author ohdohd
+ */
+public abstract class CCRSource {
+
+    private String name;
+    private String feed;
+
+    protected CCRSource(String name) {
+        this.name = name;
+    }
+
+    /**
+     * The feed the CCR came from, such as the sending system or export
+     * bundle.  Used by the <code>ValidationPolicy</code> to track each feed.
+     * @return the feed or <code>null</code> if it is not known
+     */
+    public String getFeed() {
+        return feed;
+    }
+
+    public void setFeed(String feed) {
+        this.feed = feed;
+    }
+
+    /**
+     * A name for the source used in logging and results, such as the file name
+     * @return the name, may be <code>null</code>
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Creates a new <code>StreamSource</code> over the CCR.  The caller must
+     * close it with <code>close(StreamSource)</code> when done.
+     * @return the StreamSource
+     * @throws IOException
+     */
+    public abstract StreamSource newStreamSource() throws IOException;
+
+    /**
+     * Checks if <code>newStreamSource</code> can be called more than once
+     * @return <code>true</code> if the CCR can be read again
+     */
+    public abstract boolean isRepeatable();
+
+    /**
+     * The size of the CCR if it is known without reading it.  For a String
+     * source this is the number of characters.
+     * @return the size or -1 if it is not known
+     */
+    public long getLength() {
+        return -1;
+    }
+
+    /**
+     * Reads the first bytes of the CCR without using up the source.  Used to
+     * check the CCR before it is parsed.
+     * @param n The number of bytes to read
+     * @return up to <code>n</code> bytes, or <code>null</code> if the source
+     *      can not be read ahead
+     * @throws IOException
+     */
+    public byte[] readHead(int n) throws IOException {
+        if (!isRepeatable()) {
+            return null;
+        }
+        StreamSource src = newStreamSource();
+        try {
+            if (src.getInputStream() != null) {
+                return read(src.getInputStream(), n);
+            }
+            if (src.getReader() != null) {
+                char[] c = new char[n];
+                int len = read(src.getReader(), c);
+                return new String(c, 0, len).getBytes("UTF-8");
+            }
+            return null;
+        } finally {
+            close(src);
+        }
+    }
+
+    /**
+     * Reads the last bytes of the CCR without using up the source
+     * @param n The number of bytes to read
+     * @return up to <code>n</code> bytes, or <code>null</code> if the end of
+     *      the source can not be read cheaply
+     * @throws IOException
+     */
+    public byte[] readTail(int n) throws IOException {
+        return null;
+    }
+
+    /*
+     * Reads up to n bytes
+     */
+    private static byte[] read(InputStream is, int n) throws IOException {
+        byte[] b = new byte[n];
+        int len = 0;
+        while (len < n) {
+            int r = is.read(b, len, n - len);
+            if (r < 0) {
+                break;
+            }
+            len += r;
+        }
+        if (len == n) {
+            return b;
+        }
+        byte[] shorter = new byte[len];
+        System.arraycopy(b, 0, shorter, 0, len);
+        return shorter;
+    }
+
+    private static int read(Reader r, char[] c) throws IOException {
+        int len = 0;
+        while (len < c.length) {
+            int n = r.read(c, len, c.length - len);
+            if (n < 0) {
+                break;
+            }
+            len += n;
+        }
+        return len;
+    }
+
+    /*
+     * The bytes of a buffer between two positions relative to its position
+     */
+    private static byte[] slice(ByteBuffer buffer, int from, int to) {
+        ByteBuffer d = buffer.duplicate();
+        d.position(buffer.position() + from);
+        byte[] b = new byte[to - from];
+        d.get(b);
+        return b;
+    }
+
+    /**
+     * Closes the stream or reader behind a <code>StreamSource</code>
+     * @param src The StreamSource to close
+     */
+    public static void close(StreamSource src) {
+        if (src == null) {
+            return;
+        }
+        try {
+            if (src.getInputStream() != null) {
+                src.getInputStream().close();
+            }
+            if (src.getReader() != null) {
+                src.getReader().close();
+            }
+        } catch (IOException ex) {
+            // Nothing more can be done with the source
+        }
+    }
+
+    /**
+     * A CCR already held as a String
+     * @param ccrXML The CCR XML
+     * @return the source
+     */
+    public static CCRSource fromString(final String ccrXML) {
+        return new CCRSource(null) {
+
+            @Override
+            public StreamSource newStreamSource() {
+                return new StreamSource(new StringReader(ccrXML));
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return true;
+            }
+
+            @Override
+            public long getLength() {
+                return ccrXML.length();
+            }
+
+            @Override
+            public byte[] readHead(int n) throws IOException {
+                return ccrXML.substring(0, Math.min(n, ccrXML.length())).getBytes("UTF-8");
+            }
+
+            @Override
+            public byte[] readTail(int n) throws IOException {
+                return ccrXML.substring(Math.max(0, ccrXML.length() - n)).getBytes("UTF-8");
+            }
+        };
+    }
+
+    /**
+     * A CCR read from a stream.  The stream can only be read once and is
+     * closed after it has been read.
+     * @param is The stream containing the CCR XML
+     * @return the source
+     */
+    public static CCRSource fromStream(InputStream is) {
+        return fromStream(is, null);
+    }
+
+    /**
+     * A named CCR read from a stream.  The stream can only be read once and is
+     * closed after it has been read.
+     * @param is The stream containing the CCR XML
+     * @param name The name of the source
+     * @return the source
+     */
+    public static CCRSource fromStream(InputStream is, String name) {
+        final InputStream in = is.markSupported() ? is : new BufferedInputStream(is);
+        return new CCRSource(name) {
+
+            private boolean used = false;
+
+            @Override
+            public synchronized StreamSource newStreamSource() throws IOException {
+                if (used) {
+                    throw new IOException("CCR stream [" + getName() + "] has already been read");
+                }
+                used = true;
+                return new StreamSource(in);
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return false;
+            }
+
+            /*
+             * Reads ahead using mark and reset so the stream can still be parsed
+             */
+            @Override
+            public synchronized byte[] readHead(int n) throws IOException {
+                if (used) {
+                    return null;
+                }
+                in.mark(n);
+                try {
+                    return read(in, n);
+                } finally {
+                    in.reset();
+                }
+            }
+        };
+    }
+
+    /**
+     * A CCR file, opened each time it is read
+     * @param file The CCR file
+     * @return the source
+     */
+    public static CCRSource fromFile(final File file) {
+        return new CCRSource(file.getPath()) {
+
+            @Override
+            public StreamSource newStreamSource() throws IOException {
+                return new StreamSource(new BufferedInputStream(new FileInputStream(file)), file.toURI().toString());
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return true;
+            }
+
+            @Override
+            public long getLength() {
+                return file.length();
+            }
+
+            @Override
+            public byte[] readTail(int n) throws IOException {
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    long start = Math.max(0, raf.length() - n);
+                    byte[] b = new byte[(int) (raf.length() - start)];
+                    raf.seek(start);
+                    raf.readFully(b);
+                    return b;
+                } finally {
+                    raf.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * A CCR held in a buffer, such as one returned by <code>mapFile</code>.
+     * The buffer position is not changed by reading.
+     * @param buffer The buffer containing the CCR bytes
+     * @return the source
+     */
+    public static CCRSource fromByteBuffer(ByteBuffer buffer) {
+        return fromByteBuffer(buffer, null);
+    }
+
+    /**
+     * A named CCR held in a buffer.  The buffer position is not changed by reading.
+     * @param buffer The buffer containing the CCR bytes
+     * @param name The name of the source
+     * @return the source
+     */
+    public static CCRSource fromByteBuffer(final ByteBuffer buffer, String name) {
+        return new CCRSource(name) {
+
+            @Override
+            public StreamSource newStreamSource() {
+                return new StreamSource(new ByteBufferInputStream(buffer.duplicate()));
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return true;
+            }
+
+            @Override
+            public long getLength() {
+                return buffer.remaining();
+            }
+
+            @Override
+            public byte[] readHead(int n) {
+                return slice(buffer, 0, Math.min(n, buffer.remaining()));
+            }
+
+            @Override
+            public byte[] readTail(int n) {
+                return slice(buffer, Math.max(0, buffer.remaining() - n), buffer.remaining());
+            }
+        };
+    }
+
+    /**
+     * A CCR held in a byte array
+     * @param ccrBytes The CCR bytes
+     * @param name The name of the source
+     * @return the source
+     */
+    public static CCRSource fromBytes(byte[] ccrBytes, String name) {
+        return fromByteBuffer(ByteBuffer.wrap(ccrBytes), name);
+    }
+
+    /**
+     * A memory mapped CCR file.  The file is read by the parser straight from
+     * the page cache without being copied onto the heap.
+     * @param file The CCR file
+     * @return the source
+     * @throws IOException Thrown if the file can not be mapped
+     */
+    public static CCRSource fromMappedFile(File file) throws IOException {
+        return fromByteBuffer(mapFile(file), file.getPath());
+    }
+
+    /**
+     * Maps a file into memory read only.  The mapping stays valid after the
+     * file is closed.
+     * @param file The file to map
+     * @return the mapped buffer
+     * @throws IOException
+     */
+    public static ByteBuffer mapFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel fc = raf.getChannel();
+            return fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Gets a source that can be read more than once.  A source that can only
+     * be read once is read into memory, keeping its name and feed.
+     * @param source The CCR source
+     * @return the source itself if it is repeatable, otherwise a copy in memory
+     * @throws IOException
+     */
+    public static CCRSource repeatable(CCRSource source) throws IOException {
+        if (source.isRepeatable()) {
+            return source;
+        }
+        StreamSource src = source.newStreamSource();
+        try {
+            CCRSource copy;
+            if (src.getInputStream() != null) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream(16 * 1024);
+                byte[] b = new byte[8192];
+                int n;
+                while ((n = src.getInputStream().read(b)) > 0) {
+                    bos.write(b, 0, n);
+                }
+                copy = fromBytes(bos.toByteArray(), source.getName());
+            } else if (src.getReader() != null) {
+                StringBuilder sb = new StringBuilder();
+                char[] c = new char[8192];
+                int n;
+                while ((n = src.getReader().read(c)) > 0) {
+                    sb.append(c, 0, n);
+                }
+                copy = fromString(sb.toString());
+            } else {
+                throw new IOException("CCR source [" + source.getName() + "] has no stream");
+            }
+            copy.setFeed(source.getFeed());
+            return copy;
+        } finally {
+            close(src);
+        }
+    }
+}
@@ -7,25 +7,24 @@ package org.ohd.pophealth.api;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.StringReader;
-import java.net.URISyntaxException;
-import java.net.URL;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Source;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
-import javax.xml.validation.SchemaFactory;
 import javax.xml.validation.Validator;
 import org.astm.ccr.ContinuityOfCareRecord;
 import org.codehaus.jackson.JsonGenerationException;
 import org.codehaus.jackson.map.JsonMappingException;
+import org.ohd.pophealth.ccr.importer.SectionProjection;
 import org.w3c.dom.Document;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -35,9 +34,11 @@ import org.xml.sax.SAXException;
  * @author ohdohd
  */
 public class CCRValidator {
-    private Validator validator;
-    private ValidatonErrorHandler eHandler;
+    private CCREngine engine;
     private Configuration config;
+    // Errors from the last validation done on each thread
+    private final ThreadLocal<ValidatonErrorHandler> lastErrors = new ThreadLocal<ValidatonErrorHandler>();
+    private CCRPreScreen preScreen;
 
 
     public CCRValidator(Configuration config){
@@ -45,9 +46,14 @@ public class CCRValidator {
         this.setupValidator();
     }
 
+    /**
+     * Returns the errors found by the last validation done on the calling thread
+     * @param prettyPrint Format the JSON for people to read
+     * @return the errors as JSON
+     */
     public String getLastErrors(boolean prettyPrint) {
         try {
-            return eHandler.toJson(prettyPrint);
+            return getLastErrorHandler().toJson(prettyPrint);
         } catch (JsonMappingException ex) {
             Logger.getLogger(CCRValidator.class.getName()).log(Level.SEVERE, null, ex);
         } catch (JsonGenerationException ex) {
@@ -58,51 +64,321 @@ public class CCRValidator {
         return "";
     }
 
+    /**
+     * Returns the error collector of the last validation done on the calling thread
+     * @return the collector, empty if no validation has been done
+     */
+    public ValidatonErrorHandler getLastErrorHandler() {
+        ValidatonErrorHandler h = lastErrors.get();
+        return h == null ? new ValidatonErrorHandler() : h;
+    }
+
+    /*
+     * Creates the error collector for one validation call
+     */
+    private ValidatonErrorHandler newErrorHandler(boolean lenient) {
+        ValidatonErrorHandler h = new ValidatonErrorHandler(config, lenient);
+        lastErrors.set(h);
+        return h;
+    }
+
+    /**
+     * Get the shared parsing engine used by this validator
+     * @return the engine or <code>null</code> if it could not be created
+     */
+    public CCREngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Validates and unmarshals a CCR.  In strict mode a CCR with any schema
+     * errors is rejected.  Otherwise the CCR is unmarshalled in a single pass
+     * and any schema errors are kept as warnings, only CCRs that can not be read
+     * at all are rejected.
+     *
+     * @param ccrXML The CCR XML
+     * @param strict Reject CCRs with schema errors
+     * @return the CCR or <code>null</code> if it was rejected
+     */
     public ContinuityOfCareRecord validateCCR(String ccrXML, boolean strict){
-         ContinuityOfCareRecord ccr = validateCCR(ccrXML);
-         if (!strict && ccr == null){
-             try {
-                JAXBContext jc = JAXBContext.newInstance("org.astm.ccr");
-                Unmarshaller unmarshaller = jc.createUnmarshaller();
-                ccr = (ContinuityOfCareRecord) unmarshaller.unmarshal(new StringReader(ccrXML));
-            } catch (JAXBException ex) {
-                Logger.getLogger(Evaluator.class.getName()).log(Level.WARNING, ex.getLocalizedMessage());
-                return null;
-            }
-         }
-         return ccr;
+        // TODO Connect true CCR Validator
+        // First see if it a valid XML instance
+        if (ccrXML == null || "".equals(ccrXML)){
+            newErrorHandler(!strict);
+            Logger.getLogger(Evaluator.class.getName()).log(Level.WARNING, "CCR XML String Empty or NULL");
+            return null;
+        }
+        return validateCCR(CCRSource.fromString(ccrXML), strict);
     }
 
     public ContinuityOfCareRecord validateCCR(String ccrXML) {
+        return validateCCR(ccrXML, true);
+    }
+
+    /**
+     * Validates and unmarshals a CCR read from a stream, see
+     * <code>validateCCR(String, boolean)</code>
+     */
+    public ContinuityOfCareRecord validateCCR(InputStream ccrStream, boolean strict) {
+        return validateCCR(CCRSource.fromStream(ccrStream), strict);
+    }
+
+    /**
+     * Validates and unmarshals a CCR file, see
+     * <code>validateCCR(String, boolean)</code>
+     */
+    public ContinuityOfCareRecord validateCCR(File ccrFile, boolean strict) {
+        return validateCCR(CCRSource.fromFile(ccrFile), strict);
+    }
+
+    /**
+     * Validates and unmarshals a CCR held in a buffer, such as a memory mapped
+     * file, see <code>validateCCR(String, boolean)</code>
+     */
+    public ContinuityOfCareRecord validateCCR(ByteBuffer ccrBuffer, boolean strict) {
+        return validateCCR(CCRSource.fromByteBuffer(ccrBuffer), strict);
+    }
+
+    public ContinuityOfCareRecord validateCCR(CCRSource source) {
+        return validateCCR(source, true);
+    }
+
+    /**
+     * Validates and unmarshals a CCR, see <code>validateCCR(String, boolean)</code>.
+     * Sources that can only be read once are always validated while they are
+     * unmarshalled.
+     *
+     * @param source The CCR source
+     * @param strict Reject CCRs with schema errors
+     * @return the CCR or <code>null</code> if it was rejected
+     */
+    public ContinuityOfCareRecord validateCCR(CCRSource source, boolean strict) {
+        return validateCCR(source, strict, null);
+    }
+
+    /**
+     * Validates and unmarshals only the <Body> sections of a CCR kept by a
+     * projection, see <code>validateCCR(String, boolean)</code>.  Skipped
+     * sections are passed over by the parser and are missing from the
+     * returned CCR.  They are still validated, the projection is only used
+     * when the CCR is validated against the schema on its own before it is
+     * unmarshalled, in strict mode without single pass validation, or when
+     * it is not validated.  In lenient or single pass mode, and for sources
+     * that can only be read once, the CCR is validated while it is
+     * unmarshalled whole so it is still only parsed once.
+     *
+     * @param source The CCR source
+     * @param strict Reject CCRs with schema errors
+     * @param projection The sections to unmarshal, <code>null</code> for the whole CCR
+     * @return the CCR or <code>null</code> if it was rejected
+     */
+    public ContinuityOfCareRecord validateCCR(CCRSource source, boolean strict, SectionProjection projection) {
+        ValidatonErrorHandler eHandler = newErrorHandler(!strict);
+        if (source == null){
+            Logger.getLogger(Evaluator.class.getName()).log(Level.WARNING, "CCR Source NULL");
+            return null;
+        }
+        if (engine == null){
+            Logger.getLogger(Evaluator.class.getName()).log(Level.SEVERE, "No CCR parsing engine available");
+            return null;
+        }
+        if (!preScreen(source, strict, eHandler)){
+            return null;
+        }
+        ValidationPolicy policy = config.getValidationPolicy();
+        if (policy != null && !policy.shouldValidate(source)){
+            return unmarshal(source, null, projection, eHandler);
+        }
+        ContinuityOfCareRecord ccr = validate(source, strict, projection, eHandler);
+        if (policy != null){
+            policy.recordOutcome(source, ccr != null && passed(eHandler, strict));
+        }
+        return ccr;
+    }
+
+    /*
+     * Validates and unmarshals a CCR that has passed the pre-screen
+     */
+    private ContinuityOfCareRecord validate(CCRSource source, boolean strict, SectionProjection projection, ValidatonErrorHandler eHandler) {
+        if (!strict && engine.getSchema() == null){
+            Logger.getLogger(Evaluator.class.getName()).log(Level.WARNING, "No CCR schema available, CCR will not be validated");
+            return unmarshal(source, null, projection, eHandler);
+        }
+        // The schema checks done while unmarshalling must see every section,
+        // so a CCR validated in the same pass is unmarshalled whole.  The
+        // projection only saves work when the CCR is validated on its own.
+        boolean separate = source.isRepeatable() && strict && !config.isSinglePassValidation();
+        if (!separate){
+            return strict ? validateAndUnmarshal(source, eHandler) : validateLenient(source, eHandler);
+        }
+        if (!validateOnly(source, strict, eHandler)){
+            // Errors were found in the CCR
+            return null;
+        }
+        return unmarshal(source, null, projection, eHandler);
+    }
+
+    /**
+     * Validates a CCR against the schema without unmarshalling it.  Used when
+     * the clinical data is extracted by streaming through the CCR instead of
+     * from a <code>ContinuityOfCareRecord</code>.  In lenient mode schema
+     * errors are kept as warnings and only CCRs that can not be read at all
+     * are rejected.
+     *
+     * @param source The CCR source, read once
+     * @param strict Reject CCRs with schema errors
+     * @return <code>true</code> if the CCR was accepted
+     */
+    public boolean isValidCCR(CCRSource source, boolean strict) {
+        ValidatonErrorHandler eHandler = newErrorHandler(!strict);
+        if (source == null){
+            Logger.getLogger(Evaluator.class.getName()).log(Level.WARNING, "CCR Source NULL");
+            return false;
+        }
+        if (!preScreen(source, strict, eHandler)){
+            return false;
+        }
+        ValidationPolicy policy = config.getValidationPolicy();
+        if (policy != null && !policy.shouldValidate(source)){
+            return true;
+        }
+        boolean valid = validateOnly(source, strict, eHandler);
+        if (policy != null){
+            policy.recordOutcome(source, valid && passed(eHandler, strict));
+        }
+        return valid;
+    }
+
+    /*
+     * The outcome given to the validation policy.  Warnings, such as the
+     * schema errors kept by lenient mode, do not count as a failed sample.
+     */
+    private static boolean passed(ValidatonErrorHandler eHandler, boolean strict) {
+        return strict ? eHandler.getErrorCount() == 0 : !eHandler.hasFatalErrors();
+    }
+
+    /*
+     * Validates a CCR that has passed the pre-screen without unmarshalling it
+     */
+    private boolean validateOnly(CCRSource source, boolean strict, ValidatonErrorHandler eHandler) {
+        Validator validator = engine == null ? null : engine.borrowValidator();
+        if (validator == null){
+            Logger.getLogger(Evaluator.class.getName()).log(Level.SEVERE, "No CCR schema available for validation");
+            return false;
+        }
+        StreamSource src = null;
         try {
-            // TODO Connect true CCR Validator
-            // First see if it a valid XML instance
-            if (ccrXML == null || "".equals(ccrXML)){
-                Logger.getLogger(Evaluator.class.getName()).log(Level.WARNING, "CCR XML String Empty or NULL");
-                return null;
-            }
-            StreamSource src = new StreamSource(new StringReader(ccrXML));
-            eHandler.resetErrors();
+            src = source.newStreamSource();
+            validator.setErrorHandler(eHandler);
             validator.validate(src);
-            if (!eHandler.hasErrors()){
-            try {
-                JAXBContext jc = JAXBContext.newInstance("org.astm.ccr");
-                Unmarshaller unmarshaller = jc.createUnmarshaller();
-                return (ContinuityOfCareRecord) unmarshaller.unmarshal(new StringReader(ccrXML));
-            } catch (JAXBException ex) {
-                Logger.getLogger(Evaluator.class.getName()).log(Level.WARNING, ex.getLocalizedMessage());
-                return null;
+        } catch (SAXException ex) {
+            Logger.getLogger(Evaluator.class.getName()).log(Level.WARNING, ex.getLocalizedMessage());
+            return false;
+        } catch (IOException ex) {
+            Logger.getLogger(Evaluator.class.getName()).log(Level.WARNING, ex.getLocalizedMessage());
+            return false;
+        } finally {
+            CCRSource.close(src);
+            engine.returnValidator(validator);
+        }
+        return strict ? !eHandler.hasErrors() : !eHandler.hasFatalErrors();
+    }
+
+    /*
+     * Runs the byte level pre-screen if it is turned on.  Returns false and
+     * records a fatal error if the CCR is rejected.  Lenient mode only
+     * rejects junk, the structure is left to lenient validation as it was
+     * before the pre-screen.
+     */
+    private boolean preScreen(CCRSource source, boolean strict, ValidatonErrorHandler eHandler) {
+        if (preScreen == null){
+            return true;
+        }
+        CCRPreScreen.Result r = preScreen.screen(source);
+        if (!r.isPassed() && !strict && r.isStructural()){
+            Logger.getLogger(Evaluator.class.getName()).log(Level.FINE, "CCR [{0}] left to lenient validation: {1}", new Object[]{source.getName(), r.getMessage()});
+            return true;
+        }
+        if (!r.isPassed()){
+            Logger.getLogger(Evaluator.class.getName()).log(Level.INFO, "CCR [{0}] rejected by pre-screen: {1}", new Object[]{source.getName(), r.getMessage()});
+            eHandler.addError(ValidatonErrorHandler.FATAL, r.getCode(), r.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Validates the CCR against the schema while it is being unmarshalled so
+     * the document is only parsed once.  Returns null if any errors were found.
+     */
+    private ContinuityOfCareRecord validateAndUnmarshal(CCRSource source, ValidatonErrorHandler eHandler) {
+        if (engine.getSchema() == null){
+            Logger.getLogger(Evaluator.class.getName()).log(Level.SEVERE, "No CCR schema available for validation");
+            return null;
+        }
+        ContinuityOfCareRecord ccr = unmarshal(source, engine.getSchema(), null, eHandler);
+        if (eHandler.hasErrors()){
+            // Errors were found in the CCR
+            return null;
+        }
+        return ccr;
+    }
+
+    /*
+     * Unmarshals the CCR once, collecting any schema errors as warnings.  Only
+     * returns null if the CCR could not be unmarshalled.
+     */
+    private ContinuityOfCareRecord validateLenient(CCRSource source, ValidatonErrorHandler eHandler) {
+        ContinuityOfCareRecord ccr = unmarshal(source, engine.getSchema(), null, eHandler);
+        if (ccr != null && eHandler.hasErrors()){
+            Logger.getLogger(Evaluator.class.getName()).log(Level.FINE, "CCR accepted with {0} validation warnings", eHandler.getWarningCount());
+        }
+        return ccr;
+    }
+
+    /*
+     * Unmarshals the CCR, validating against the schema if one is passed.
+     * The projection is only used when no schema is passed.
+     */
+    private ContinuityOfCareRecord unmarshal(CCRSource source, Schema schema, SectionProjection projection, ValidatonErrorHandler eHandler) {
+        Unmarshaller unmarshaller = null;
+        StreamSource src = null;
+        try {
+            unmarshaller = engine.borrowUnmarshaller();
+            if (schema != null){
+                unmarshaller.setSchema(schema);
+                unmarshaller.setEventHandler(eHandler);
             }
-            }else{
-                // Errors were found in the CCR
-                return null;
+            src = source.newStreamSource();
+            SectionProjection p = schema == null ? projection : null;
+            if (p != null){
+                return unmarshal(unmarshaller, p.createReader(src));
             }
-        } catch (SAXException ex) {
+            return (ContinuityOfCareRecord) unmarshaller.unmarshal(src);
+        } catch (XMLStreamException ex) {
             Logger.getLogger(Evaluator.class.getName()).log(Level.WARNING, ex.getLocalizedMessage());
+            return null;
+        } catch (JAXBException ex) {
+            Logger.getLogger(Evaluator.class.getName()).log(Level.WARNING, ex.getLocalizedMessage());
+            return null;
         } catch (IOException ex) {
             Logger.getLogger(Evaluator.class.getName()).log(Level.WARNING, ex.getLocalizedMessage());
+            return null;
+        } finally {
+            CCRSource.close(src);
+            engine.returnUnmarshaller(unmarshaller);
+        }
+    }
+
+    /*
+     * Unmarshals the CCR from a projected reader, closing the reader when done
+     */
+    private ContinuityOfCareRecord unmarshal(Unmarshaller unmarshaller, XMLStreamReader reader) throws JAXBException, XMLStreamException {
+        try {
+            return (ContinuityOfCareRecord) unmarshaller.unmarshal(reader);
+        } finally {
+            reader.close();
         }
-        return null;
     }
 
 //    private Document parseStreamSource(StreamSource source, boolean validating) {
@@ -126,21 +402,12 @@ public class CCRValidator {
 //    }
 
     private void setupValidator() {
+        if (config.isPreScreen()){
+            preScreen = new CCRPreScreen(config.getMaxCCRSize());
+        }
         try {
-            SchemaFactory sf = SchemaFactory.newInstance(javax.xml.XMLConstants.W3C_XML_SCHEMA_NS_URI);
-            URL xsdURL = this.getClass().getClassLoader().getResource(config.getCcrXSDLocation());
-            File xsdFile = null;
-            xsdFile = new File(xsdURL.toURI());
-            // load a WXS schema, represented by a Schema instance
-            Source schemaFile = new StreamSource(xsdFile);
-            Schema schema = sf.newSchema(schemaFile);
-            // create a Validator instance, which can be used to validate an instance document
-            validator = schema.newValidator();
-            eHandler = new ValidatonErrorHandler();
-            validator.setErrorHandler(eHandler);
-        } catch (SAXException ex) {
-            Logger.getLogger(Evaluator.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (URISyntaxException ex) {
+            engine = CCREngine.getInstance(config);
+        } catch (JAXBException ex) {
             Logger.getLogger(Evaluator.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
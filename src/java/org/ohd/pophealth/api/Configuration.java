@@ -14,6 +14,15 @@ public class Configuration {
     private String lvgConfLocation = "org/ohd/umls/lvg_db.cfg";
     private String ccrVocabLocation = "org/ohd/pophealth/ccr/importer/ccrvocabulary.json";
     private String ccrXSDLocation = "org/ohd/CCRV1.xsd";
+    private String warmupLocation = "org/ohd/pophealth/api/warmup-ccr.xml";
+    private int parserPoolSize = 0;  // 0 uses the CCREngine default
+    private boolean singlePassValidation = false;  // validate while unmarshalling
+    private int maxValidationErrors = 100;  // validation problems kept in full, 0 keeps all
+    private int validationFailFast = 0;  // stop validating after this many errors, 0 never stops
+    private boolean preScreen = true;  // quick byte level check before validation
+    private long maxCCRSize = 0;  // largest CCR accepted by the pre-screen, 0 for no limit
+    private ValidationPolicy validationPolicy = null;  // null validates every CCR
+    private int workerThreads = 0;  // threads used by evaluateAll, 0 uses one per processor
 
 
     public String getCcrVocabLocation() {
@@ -40,6 +49,117 @@ public class Configuration {
         this.lvgConfLocation = lvgConfLocation;
     }
 
+    public int getParserPoolSize() {
+        return parserPoolSize;
+    }
+
+    public void setParserPoolSize(int parserPoolSize) {
+        this.parserPoolSize = parserPoolSize;
+    }
+
+    public boolean isSinglePassValidation() {
+        return singlePassValidation;
+    }
+
+    /**
+     * When set the CCR is validated against the XSD while it is unmarshalled
+     * so the XML is only parsed once.  The whole CCR is then unmarshalled,
+     * a section projection is not used.
+     * @param singlePassValidation
+     */
+    public void setSinglePassValidation(boolean singlePassValidation) {
+        this.singlePassValidation = singlePassValidation;
+    }
+
+    public int getMaxValidationErrors() {
+        return maxValidationErrors;
+    }
+
+    /**
+     * Sets how many validation problems are kept with their full message.
+     * Problems past the cap are still counted by error code.
+     * @param maxValidationErrors The cap, 0 keeps all problems
+     */
+    public void setMaxValidationErrors(int maxValidationErrors) {
+        this.maxValidationErrors = maxValidationErrors;
+    }
+
+    public int getValidationFailFast() {
+        return validationFailFast;
+    }
+
+    /**
+     * Stops validating a CCR once this many errors have been found
+     * @param validationFailFast The number of errors, 0 to always validate the whole CCR
+     */
+    public void setValidationFailFast(int validationFailFast) {
+        this.validationFailFast = validationFailFast;
+    }
+
+    public boolean isPreScreen() {
+        return preScreen;
+    }
+
+    /**
+     * When set each CCR gets a quick check of its first and last bytes before
+     * it is parsed, see <code>CCRPreScreen</code>.  In lenient mode only CCRs
+     * the XML parser could not read are rejected, a wrong root element or
+     * namespace or a missing Patient or Actors is left to validation.
+     * @param preScreen
+     */
+    public void setPreScreen(boolean preScreen) {
+        this.preScreen = preScreen;
+    }
+
+    public long getMaxCCRSize() {
+        return maxCCRSize;
+    }
+
+    /**
+     * Sets the largest CCR, in bytes, accepted by the pre-screen
+     * @param maxCCRSize The limit, 0 for no limit
+     */
+    public void setMaxCCRSize(long maxCCRSize) {
+        this.maxCCRSize = maxCCRSize;
+    }
+
+    public ValidationPolicy getValidationPolicy() {
+        return validationPolicy;
+    }
+
+    /**
+     * Sets the policy that decides which CCRs are validated against the XSD.
+     * CCRs that are not validated are still pre-screened and unmarshalled.
+     * @param validationPolicy The policy or <code>null</code> to validate every CCR
+     */
+    public void setValidationPolicy(ValidationPolicy validationPolicy) {
+        this.validationPolicy = validationPolicy;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * Sets the number of threads used to evaluate a batch of CCRs
+     * @param workerThreads The number of threads, 0 uses one per processor
+     */
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public String getWarmupLocation() {
+        return warmupLocation;
+    }
+
+    /**
+     * Sets the class path location of the CCR <code>EvaluatorPool</code> warms up with
+     * @param warmupLocation
+     */
+    public void setWarmupLocation(String warmupLocation) {
+        this.warmupLocation = warmupLocation;
+    }
+
     public String getUmlsConfLocation() {
         return umlsConfLocation;
     }
@@ -0,0 +1,119 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.ohd.pophealth.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * SHA-256 hashes of CCR content, written as lower case hex.  Byte sources are
+ * hashed as they are, character sources (Strings) are hashed as UTF-8.
+ *
+ * @author ohdohd
+ */
+public class ContentHash {
+
+    public static final String ALGORITHM = "SHA-256";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private ContentHash() {
+    }
+
+    /**
+     * Hashes the content of a CCR source.  Sources that can only be read once
+     * can not be hashed without using them up.
+     * @param source The CCR source
+     * @return the hash or <code>null</code> if the source can only be read once
+     * @throws IOException
+     */
+    public static String of(CCRSource source) throws IOException {
+        if (!source.isRepeatable()) {
+            return null;
+        }
+        StreamSource src = source.newStreamSource();
+        try {
+            if (src.getInputStream() != null) {
+                return of(src.getInputStream());
+            } else if (src.getReader() != null) {
+                return of(src.getReader());
+            }
+            return null;
+        } finally {
+            CCRSource.close(src);
+        }
+    }
+
+    public static String of(byte[] b) {
+        MessageDigest md = newDigest();
+        md.update(b);
+        return toHex(md.digest());
+    }
+
+    public static String of(String s) {
+        return of(s.getBytes(Charset.forName("UTF-8")));
+    }
+
+    public static String of(InputStream is) throws IOException {
+        MessageDigest md = newDigest();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = is.read(buf)) > 0) {
+            md.update(buf, 0, n);
+        }
+        return toHex(md.digest());
+    }
+
+    public static String of(Reader r) throws IOException {
+        MessageDigest md = newDigest();
+        CharsetEncoder enc = Charset.forName("UTF-8").newEncoder();
+        CharBuffer in = CharBuffer.allocate(4096);
+        ByteBuffer out = ByteBuffer.allocate(16384);
+        boolean eof = false;
+        while (!eof) {
+            eof = r.read(in) < 0;
+            in.flip();
+            CoderResult cr = enc.encode(in, out, eof);
+            if (cr.isError()) {
+                cr.throwException();
+            }
+            in.compact();
+            out.flip();
+            md.update(out);
+            out.clear();
+        }
+        enc.flush(out);
+        out.flip();
+        md.update(out);
+        return toHex(md.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String toHex(byte[] b) {
+        char[] c = new char[b.length * 2];
+        for (int i = 0; i < b.length; i++) {
+            c[i * 2] = HEX[(b[i] >> 4) & 0xF];
+            c[i * 2 + 1] = HEX[b[i] & 0xF];
+        }
+        return new String(c);
+    }
+}
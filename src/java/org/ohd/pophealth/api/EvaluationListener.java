@@ -0,0 +1,22 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.ohd.pophealth.api;
+
+/**
+ * Told about each CCR evaluated by <code>Evaluator.evaluateAsync</code>.  It
+ * is called on the thread that did the evaluation, so it should hand off any
+ * slow work.
+ *
+ * @author ohdohd
+ */
+public interface EvaluationListener {
+
+    /**
+     * Called once the CCR has been evaluated or has failed
+     * @param result The result
+     */
+    public void evaluated(EvaluationResult result);
+}
@@ -0,0 +1,412 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.ohd.pophealth.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.astm.ccr.ContinuityOfCareRecord;
+import org.ohd.pophealth.ccr.importer.SectionProjection;
+import org.ohd.pophealth.json.clinicalmodel.Record;
+import org.ohd.pophealth.evaluator.MeasureIndex;
+import org.ohd.pophealth.preprocess.PreProcessStats;
+import org.ohd.pophealth.preprocess.PreProcessor;
+
+/**
+ * Evaluates CCRs in stages, each stage with its own threads, connected by
+ * bounded queues:
+ * <ol>
+ * <li>PARSE validates and unmarshals the CCR</li>
+ * <li>PREPROCESS runs the preprocessing turned on in the Evaluator, which may
+ * wait on UMLS lookups</li>
+ * <li>EXTRACT creates the <code>Record</code></li>
+ * <li>EVALUATE evaluates the record against the measures</li>
+ * <li>SERIALIZE writes the result as JSON</li>
+ * </ol>
+ * When a stage falls behind its queue fills up and the stage before it waits,
+ * back to <code>submit</code>, so a slow stage throttles the intake instead
+ * of filling the heap.  Each result is handed to the listener by the thread
+ * that finished it.  Invalid CCRs and failures leave the pipeline at the stage
+ * they happened in.
+ * <p>
+ * The measures and preprocessing settings of the Evaluator are read when a
+ * CCR is submitted.  Streaming extraction is not used by the pipeline.
+ *
+ * @author ohdohd
+ */
+public class EvaluationPipeline implements Closeable {
+
+    private final static Logger LOG = Logger.getLogger(EvaluationPipeline.class.getName());
+
+    public static enum Stage {
+
+        PARSE, PREPROCESS, EXTRACT, EVALUATE, SERIALIZE
+    }
+    private final Evaluator evaluator;
+    private final EvaluationListener listener;
+    private final EnumMap<Stage, Integer> threads = new EnumMap<Stage, Integer>(Stage.class);
+    private final EnumMap<Stage, Integer> capacities = new EnumMap<Stage, Integer>(Stage.class);
+    private final EnumMap<Stage, StageRunner> runners = new EnumMap<Stage, StageRunner>(Stage.class);
+    private final ArrayList<Thread> workers = new ArrayList<Thread>();
+    private final Object outstandingLock = new Object();
+    private int outstanding = 0;
+    private int submitted = 0;
+    private volatile boolean started = false;
+    private volatile boolean closed = false;
+
+    EvaluationPipeline(Evaluator evaluator, EvaluationListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("A listener is needed for the results");
+        }
+        this.evaluator = evaluator;
+        this.listener = listener;
+        int cpus = Runtime.getRuntime().availableProcessors();
+        threads.put(Stage.PARSE, cpus);
+        threads.put(Stage.PREPROCESS, 2);
+        threads.put(Stage.EXTRACT, Math.max(1, cpus / 2));
+        threads.put(Stage.EVALUATE, Math.max(1, cpus / 2));
+        threads.put(Stage.SERIALIZE, 1);
+        for (Stage s : Stage.values()) {
+            capacities.put(s, 64);
+        }
+    }
+
+    /**
+     * Sets the number of threads working on a stage, before the pipeline is started
+     * @param stage The stage
+     * @param count The number of threads
+     */
+    public void setThreads(Stage stage, int count) {
+        checkNotStarted();
+        threads.put(stage, Math.max(1, count));
+    }
+
+    public int getThreads(Stage stage) {
+        return threads.get(stage);
+    }
+
+    /**
+     * Sets the number of CCRs that can wait in front of a stage, before the
+     * pipeline is started
+     * @param stage The stage
+     * @param capacity The queue size
+     */
+    public void setQueueCapacity(Stage stage, int capacity) {
+        checkNotStarted();
+        capacities.put(stage, Math.max(1, capacity));
+    }
+
+    public int getQueueCapacity(Stage stage) {
+        return capacities.get(stage);
+    }
+
+    private void checkNotStarted() {
+        if (started) {
+            throw new IllegalStateException("Pipeline has already been started");
+        }
+    }
+
+    /**
+     * Starts the stage threads
+     */
+    public synchronized void start() {
+        checkNotStarted();
+        StageRunner serialize = new StageRunner(Stage.SERIALIZE, null) {
+
+            void process(Job job) {
+                // Writes the JSON now so the listener gets it ready made
+                job.result.getJson();
+                job.done = true;
+            }
+        };
+        StageRunner evaluate = new StageRunner(Stage.EVALUATE, serialize) {
+
+            void process(Job job) {
+                long t = System.nanoTime();
+                job.result.setRecord(evaluator.getQualityMeasureEvaluator().evaluateIndex(job.record, job.measures));
+                job.result.addTiming(EvaluationResult.EVALUATE, t);
+                job.record = null;
+            }
+        };
+        StageRunner extract = new StageRunner(Stage.EXTRACT, evaluate) {
+
+            void process(Job job) {
+                long t = System.nanoTime();
+                job.record = evaluator.getRecordCreator().createRecord(job.ccr);
+                job.result.addTiming(EvaluationResult.EXTRACT, t);
+                job.ccr = null;
+            }
+        };
+        StageRunner preprocess = new StageRunner(Stage.PREPROCESS, extract) {
+
+            void process(Job job) {
+                if (!job.fixEncounters && !job.fixTobacco && !job.inferCodes) {
+                    return;
+                }
+                long t = System.nanoTime();
+                PreProcessor pp = evaluator.getPreProcessor();
+                PreProcessStats stats = new PreProcessStats();
+                if (job.fixEncounters) {
+                    job.ccr = pp.fixEncounters(job.ccr, stats);
+                }
+                if (job.fixTobacco) {
+                    job.ccr = pp.fixTobaccoHx(job.ccr, stats);
+                }
+                if (job.inferCodes) {
+                    job.ccr = pp.inferCodes(job.ccr, stats);
+                }
+                job.result.setPreProcessStats(stats);
+                job.result.addTiming(EvaluationResult.PREPROCESS, t);
+            }
+        };
+        StageRunner parse = new StageRunner(Stage.PARSE, preprocess) {
+
+            void process(Job job) {
+                long t = System.nanoTime();
+                CCRValidator validator = evaluator.getValidator();
+                job.ccr = validator.validateCCR(job.source, job.strict, job.projection);
+                // The errors are kept per thread so must be read here
+                job.result.setValidationErrors(validator.getLastErrorHandler());
+                job.result.addTiming(EvaluationResult.VALIDATE, t);
+                job.source = null;
+                if (job.ccr == null) {
+                    job.done = true;
+                }
+            }
+        };
+        for (StageRunner r : new StageRunner[]{parse, preprocess, extract, evaluate, serialize}) {
+            runners.put(r.stage, r);
+            for (int i = 1; i <= threads.get(r.stage); i++) {
+                Thread t = new Thread(r, "ccr-pipeline-" + r.stage.name().toLowerCase() + "-" + i);
+                t.setDaemon(true);
+                workers.add(t);
+                t.start();
+            }
+        }
+        started = true;
+    }
+
+    /**
+     * Hands a CCR to the pipeline, waiting while the first stage is full.  A
+     * CCR that can only be read once is read into memory first, so the caller
+     * can move on to the next one.
+     * @param source The CCR
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void submit(CCRSource source) throws InterruptedException {
+        if (!started || closed) {
+            throw new IllegalStateException("Pipeline is not running");
+        }
+        Job job = new Job();
+        synchronized (outstandingLock) {
+            job.index = submitted++;
+            outstanding++;
+        }
+        job.name = source == null ? null : source.getName();
+        job.result = new EvaluationResult(job.name);
+        job.start = System.currentTimeMillis();
+        job.strict = evaluator.isStrictValidation();
+        // The index and projection of the same measures
+        Evaluator.MeasureSet measures = evaluator.getMeasureSet();
+        job.measures = measures.index;
+        job.projection = measures.projection;
+        job.fixEncounters = evaluator.isPreProcess_fixEncounters();
+        job.fixTobacco = evaluator.isPreProcess_fixTobacco();
+        job.inferCodes = evaluator.isPreProcess_inferCodes();
+        try {
+            job.source = source == null ? null : CCRSource.repeatable(source);
+        } catch (IOException ex) {
+            job.failure = ex;
+            finish(job);
+            return;
+        }
+        try {
+            runners.get(Stage.PARSE).queue.put(job);
+        } catch (InterruptedException ex) {
+            synchronized (outstandingLock) {
+                outstanding--;
+                outstandingLock.notifyAll();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Number of CCRs waiting in front of a stage
+     * @param stage The stage
+     * @return the queue depth, 0 if the pipeline has not been started
+     */
+    public int getQueueDepth(Stage stage) {
+        StageRunner r = runners.get(stage);
+        return r == null ? 0 : r.queue.size();
+    }
+
+    /**
+     * The number of CCRs waiting in front of each stage
+     * @return the queue depths in stage order
+     */
+    public Map<Stage, Integer> getQueueDepths() {
+        EnumMap<Stage, Integer> depths = new EnumMap<Stage, Integer>(Stage.class);
+        for (Stage s : Stage.values()) {
+            depths.put(s, getQueueDepth(s));
+        }
+        return depths;
+    }
+
+    /**
+     * Number of CCRs submitted whose result has not yet been given to the listener
+     * @return the count
+     */
+    public int getOutstanding() {
+        synchronized (outstandingLock) {
+            return outstanding;
+        }
+    }
+
+    /**
+     * Waits for every submitted CCR to leave the pipeline
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitCompletion() throws InterruptedException {
+        synchronized (outstandingLock) {
+            while (outstanding > 0) {
+                outstandingLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Stops taking CCRs, waits for the ones already submitted and stops the
+     * stage threads
+     * @throws IOException if interrupted while waiting
+     */
+    public void close() throws IOException {
+        closed = true;
+        try {
+            awaitCompletion();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the pipeline to finish");
+        } finally {
+            synchronized (this) {
+                for (Thread t : workers) {
+                    t.interrupt();
+                }
+                workers.clear();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuffer sb = new StringBuffer();
+        sb.append("EvaluationPipeline outstanding=").append(getOutstanding());
+        for (Stage s : Stage.values()) {
+            sb.append(" ").append(s.name().toLowerCase()).append("=").append(getQueueDepth(s));
+            sb.append("/").append(capacities.get(s));
+        }
+        return sb.toString();
+    }
+
+    /*
+     * Gives a finished job to the listener
+     */
+    private void finish(Job job) {
+        EvaluationResult result = job.result;
+        result.setIndex(job.index);
+        result.setElapsedMillis(System.currentTimeMillis() - job.start);
+        if (job.failure != null) {
+            result.setFailure(job.failure);
+        }
+        try {
+            listener.evaluated(result);
+        } catch (RuntimeException ex) {
+            LOG.log(Level.WARNING, "Evaluation listener failed for CCR [" + job.name + "]", ex);
+        } finally {
+            synchronized (outstandingLock) {
+                outstanding--;
+                outstandingLock.notifyAll();
+            }
+        }
+    }
+
+    /*
+     * The threads and input queue of one stage
+     */
+    private abstract class StageRunner implements Runnable {
+
+        final Stage stage;
+        final StageRunner next;
+        final BlockingQueue<Job> queue;
+
+        StageRunner(Stage stage, StageRunner next) {
+            this.stage = stage;
+            this.next = next;
+            this.queue = new ArrayBlockingQueue<Job>(capacities.get(stage));
+        }
+
+        abstract void process(Job job);
+
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                Job job;
+                try {
+                    job = queue.take();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                try {
+                    process(job);
+                } catch (RuntimeException ex) {
+                    LOG.log(Level.WARNING, "Could not " + stage.name().toLowerCase() + " CCR [" + job.name + "]", ex);
+                    job.failure = ex;
+                } catch (StackOverflowError ex) {
+                    LOG.log(Level.WARNING, "Could not " + stage.name().toLowerCase() + " CCR [" + job.name + "]", ex);
+                    job.failure = ex;
+                }
+                if (job.done || job.failure != null || next == null) {
+                    finish(job);
+                    continue;
+                }
+                try {
+                    next.queue.put(job);
+                } catch (InterruptedException ex) {
+                    job.failure = ex;
+                    finish(job);
+                    return;
+                }
+            }
+        }
+    }
+
+    /*
+     * One CCR moving through the stages, only worked on by one thread at a time
+     */
+    private static class Job {
+
+        int index;
+        String name;
+        long start;
+        boolean strict;
+        boolean fixEncounters;
+        boolean fixTobacco;
+        boolean inferCodes;
+        MeasureIndex measures;
+        SectionProjection projection;
+        CCRSource source;
+        ContinuityOfCareRecord ccr;
+        Record record;
+        EvaluationResult result;
+        Throwable failure;
+        boolean done = false;
+    }
+}
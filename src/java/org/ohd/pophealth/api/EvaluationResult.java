@@ -0,0 +1,272 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.ohd.pophealth.api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.astm.ccr.ContinuityOfCareRecord;
+import org.codehaus.jackson.JsonGenerator;
+import org.ohd.pophealth.json.JsonMapper;
+import org.ohd.pophealth.json.measuremodel.PopHealthPatientRecord;
+import org.ohd.pophealth.preprocess.PreProcessStats;
+
+/**
+ * The outcome of evaluating one CCR.  A valid CCR has the popHealth result
+ * as a <code>PopHealthPatientRecord</code>, an invalid one has only its
+ * validation errors.  A CCR that could not be evaluated because of an
+ * unexpected exception has a failure, in a batch the rest of the batch is not
+ * affected.
+ * <p>
+ * The result is only written as JSON when <code>getJson</code> or
+ * <code>writeJson</code> is called, so callers that work with the result
+ * objects never pay for JSON encoding.
+ *
+ * @author ohdohd
+ */
+public class EvaluationResult {
+
+    private final static Logger LOG = Logger.getLogger(EvaluationResult.class.getName());
+    // Stage names used for the timings
+    public static final String CACHE = "cache";
+    public static final String VALIDATE = "validate";
+    public static final String PREPROCESS = "preprocess";
+    public static final String EXTRACT = "extract";
+    public static final String EVALUATE = "evaluate";
+    public static final String SERIALIZE = "serialize";
+    private int index;
+    private String name;
+    private PopHealthPatientRecord record;
+    private ValidatonErrorHandler validationErrors;
+    private PreProcessStats preProcessStats;
+    private ContinuityOfCareRecord processedCCR;
+    private Throwable failure;
+    private String json;  // written on demand
+    private String cachedJson;  // compact, from a ResultCache
+    private boolean cached = false;
+    private long elapsedMillis;
+    private final LinkedHashMap<String, Long> timings = new LinkedHashMap<String, Long>();
+
+    public EvaluationResult(int index, String name, Throwable failure, long elapsedMillis) {
+        this.index = index;
+        this.name = name;
+        this.failure = failure;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    EvaluationResult(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Position of the CCR in the batch input, starting at 0
+     * @return the index
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    void setIndex(int index) {
+        this.index = index;
+    }
+
+    /**
+     * Name of the CCR source
+     * @return the name, may be <code>null</code>
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The popHealth result
+     * @return the result or <code>null</code> if the CCR was invalid, the
+     *      evaluation failed or the result came from a <code>ResultCache</code>
+     */
+    public PopHealthPatientRecord getRecord() {
+        return record;
+    }
+
+    void setRecord(PopHealthPatientRecord record) {
+        this.record = record;
+    }
+
+    /**
+     * Checks if the CCR was valid and evaluated
+     * @return <code>true</code> if there is a popHealth result
+     */
+    public boolean isValid() {
+        return record != null || cached;
+    }
+
+    /**
+     * Checks if the result came from a <code>ResultCache</code>.  A cached
+     * result only has its JSON and no record, errors or stats.  Its JSON is
+     * written the same way as that of a result that was evaluated.
+     * @return <code>true</code> if the CCR was not evaluated again
+     */
+    public boolean isCached() {
+        return cached;
+    }
+
+    void setCachedJson(String json) {
+        this.cachedJson = json;
+        this.cached = true;
+    }
+
+    /**
+     * The problems found validating the CCR.  A valid CCR may still have
+     * warnings.
+     * @return the validation errors or <code>null</code> if the CCR was not validated
+     */
+    public ValidatonErrorHandler getValidationErrors() {
+        return validationErrors;
+    }
+
+    void setValidationErrors(ValidatonErrorHandler validationErrors) {
+        this.validationErrors = validationErrors;
+    }
+
+    /**
+     * What preprocessing did to the CCR
+     * @return the stats or <code>null</code> if no preprocessing was done
+     */
+    public PreProcessStats getPreProcessStats() {
+        return preProcessStats;
+    }
+
+    void setPreProcessStats(PreProcessStats preProcessStats) {
+        this.preProcessStats = preProcessStats;
+    }
+
+    /**
+     * The CCR after preprocessing, see <code>Evaluator.setKeepProcessedCCR</code>
+     * @return the CCR or <code>null</code> if it was not kept
+     */
+    public ContinuityOfCareRecord getProcessedCCR() {
+        return processedCCR;
+    }
+
+    void setProcessedCCR(ContinuityOfCareRecord processedCCR) {
+        this.processedCCR = processedCCR;
+    }
+
+    /**
+     * The exception that stopped the evaluation
+     * @return the exception or <code>null</code> if the evaluation finished
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    void setFailure(Throwable failure) {
+        this.failure = failure;
+    }
+
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    void setElapsedMillis(long elapsedMillis) {
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * Time spent in each stage, in the order the stages ran.  Stages that did
+     * not run are left out.
+     * @return stage name to time in nanoseconds
+     */
+    public Map<String, Long> getTimings() {
+        return Collections.unmodifiableMap(timings);
+    }
+
+    /**
+     * Records the time spent in a stage
+     * @param stage The stage name
+     * @param since <code>System.nanoTime()</code> when the stage started
+     * @return <code>System.nanoTime()</code> now, the start of the next stage
+     */
+    long addTiming(String stage, long since) {
+        long now = System.nanoTime();
+        Long t = timings.get(stage);
+        timings.put(stage, (t == null ? 0 : t) + now - since);
+        return now;
+    }
+
+    /**
+     * The popHealth result as JSON, or the validation errors if the CCR was
+     * invalid.  Written the first time it is asked for.
+     * @return the JSON or <code>null</code> if the evaluation failed
+     */
+    public synchronized String getJson() {
+        if (json == null && failure == null) {
+            long start = System.nanoTime();
+            try {
+                if (record != null) {
+                    json = record.toJson(true);
+                } else if (cachedJson != null) {
+                    json = JsonMapper.reformat(cachedJson, true);
+                } else if (validationErrors != null) {
+                    json = validationErrors.toJson(true);
+                }
+            } catch (IOException ex) {
+                LOG.log(Level.SEVERE, "Could not write result for CCR [" + name + "]", ex);
+            }
+            addTiming(SERIALIZE, start);
+        }
+        return json;
+    }
+
+    /**
+     * Writes the popHealth result, or the validation errors if the CCR was
+     * invalid, to a stream as UTF-8 JSON.  The stream is flushed but not closed.
+     * @param os The stream
+     * @param prettyPrint Should the JSON be indented
+     * @throws IOException
+     */
+    public void writeJson(OutputStream os, boolean prettyPrint) throws IOException {
+        if (record != null) {
+            record.toJson(os, prettyPrint);
+        } else if (cachedJson != null) {
+            JsonMapper.reformat(cachedJson, os, prettyPrint);
+        } else {
+            String s = json != null ? json : (validationErrors == null ? null : validationErrors.toJson(prettyPrint));
+            if (s != null) {
+                os.write(s.getBytes("UTF-8"));
+                os.flush();
+            }
+        }
+    }
+
+    /**
+     * Writes the popHealth result of a valid CCR as a JSON object to a
+     * generator the caller owns, indented or compact as the generator is
+     * @param jg The generator
+     * @throws IOException
+     */
+    public void writeJson(JsonGenerator jg) throws IOException {
+        if (record != null) {
+            record.writeJson(jg);
+        } else if (cachedJson != null) {
+            JsonMapper.copy(cachedJson, jg);
+        } else {
+            throw new IllegalStateException("CCR [" + name + "] has no popHealth result");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EvaluationResult [" + index + "] " + name + (cached ? " cached" : "") + (isFailed() ? " failed: " + failure : " in " + elapsedMillis + " ms " + timings);
+    }
+}
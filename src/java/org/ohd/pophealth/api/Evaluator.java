@@ -5,26 +5,57 @@
 package org.ohd.pophealth.api;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.transform.stream.StreamSource;
 import org.astm.ccr.ContinuityOfCareRecord;
 import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.map.JsonMappingException;
 import org.ohd.pophealth.ccr.importer.InCompleteVocabularyException;
 import org.ohd.pophealth.ccr.importer.RecordCreator;
+import org.ohd.pophealth.ccr.importer.SectionProjection;
+import org.ohd.pophealth.ccr.importer.StreamingRecordCreator;
 import org.ohd.pophealth.ccr.importer.Vocabulary;
+import org.ohd.pophealth.evaluator.MeasureIndex;
 import org.ohd.pophealth.evaluator.QualityMeasureEvaluator;
+import org.ohd.pophealth.evaluator.QualityMeasurePlan;
+import org.ohd.pophealth.json.JsonMapper;
 import org.ohd.pophealth.json.MeasureReader;
+import org.ohd.pophealth.json.measuremodel.PopHealthPatientRecord;
 import org.ohd.pophealth.json.measuremodel.QualityMeasure;
 import org.ohd.pophealth.json.clinicalmodel.Record;
+import org.ohd.pophealth.preprocess.PreProcessStats;
 import org.ohd.pophealth.preprocess.PreProcessor;
 
 /**
  * This is the main entry class for the popHealth CCR Validator/Importer.  Additional
  * service classes and implementation can be built using this class
+ * <p>
+ * The <code>evaluate</code> methods can be called from many threads at once on
+ * the same Evaluator.  All of the working state of an evaluation is kept in the
+ * call, the settings and measures are read once at the start of each call.
+ * Validation errors returned for an invalid CCR are those of the calling thread.
  *
  * @author ohdohd
  */
@@ -33,14 +64,36 @@ public class Evaluator implements Closeable{
     private final static Logger LOG = Logger.getLogger(Evaluator.class.getName());
     private QualityMeasureEvaluator qme;
     private RecordCreator rc;
-    private ArrayList<QualityMeasure> qMeasures;
+    private StreamingRecordCreator streamingRC;
+    // Never changed once set, addMeasure and setSectionProjection replace it
+    // so calls in progress keep working with the measures they started with
+    private volatile MeasureSet measureSet;
     private PreProcessor pp;
     private Configuration config;
-    boolean preProcess_inferCodes = false;
-    boolean preProcess_fixTobacco = false;
-    boolean preProcess_fixEncounters = false;
+    private final String configVersion;  // for the ResultCache keys
+    volatile boolean preProcess_inferCodes = false;
+    volatile boolean preProcess_fixTobacco = false;
+    volatile boolean preProcess_fixEncounters = false;
     private CCRValidator validator;
-    private boolean strictValidation = true;
+    private volatile boolean strictValidation = true;
+    private volatile boolean streamingExtraction = false;
+    private volatile boolean sectionProjection = false;
+    private volatile boolean keepProcessedCCR = false;
+    private ExecutorService workers;  // created on the first evaluateAll
+    private volatile ExecutorService asyncExecutor;  // owned by the caller, null uses workers
+    private final AtomicInteger asyncCount = new AtomicInteger();
+    private volatile ResultCache resultCache;
+
+    /**
+     * The order <code>evaluateAll</code> hands back its results in
+     */
+    public static enum ResultOrder {
+
+        /** The same order as the CCRs were given in */
+        INPUT,
+        /** As soon as each CCR is evaluated */
+        COMPLETION
+    }
 
     public Evaluator() {
         this(new Configuration());
@@ -54,7 +107,7 @@ public class Evaluator implements Closeable{
      */
     public Evaluator(ArrayList<QualityMeasure> qMeasures) {
         this();
-        this.qMeasures = qMeasures;
+        useMeasures(new ArrayList<QualityMeasure>(qMeasures));
     }
 
     /**
@@ -65,22 +118,38 @@ public class Evaluator implements Closeable{
      */
     public Evaluator(Configuration config, ArrayList<QualityMeasure> qMeasures) {
         this(config);
-        this.qMeasures = qMeasures;
+        useMeasures(new ArrayList<QualityMeasure>(qMeasures));
     }
 
     /**
      * Generic constructor.  Must call at least one of the <code>addMeasure</code>
      * methods to add quality measures to be evaluated.
      */
-    public Evaluator(Configuration config) {
+    public Evaluator(final Configuration config) {
+        this.config = config;
+        this.configVersion = configVersion(config);
+        // Compiling the XSD takes the longest so it is done while the
+        // vocabulary is loaded.  UMLS is only started if codes are inferred.
+        FutureTask<CCRValidator> validatorTask = new FutureTask<CCRValidator>(new Callable<CCRValidator>() {
+
+            public CCRValidator call() {
+                return new CCRValidator(config);
+            }
+        });
+        Thread init = new Thread(validatorTask, "evaluator-init");
+        init.setDaemon(true);
+        init.start();
         try {
             qme = new QualityMeasureEvaluator();
+            useMeasures(new ArrayList<QualityMeasure>());
+            URL umlsConf = this.getClass().getClassLoader().getResource(config.getUmlsConfLocation());
+            if (umlsConf == null) {
+                LOG.log(Level.WARNING, "UMLS configuration {0} not found, codes can not be inferred", config.getUmlsConfLocation());
+            }
+            pp = new PreProcessor(umlsConf == null ? null : umlsConf.getFile(), config.getLvgConfLocation());
             Vocabulary v = Vocabulary.fromJson(this.getClass().getClassLoader().getResourceAsStream(config.getCcrVocabLocation()));
             rc = new RecordCreator(v);
-            qMeasures = new ArrayList<QualityMeasure>();
-            URL umlsConf = this.getClass().getClassLoader().getResource(config.getUmlsConfLocation());
-            pp = new PreProcessor(umlsConf.getFile(), config.getLvgConfLocation());
-            validator = new CCRValidator(config);
+            streamingRC = new StreamingRecordCreator(rc);
         } catch (InCompleteVocabularyException ex) {
             Logger.getLogger(Evaluator.class.getName()).log(Level.SEVERE, null, ex);
         } catch (JsonMappingException ex) {
@@ -90,6 +159,14 @@ public class Evaluator implements Closeable{
         } catch (IOException ex) {
             Logger.getLogger(Evaluator.class.getName()).log(Level.SEVERE, null, ex);
         }
+        try {
+            validator = validatorTask.get();
+        } catch (ExecutionException ex) {
+            Logger.getLogger(Evaluator.class.getName()).log(Level.SEVERE, null, ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            Logger.getLogger(Evaluator.class.getName()).log(Level.SEVERE, "Interrupted while creating the CCR validator", ex);
+        }
     }
 
     public boolean isPreProcess_fixEncounters() {
@@ -112,8 +189,28 @@ public class Evaluator implements Closeable{
         return preProcess_inferCodes;
     }
 
+    /**
+     * Turns on adding codes from UMLS.  UMLS and LVG are started in the
+     * background the first time this is turned on.
+     *
+     * @param preProcess_inferCodes
+     */
     public void setPreProcess_inferCodes(boolean preProcess_inferCodes) {
         this.preProcess_inferCodes = preProcess_inferCodes;
+        if (preProcess_inferCodes && pp != null && !pp.isUmlsStarted()) {
+            Thread t = new Thread(new Runnable() {
+
+                public void run() {
+                    try {
+                        pp.startUmls();
+                    } catch (RuntimeException ex) {
+                        LOG.log(Level.SEVERE, "Could not start UMLS", ex);
+                    }
+                }
+            }, "umls-init");
+            t.setDaemon(true);
+            t.start();
+        }
     }
 
     public boolean isStrictValidation() {
@@ -124,6 +221,137 @@ public class Evaluator implements Closeable{
         this.strictValidation = strictValidation;
     }
 
+    public boolean isStreamingExtraction() {
+        return streamingExtraction;
+    }
+
+    /**
+     * When set the clinical data is extracted while streaming through the CCR
+     * instead of from a full JAXB object graph, which keeps memory use low for
+     * very large CCRs.  Only used when no preprocessing is turned on, since the
+     * preprocessing steps work on the full CCR, and the CCR source can be read
+     * twice (once to validate, once to extract).
+     *
+     * @param streamingExtraction
+     */
+    public void setStreamingExtraction(boolean streamingExtraction) {
+        this.streamingExtraction = streamingExtraction;
+    }
+
+
+    public boolean isKeepProcessedCCR() {
+        return keepProcessedCCR;
+    }
+
+    /**
+     * When set <code>evaluateResult</code> keeps the CCR, after preprocessing,
+     * in the result so it can be written out.  Not kept when streaming
+     * extraction is used.
+     *
+     * @param keepProcessedCCR
+     */
+    public void setKeepProcessedCCR(boolean keepProcessedCCR) {
+        this.keepProcessedCCR = keepProcessedCCR;
+    }
+
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Sets the cache used to answer CCRs that were evaluated before.  Only
+     * CCR sources that can be read more than once are cached, use
+     * <code>CCRSource.repeatable</code> to buffer a stream.  The cache can be
+     * shared with other Evaluators.  The keys hold the settings that change
+     * the results, including the vocabulary, XSD, UMLS and pre-screen
+     * settings of the <code>Configuration</code>, so Evaluators with
+     * different settings never answer with each other's results.
+     *
+     * @param resultCache The cache, <code>null</code> to evaluate every CCR
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * A hash of the quality measures, which changes when a measure is added
+     * or changed.  Used in the <code>ResultCache</code> keys.
+     * @return the version
+     */
+    public String getMeasureSetVersion() {
+        return measureSet.version;
+    }
+
+    /*
+     * The cache key of a CCR with the current settings, null if the CCR can
+     * not be cached
+     */
+    private String cacheKey(ResultCache cache, CCRSource source, boolean strictValidation, MeasureSet measures) {
+        if (cache == null || source == null || !source.isRepeatable()) {
+            return null;
+        }
+        String hash;
+        try {
+            hash = ContentHash.of(source);
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, "Could not hash CCR [" + source.getName() + "]", ex);
+            return null;
+        }
+        if (hash == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(hash);
+        sb.append(':').append(strictValidation ? 's' : 'l');
+        sb.append(preProcess_fixEncounters ? 'E' : '-');
+        sb.append(preProcess_fixTobacco ? 'T' : '-');
+        sb.append(preProcess_inferCodes ? 'I' : '-');
+        sb.append(measures.projection != null ? 'P' : '-');
+        // A sampling policy lets some CCRs through without validation
+        sb.append(config.getValidationPolicy() != null ? 'V' : '-');
+        sb.append(':').append(configVersion);
+        sb.append(':').append(measures.version);
+        return sb.toString();
+    }
+
+    /*
+     * A hash of the settings that are read when the Evaluator is built and
+     * change its results
+     */
+    private static String configVersion(Configuration config) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("vocabulary=").append(config.getCcrVocabLocation()).append('\n');
+        sb.append("xsd=").append(config.getCcrXSDLocation()).append('\n');
+        sb.append("umls=").append(config.getUmlsConfLocation()).append('\n');
+        sb.append("lvg=").append(config.getLvgConfLocation()).append('\n');
+        sb.append("preScreen=").append(config.isPreScreen()).append('\n');
+        sb.append("maxCCRSize=").append(config.getMaxCCRSize()).append('\n');
+        return ContentHash.of(sb.toString());
+    }
+
+    public boolean isSectionProjection() {
+        return sectionProjection;
+    }
+
+    /**
+     * When set only the CCR <Body> sections needed by the added measures are
+     * unmarshalled, all other sections are skipped by the parser.  The
+     * projection is worked out again each time a measure is added, and kept
+     * with the measures so a call always parses with the projection of the
+     * measures it evaluates.
+     * <p>
+     * The projection is used by streaming extraction, and by strict
+     * validation without <code>Configuration.setSinglePassValidation</code>
+     * where the CCR is validated and unmarshalled in two parses anyway.  In
+     * lenient or single pass mode the schema checks made while unmarshalling
+     * must see every section, so the CCR is unmarshalled whole and the
+     * projection is not used.
+     *
+     * @param sectionProjection
+     */
+    public synchronized void setSectionProjection(boolean sectionProjection) {
+        this.sectionProjection = sectionProjection;
+        this.measureSet = new MeasureSet(measureSet, sectionProjection);
+    }
 
     /**
      * Evaluates a CCR XML String against all added Measures and returns
@@ -136,32 +364,403 @@ public class Evaluator implements Closeable{
     }
     
     public String evaluate(String ccrXML, boolean strictValidation) {
+        if (ccrXML != null && !"".equals(ccrXML)) {
+            return evaluate(CCRSource.fromString(ccrXML), strictValidation);
+        }
         //Validate CCR File
         LOG.finest("Validating CCR");
-        ContinuityOfCareRecord ccr = validator.validateCCR(ccrXML, strictValidation);
+        return toJson(evaluate(validator.validateCCR(ccrXML, strictValidation), new EvaluationResult(null), measureSet));
+    }
+
+    /**
+     * Evaluates a CCR read from a stream against all added Measures.  The CCR
+     * is parsed straight from the stream without building a String first.
+     * @param ccrStream  Stream containing the CCR XML, closed once read
+     * @return JSON representation of popHealth result
+     */
+    public String evaluate(InputStream ccrStream) {
+        return evaluate(CCRSource.fromStream(ccrStream), isStrictValidation());
+    }
+
+    /**
+     * Evaluates a CCR file against all added Measures.
+     * @param ccrFile  The CCR file
+     * @return JSON representation of popHealth result
+     */
+    public String evaluate(File ccrFile) {
+        return evaluate(CCRSource.fromFile(ccrFile), isStrictValidation());
+    }
+
+    /**
+     * Evaluates a CCR held in a buffer against all added Measures.  Use
+     * <code>CCRSource.mapFile</code> to evaluate a memory mapped file.
+     * @param ccrBuffer  Buffer containing the CCR bytes
+     * @return JSON representation of popHealth result
+     */
+    public String evaluate(ByteBuffer ccrBuffer) {
+        return evaluate(CCRSource.fromByteBuffer(ccrBuffer), isStrictValidation());
+    }
+
+    public String evaluate(CCRSource source) {
+        return evaluate(source, isStrictValidation());
+    }
+
+    public String evaluate(CCRSource source, boolean strictValidation) {
+        ResultCache cache = resultCache;
+        MeasureSet measures = measureSet;
+        String key = cacheKey(cache, source, strictValidation, measures);
+        if (key != null) {
+            String json = fromCache(cache.get(key));
+            if (json != null) {
+                return json;
+            }
+        }
+        PopHealthPatientRecord pop = evaluateRecord(source, strictValidation, new EvaluationResult(source == null ? null : source.getName()), measures);
+        if (key != null && pop != null) {
+            cache.put(key, pop);
+        }
+        return toJson(pop);
+    }
+
+    /**
+     * Evaluates a CCR against all added Measures and returns the result as
+     * objects.  Nothing is written as JSON until it is asked for.
+     * @param source  The CCR
+     * @return the result, with the popHealth result or the validation errors,
+     *      the time spent in each stage and the preprocessing stats.  An
+     *      unexpected exception is given as a failed result.
+     */
+    public EvaluationResult evaluateResult(CCRSource source) {
+        return evaluateResult(source, isStrictValidation());
+    }
+
+    public EvaluationResult evaluateResult(CCRSource source, boolean strictValidation) {
+        EvaluationResult result = new EvaluationResult(source == null ? null : source.getName());
+        long start = System.currentTimeMillis();
+        try {
+            ResultCache cache = resultCache;
+            MeasureSet measures = measureSet;
+            long t = System.nanoTime();
+            String key = cacheKey(cache, source, strictValidation, measures);
+            if (key != null) {
+                String json = cache.get(key);
+                result.addTiming(EvaluationResult.CACHE, t);
+                if (json != null) {
+                    result.setCachedJson(json);
+                    result.setElapsedMillis(System.currentTimeMillis() - start);
+                    return result;
+                }
+            }
+            result.setRecord(evaluateRecord(source, strictValidation, result, measures));
+            if (key != null && result.getRecord() != null) {
+                cache.put(key, result.getRecord());
+            }
+        } catch (RuntimeException ex) {
+            LOG.log(Level.WARNING, "Could not evaluate CCR [" + result.getName() + "]", ex);
+            result.setFailure(ex);
+        }
+        result.setElapsedMillis(System.currentTimeMillis() - start);
+        return result;
+    }
+
+    /**
+     * Evaluates a CCR against all added Measures and writes the popHealth
+     * result straight to a stream as UTF-8 JSON, without building a String.
+     * If the CCR is invalid the validation errors are written instead.  The
+     * stream is flushed but not closed.
+     * @param source  The CCR
+     * @param out  The stream to write the JSON to
+     * @param prettyPrint  Should the JSON be indented
+     * @return <code>true</code> if the result was written, <code>false</code>
+     *      if the validation errors were written
+     * @throws IOException if the JSON could not be written
+     */
+    public boolean evaluate(CCRSource source, OutputStream out, boolean prettyPrint) throws IOException {
+        boolean strictValidation = isStrictValidation();
+        ResultCache cache = resultCache;
+        MeasureSet measures = measureSet;
+        String key = cacheKey(cache, source, strictValidation, measures);
+        if (key != null) {
+            String json = cache.get(key);
+            if (json != null) {
+                JsonMapper.reformat(json, out, prettyPrint);
+                return true;
+            }
+        }
+        PopHealthPatientRecord pop = evaluateRecord(source, strictValidation, new EvaluationResult(source == null ? null : source.getName()), measures);
+        if (key != null && pop != null) {
+            cache.put(key, pop);
+        }
+        if (pop == null) {
+            LOG.info("INVALID CCR writing last errors");
+            out.write(validator.getLastErrors(prettyPrint).getBytes("UTF-8"));
+            out.flush();
+            return false;
+        }
+        pop.toJson(out, prettyPrint);
+        return true;
+    }
+
+    /**
+     * Evaluates a CCR against all added Measures and writes the popHealth
+     * result straight to a channel as UTF-8 JSON.  The channel is not closed.
+     * @param source  The CCR
+     * @param out  The channel to write the JSON to
+     * @param prettyPrint  Should the JSON be indented
+     * @return <code>true</code> if the result was written, <code>false</code>
+     *      if the validation errors were written
+     * @throws IOException if the JSON could not be written
+     */
+    public boolean evaluate(CCRSource source, WritableByteChannel out, boolean prettyPrint) throws IOException {
+        return evaluate(source, Channels.newOutputStream(out), prettyPrint);
+    }
+
+    /*
+     * Validates and evaluates a CCR, returns null if it is invalid.  The
+     * validation errors, timings and preprocessing stats go in the result.
+     */
+    private PopHealthPatientRecord evaluateRecord(CCRSource source, boolean strictValidation, EvaluationResult result, MeasureSet measures) {
+        //Validate CCR File
+        LOG.log(Level.FINEST, "Validating CCR {0}", source == null ? null : source.getName());
+        long t = System.nanoTime();
+        if (useStreamingExtraction(source)) {
+            boolean valid = validator.isValidCCR(source, strictValidation);
+            result.setValidationErrors(validator.getLastErrorHandler());
+            t = result.addTiming(EvaluationResult.VALIDATE, t);
+            if (!valid) {
+                return null;
+            }
+            Record r = streamRecord(source, measures.projection);
+            result.addTiming(EvaluationResult.EXTRACT, t);
+            return evaluate(r, result, measures);
+        }
+        ContinuityOfCareRecord ccr = validator.validateCCR(source, strictValidation, measures.projection);
+        result.setValidationErrors(validator.getLastErrorHandler());
+        result.addTiming(EvaluationResult.VALIDATE, t);
+        return evaluate(ccr, result, measures);
+    }
 
+    /*
+     * Writes the result as JSON, or returns the validation errors if there is
+     * no result
+     */
+    private String toJson(PopHealthPatientRecord pop) {
+        if (pop == null) {
+            LOG.info("INVALID CCR returning last errors");
+            return validator.getLastErrors(true);
+        }
+        String result = qme.toJson(pop);
+        LOG.log(Level.FINEST, "EVALUATION RESULT\n{0}", result);
+        return result;
+    }
+
+    /*
+     * Writes a cached result the same way toJson writes a new one, returns
+     * null if it is not cached or could not be read
+     */
+    private String fromCache(String json) {
+        if (json == null) {
+            return null;
+        }
+        try {
+            return JsonMapper.reformat(json, true);
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Could not read cached result, evaluating the CCR", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Evaluates a batch of CCRs on the worker pool, see
+     * <code>Configuration.setWorkerThreads</code>, and returns the results in
+     * the order the CCRs were given.
+     * @param sources  The CCRs, for example a <code>CCRBundleReader</code>
+     * @return the results, read as the evaluations finish
+     */
+    public Iterator<EvaluationResult> evaluateAll(Iterable<CCRSource> sources) {
+        return evaluateAll(sources, ResultOrder.INPUT);
+    }
+
+    /**
+     * Evaluates a batch of CCRs on the worker pool, see
+     * <code>Configuration.setWorkerThreads</code>.
+     * @param sources  The CCRs, for example a <code>CCRBundleReader</code>
+     * @param order  The order to return the results in
+     * @return the results, read as the evaluations finish
+     */
+    public Iterator<EvaluationResult> evaluateAll(Iterable<CCRSource> sources, ResultOrder order) {
+        return evaluateAll(sources, order, getWorkers(), getWorkerThreads() * 2);
+    }
+
+    /**
+     * Evaluates a batch of CCRs on a worker pool owned by the caller.
+     * <p>
+     * The CCRs are taken from <code>sources</code> by the thread reading the
+     * results, at most <code>maxInFlight</code> ahead of the results read.
+     * A CCR that fails with an unexpected exception gives a failed result and
+     * does not stop the batch.  Validation errors of an invalid CCR are given
+     * as its JSON result, the same as <code>evaluate</code>.
+     * @param sources  The CCRs
+     * @param order  The order to return the results in
+     * @param executor  The worker pool
+     * @param maxInFlight  Most CCRs read but not yet returned as results
+     * @return the results, read as the evaluations finish
+     */
+    public Iterator<EvaluationResult> evaluateAll(Iterable<CCRSource> sources, ResultOrder order,
+            ExecutorService executor, int maxInFlight) {
+        return new BatchEvaluation(this, sources, order, executor, maxInFlight);
+    }
+
+    /**
+     * Evaluates a CCR on another thread.
+     * @param source  The CCR, read by the evaluating thread
+     * @return the result, which is never an <code>ExecutionException</code>
+     *      since failures are given as failed results
+     */
+    public Future<EvaluationResult> evaluateAsync(CCRSource source) {
+        return evaluateAsync(source, null);
+    }
+
+    /**
+     * Evaluates a CCR on another thread, telling a listener once it is done.
+     * Runs on the executor set by <code>setAsyncExecutor</code>, or on the
+     * worker pool used by <code>evaluateAll</code> if none was set.
+     * @param source  The CCR, read by the evaluating thread
+     * @param listener  Called with the result, may be <code>null</code>
+     * @return the result, which is never an <code>ExecutionException</code>
+     *      since failures are given as failed results
+     */
+    public Future<EvaluationResult> evaluateAsync(CCRSource source, EvaluationListener listener) {
+        ExecutorService executor = asyncExecutor;
+        if (executor == null) {
+            executor = getWorkers();
+        }
+        return executor.submit(new BatchEvaluation.Task(this, asyncCount.getAndIncrement(), source, false, listener));
+    }
+
+    public ExecutorService getAsyncExecutor() {
+        return asyncExecutor;
+    }
+
+    /**
+     * Sets the executor used by <code>evaluateAsync</code>.  Evaluations that
+     * infer codes spend most of their time waiting on UMLS lookups, so an
+     * executor with more threads than processors, or one thread per task,
+     * keeps more CCRs in flight.  The executor is owned by the caller and is
+     * not shut down by <code>close</code>.
+     * @param asyncExecutor The executor, <code>null</code> uses the worker pool
+     */
+    public void setAsyncExecutor(ExecutorService asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    private int getWorkerThreads() {
+        int n = config == null ? 0 : config.getWorkerThreads();
+        return n > 0 ? n : Runtime.getRuntime().availableProcessors();
+    }
+
+    private synchronized ExecutorService getWorkers() {
+        if (workers == null) {
+            workers = Executors.newFixedThreadPool(getWorkerThreads(), new ThreadFactory() {
+
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ccr-evaluator-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return workers;
+    }
+
+    /*
+     * Checks if the record can be extracted by streaming through the CCR
+     */
+    private boolean useStreamingExtraction(CCRSource source) {
+        return streamingExtraction && !preProcess_fixEncounters && !preProcess_fixTobacco
+                && !preProcess_inferCodes && (source == null || source.isRepeatable());
+    }
+
+    /*
+     * Extracts the record by streaming through an already validated CCR,
+     * returns null if the CCR could not be read
+     */
+    private Record streamRecord(CCRSource source, SectionProjection projection) {
+        CCREngine engine = validator.getEngine();
+        Unmarshaller u = null;
+        StreamSource src = null;
+        try {
+            u = engine.borrowUnmarshaller();
+            src = source.newStreamSource();
+            return streamingRC.createRecord(src, u, projection);
+        } catch (XMLStreamException ex) {
+            Logger.getLogger(Evaluator.class.getName()).log(Level.WARNING, ex.getLocalizedMessage());
+        } catch (JAXBException ex) {
+            Logger.getLogger(Evaluator.class.getName()).log(Level.WARNING, ex.getLocalizedMessage());
+        } catch (IOException ex) {
+            Logger.getLogger(Evaluator.class.getName()).log(Level.WARNING, ex.getLocalizedMessage());
+        } finally {
+            CCRSource.close(src);
+            engine.returnUnmarshaller(u);
+        }
+        return null;
+    }
+
+    /*
+     * Evaluates a record extracted by streaming through the CCR
+     */
+    private PopHealthPatientRecord evaluate(Record r, EvaluationResult result, MeasureSet measures) {
+        if (r == null) {
+            LOG.info("CCR could not be read");
+            return null;
+        }
+        LOG.finest("Evaulating record against quality measures");
+        long t = System.nanoTime();
+        PopHealthPatientRecord pop = qme.evaluateIndex(r, measures.index);
+        result.addTiming(EvaluationResult.EVALUATE, t);
+        return pop;
+    }
+
+    /*
+     * Runs a validated CCR through preprocessing, extraction and evaluation
+     */
+    private PopHealthPatientRecord evaluate(ContinuityOfCareRecord ccr, EvaluationResult result, MeasureSet measures) {
+        boolean fixEncounters = preProcess_fixEncounters;
+        boolean fixTobacco = preProcess_fixTobacco;
+        boolean inferCodes = preProcess_inferCodes;
         // Check to make sure there a valid CCR was created
         // TODO fix when hooked up to real validator
         if (ccr != null) {
             LOG.finest("Found a Valid CCR");
-            if (preProcess_fixEncounters) {
-                ccr = pp.fixEncounters(ccr);
+            long t = System.nanoTime();
+            if (fixEncounters || fixTobacco || inferCodes) {
+                PreProcessStats stats = new PreProcessStats();
+                if (fixEncounters) {
+                    ccr = pp.fixEncounters(ccr, stats);
+                }
+                if (fixTobacco) {
+                    ccr = pp.fixTobaccoHx(ccr, stats);
+                }
+                if (inferCodes) {
+                    ccr = pp.inferCodes(ccr, stats);
+                }
+                result.setPreProcessStats(stats);
+                t = result.addTiming(EvaluationResult.PREPROCESS, t);
             }
-            if (preProcess_fixTobacco) {
-                ccr = pp.fixTobaccoHx(ccr);
-            }
-            if (preProcess_inferCodes) {
-                ccr = pp.inferCodes(ccr);
+            if (keepProcessedCCR) {
+                result.setProcessedCCR(ccr);
             }
             // Import the CCR into standard json record
             Record r = rc.createRecord(ccr);
+            t = result.addTiming(EvaluationResult.EXTRACT, t);
             LOG.finest("Evaulating record against quality measures");
-            String result = qme.evaluate(r, qMeasures);
-            LOG.log(Level.FINEST, "EVALUATION RESULT\n{0}", result);
-            return result;
+            PopHealthPatientRecord pop = qme.evaluateIndex(r, measures.index);
+            result.addTiming(EvaluationResult.EVALUATE, t);
+            return pop;
         } else {
-            LOG.info("INVALID CCR returning last errors");
-            return validator.getLastErrors(true);
+            return null;
         }
     }
 
@@ -171,11 +770,22 @@ public class Evaluator implements Closeable{
      *
      * @param qMeasure  The quality measure to add
      */
-    public void addMeasure(QualityMeasure qMeasure) {
-        this.qMeasures.add(qMeasure);
+    public synchronized void addMeasure(QualityMeasure qMeasure) {
+        ArrayList<QualityMeasure> measures = new ArrayList<QualityMeasure>(measureSet.measures);
+        measures.add(qMeasure);
+        useMeasures(measures);
         LOG.log(Level.FINEST, "Quality Measure {0} added", qMeasure.getId());
     }
 
+    /*
+     * Replaces the measures, compiled into the index evaluations use,
+     * versioned for the cache keys and with the sections they need, in one
+     * step
+     */
+    private void useMeasures(ArrayList<QualityMeasure> measures) {
+        this.measureSet = new MeasureSet(measures, sectionProjection);
+    }
+
     /**
      * Add a quality measure in JSON format to the list of quality measures to
      * use in the evaluations.
@@ -190,14 +800,103 @@ public class Evaluator implements Closeable{
 
 
 
+    /**
+     * Creates a staged pipeline that evaluates CCRs with this Evaluator's
+     * measures and settings.
+     * @param listener  Called with each result
+     * @return the pipeline, not yet started
+     */
+    public EvaluationPipeline createPipeline(EvaluationListener listener) {
+        return new EvaluationPipeline(this, listener);
+    }
+
+    // Parts used by EvaluationPipeline
+
+    CCRValidator getValidator() {
+        return validator;
+    }
+
+    PreProcessor getPreProcessor() {
+        return pp;
+    }
+
+    RecordCreator getRecordCreator() {
+        return rc;
+    }
+
+    QualityMeasureEvaluator getQualityMeasureEvaluator() {
+        return qme;
+    }
+
+    ArrayList<QualityMeasure> getMeasures() {
+        return measureSet.measures;
+    }
+
+    MeasureSet getMeasureSet() {
+        return measureSet;
+    }
+
     public ContinuityOfCareRecord preProcess(ContinuityOfCareRecord ccr) {
         ccr = pp.preProcess(ccr);
         return ccr;
     }
 
     public void close() throws IOException {
+        synchronized (this) {
+            if (workers != null) {
+                workers.shutdown();
+                workers = null;
+            }
+        }
         if (pp != null){
             pp.close();
         }
     }
+
+    /*
+     * The measures with their index, version and section projection.  Each
+     * call reads the current set once, so the cache key, the parsing and the
+     * evaluation always use the same measures.
+     */
+    static class MeasureSet {
+
+        final ArrayList<QualityMeasure> measures;
+        final MeasureIndex index;
+        final String version;
+        final SectionProjection projection;  // null parses every section
+
+        MeasureSet(ArrayList<QualityMeasure> measures, boolean project) {
+            this.measures = measures;
+            this.index = new MeasureIndex(QualityMeasurePlan.compile(measures));
+            this.projection = projection(measures, project);
+            String v;
+            try {
+                v = ContentHash.of(JsonMapper.toJson(measures, false));
+            } catch (IOException ex) {
+                // Never matches a cached result
+                LOG.log(Level.WARNING, "Could not write quality measures to version them", ex);
+                v = "unversioned-" + System.identityHashCode(measures);
+            }
+            this.version = v;
+        }
+
+        /*
+         * The same measures with the projection turned on or off
+         */
+        MeasureSet(MeasureSet m, boolean project) {
+            this.measures = m.measures;
+            this.index = m.index;
+            this.version = m.version;
+            this.projection = projection(measures, project);
+        }
+
+        private static SectionProjection projection(ArrayList<QualityMeasure> measures, boolean project) {
+            if (!project) {
+                return null;
+            }
+            SectionProjection p = SectionProjection.forMeasures(measures);
+            LOG.log(Level.FINE, "Using {0}", p);
+            return p;
+        }
+    }
 }
@@ -0,0 +1,303 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.ohd.pophealth.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.ohd.pophealth.json.measuremodel.QualityMeasure;
+
+/**
+ * A set of Evaluators that are built in parallel and warmed up before they
+ * are used.  Building an Evaluator loads the vocabulary, connects to UMLS and
+ * compiles the XSD, and the first few thousand CCRs are slow until the JIT
+ * has compiled the evaluation code.  <code>start</code> builds every
+ * Evaluator on its own thread and runs a warm-up corpus through all of the
+ * stages, including writing the JSON, and only then reports the pool as
+ * ready.  A service should not take traffic until <code>isReady</code>.
+ * <p>
+ * The warm-up corpus is the synthetic CCR at
+ * <code>Configuration.getWarmupLocation</code> unless other CCRs are set.
+ * Override <code>createEvaluator</code> to turn on preprocessing or other
+ * settings, so the warm-up runs the same code as real evaluations.
+ *
+ * @author ohdohd
+ */
+public class EvaluatorPool implements Closeable {
+
+    private final static Logger LOG = Logger.getLogger(EvaluatorPool.class.getName());
+    private final Configuration config;
+    private final ArrayList<QualityMeasure> measures;
+    private final int size;
+    private final ArrayBlockingQueue<Evaluator> idle;
+    private final ArrayList<Evaluator> all = new ArrayList<Evaluator>();
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private List<CCRSource> warmupCorpus = null;  // null uses the built in CCR
+    private int warmupIterations = 500;
+    private volatile boolean started = false;
+    private volatile boolean isReady = false;
+    private volatile Throwable failure = null;
+    private volatile long startupMillis = -1;
+
+    /**
+     * Creates a pool, <code>start</code> must be called before it is used
+     * @param config The configuration of each Evaluator
+     * @param measures The quality measures added to each Evaluator
+     * @param size The number of Evaluators
+     */
+    public EvaluatorPool(Configuration config, ArrayList<QualityMeasure> measures, int size) {
+        this.config = config;
+        this.measures = new ArrayList<QualityMeasure>(measures);
+        this.size = Math.max(1, size);
+        this.idle = new ArrayBlockingQueue<Evaluator>(this.size);
+    }
+
+    /**
+     * Creates one Evaluator of the pool.  Called on the building threads.
+     * @return the Evaluator
+     */
+    protected Evaluator createEvaluator() {
+        return new Evaluator(config, measures);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getWarmupIterations() {
+        return warmupIterations;
+    }
+
+    /**
+     * Sets the number of times the warm-up corpus is run through each
+     * Evaluator, before the pool is started
+     * @param warmupIterations The count, 0 for no warm-up
+     */
+    public void setWarmupIterations(int warmupIterations) {
+        this.warmupIterations = warmupIterations;
+    }
+
+    /**
+     * Sets the CCRs used to warm up, before the pool is started
+     * @param warmupCorpus Repeatable CCR sources, <code>null</code> uses the built in CCR
+     */
+    public void setWarmupCorpus(List<CCRSource> warmupCorpus) {
+        this.warmupCorpus = warmupCorpus == null ? null : new ArrayList<CCRSource>(warmupCorpus);
+    }
+
+    /**
+     * Builds and warms up the Evaluators in the background.  Returns at once,
+     * use <code>isReady</code> or <code>awaitReady</code> to find out when
+     * the pool can be used.
+     */
+    public synchronized void start() {
+        if (started) {
+            throw new IllegalStateException("Pool has already been started");
+        }
+        started = true;
+        Thread t = new Thread(new Runnable() {
+
+            public void run() {
+                build();
+            }
+        }, "evaluator-pool-start");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /*
+     * Builds and warms up every Evaluator on its own thread
+     */
+    private void build() {
+        final long start = System.currentTimeMillis();
+        final List<CCRSource> corpus;
+        try {
+            corpus = warmupCorpus != null ? warmupCorpus : loadBuiltInCorpus();
+        } catch (IOException ex) {
+            fail(ex);
+            return;
+        }
+        ArrayList<Thread> builders = new ArrayList<Thread>();
+        for (int i = 1; i <= size; i++) {
+            Thread t = new Thread(new Runnable() {
+
+                public void run() {
+                    try {
+                        long t0 = System.currentTimeMillis();
+                        Evaluator e = createEvaluator();
+                        long t1 = System.currentTimeMillis();
+                        warmUp(e, corpus);
+                        LOG.log(Level.FINE, "Evaluator built in {0} ms and warmed up in {1} ms",
+                                new Object[]{t1 - t0, System.currentTimeMillis() - t1});
+                        synchronized (all) {
+                            all.add(e);
+                        }
+                    } catch (RuntimeException ex) {
+                        fail(ex);
+                    }
+                }
+            }, "evaluator-pool-build-" + i);
+            t.setDaemon(true);
+            builders.add(t);
+            t.start();
+        }
+        for (Thread t : builders) {
+            try {
+                t.join();
+            } catch (InterruptedException ex) {
+                fail(ex);
+                return;
+            }
+        }
+        if (failure != null) {
+            return;
+        }
+        idle.addAll(all);
+        startupMillis = System.currentTimeMillis() - start;
+        isReady = true;
+        ready.countDown();
+        LOG.log(Level.INFO, "Evaluator pool of {0} ready in {1} ms", new Object[]{size, startupMillis});
+    }
+
+    private void fail(Throwable ex) {
+        LOG.log(Level.SEVERE, "Could not start Evaluator pool", ex);
+        failure = ex;
+        ready.countDown();
+    }
+
+    /*
+     * Runs the warm-up corpus through every stage of an Evaluator.  The
+     * Evaluator constructor only logs a schema, vocabulary or JAXB that could
+     * not be loaded, so a warm-up CCR that does not evaluate fails the pool.
+     */
+    private void warmUp(Evaluator e, List<CCRSource> corpus) {
+        for (int i = 0; i < warmupIterations; i++) {
+            for (CCRSource source : corpus) {
+                EvaluationResult r = e.evaluateResult(source);
+                // Writes the JSON so serialization is warmed up too
+                r.getJson();
+                if (r.isFailed()) {
+                    throw new IllegalStateException("Warm-up CCR [" + source.getName() + "] failed", r.getFailure());
+                }
+                if (!r.isValid()) {
+                    throw new IllegalStateException("Warm-up CCR [" + source.getName() + "] did not evaluate: "
+                            + (r.getValidationErrors() == null ? "" : r.getValidationErrors().getErrorCount() + " errors"));
+                }
+            }
+        }
+    }
+
+    private List<CCRSource> loadBuiltInCorpus() throws IOException {
+        InputStream is = this.getClass().getClassLoader().getResourceAsStream(config.getWarmupLocation());
+        if (is == null) {
+            throw new IOException("Warm-up CCR not found at " + config.getWarmupLocation());
+        }
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] b = new byte[8192];
+            int n;
+            while ((n = is.read(b)) > 0) {
+                bos.write(b, 0, n);
+            }
+            ArrayList<CCRSource> corpus = new ArrayList<CCRSource>();
+            corpus.add(CCRSource.fromBytes(bos.toByteArray(), config.getWarmupLocation()));
+            return corpus;
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Checks if every Evaluator has been built and warmed up
+     * @return <code>true</code> once the pool can take traffic
+     */
+    public boolean isReady() {
+        return isReady;
+    }
+
+    /**
+     * Waits for the pool to be ready
+     * @param timeout The longest time to wait
+     * @param unit The unit of the timeout
+     * @return <code>true</code> if the pool is ready, <code>false</code> if
+     *      the time ran out or the pool could not be started
+     * @throws InterruptedException
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        ready.await(timeout, unit);
+        return isReady;
+    }
+
+    /**
+     * The exception that stopped the pool from starting
+     * @return the exception or <code>null</code>
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Time taken to build and warm up the pool
+     * @return the time in milliseconds, -1 if the pool is not ready
+     */
+    public long getStartupMillis() {
+        return startupMillis;
+    }
+
+    /**
+     * Takes an Evaluator from the pool, waiting for the pool to be ready and
+     * for an Evaluator to be free.  It must be given back with <code>release</code>.
+     * @return the Evaluator
+     * @throws InterruptedException
+     */
+    public Evaluator borrow() throws InterruptedException {
+        ready.await();
+        if (!isReady) {
+            throw new IllegalStateException("Evaluator pool could not be started", failure);
+        }
+        return idle.take();
+    }
+
+    public void release(Evaluator e) {
+        if (e != null) {
+            idle.offer(e);
+        }
+    }
+
+    /**
+     * Evaluates a CCR with a free Evaluator from the pool
+     * @param source The CCR
+     * @return the result
+     * @throws InterruptedException
+     */
+    public EvaluationResult evaluateResult(CCRSource source) throws InterruptedException {
+        Evaluator e = borrow();
+        try {
+            return e.evaluateResult(source);
+        } finally {
+            release(e);
+        }
+    }
+
+    public void close() throws IOException {
+        isReady = false;
+        synchronized (all) {
+            for (Evaluator e : all) {
+                e.close();
+            }
+            all.clear();
+        }
+        idle.clear();
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.ohd.pophealth.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.ohd.pophealth.json.measuremodel.PopHealthPatientRecord;
+
+/**
+ * Keeps the popHealth results of CCRs already evaluated, so a CCR sent again
+ * is answered without validating, preprocessing, extracting and evaluating it
+ * again.  The key, made by the <code>Evaluator</code>, is the content hash of
+ * the CCR with the preprocessing and validation settings, a hash of the
+ * Evaluator's <code>Configuration</code> and the version of the measure set,
+ * so changing any of those never returns an old result.
+ * <p>
+ * Results are kept as compact JSON.  The memory tier holds at most
+ * <code>maxBytes</code> of JSON and drops the least recently used results
+ * first.  With a directory the results are also written to disk, one file per
+ * result, and a result dropped from memory is read back from disk.  The disk
+ * tier is not bounded, clear the directory to empty it.
+ * <p>
+ * Only valid CCRs are cached.  A cache can be shared by many Evaluators and
+ * threads.
+ *
+ * @author ohdohd
+ */
+public class ResultCache {
+
+    private final static Logger LOG = Logger.getLogger(ResultCache.class.getName());
+    private final long maxBytes;
+    private final File dir;
+    // Access ordered, the first entry is the least recently used
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<String, byte[]>(256, 0.75f, true);
+    private long bytes = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a cache held in memory only
+     * @param maxBytes The most JSON, in bytes, kept in memory
+     */
+    public ResultCache(long maxBytes) {
+        this(maxBytes, null);
+    }
+
+    /**
+     * Creates a cache held in memory and on disk
+     * @param maxBytes The most JSON, in bytes, kept in memory
+     * @param dir The directory for the disk tier, created if it does not
+     *      exist, <code>null</code> for memory only
+     */
+    public ResultCache(long maxBytes, File dir) {
+        this.maxBytes = maxBytes;
+        this.dir = dir;
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalArgumentException("Could not create cache directory " + dir);
+        }
+    }
+
+    /**
+     * Looks up a result, first in memory then on disk
+     * @param key The key
+     * @return the result as compact JSON or <code>null</code> if it is not cached
+     */
+    public String get(String key) {
+        byte[] b;
+        synchronized (this) {
+            b = memory.get(key);
+        }
+        if (b != null) {
+            hits.incrementAndGet();
+            return toString(b);
+        }
+        b = readFile(key);
+        if (b != null) {
+            diskHits.incrementAndGet();
+            putMemory(key, b);
+            return toString(b);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches the result of a valid CCR
+     * @param key The key
+     * @param record The popHealth result
+     */
+    public void put(String key, PopHealthPatientRecord record) {
+        try {
+            put(key, record.toJson(false));
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Could not cache result", ex);
+        }
+    }
+
+    /**
+     * Caches a result
+     * @param key The key
+     * @param json The result as compact JSON
+     */
+    public void put(String key, String json) {
+        byte[] b;
+        try {
+            b = json.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            // Every Java platform has UTF-8
+            throw new IllegalStateException(ex);
+        }
+        putMemory(key, b);
+        writeFile(key, b);
+    }
+
+    private synchronized void putMemory(String key, byte[] b) {
+        if (b.length > maxBytes) {
+            return;
+        }
+        byte[] old = memory.put(key, b);
+        bytes += b.length - (old == null ? 0 : old.length);
+        Iterator<Map.Entry<String, byte[]>> it = memory.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, byte[]> eldest = it.next();
+            bytes -= eldest.getValue().length;
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /*
+     * The file of a key, spread over 256 directories
+     */
+    private File fileOf(String key) {
+        String name = ContentHash.of(key);
+        return new File(new File(dir, name.substring(0, 2)), name + ".json");
+    }
+
+    private byte[] readFile(String key) {
+        if (dir == null) {
+            return null;
+        }
+        File f = fileOf(key);
+        if (!f.isFile()) {
+            return null;
+        }
+        try {
+            InputStream is = new FileInputStream(f);
+            try {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream((int) f.length());
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = is.read(buf)) > 0) {
+                    bos.write(buf, 0, n);
+                }
+                return bos.toByteArray();
+            } finally {
+                is.close();
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Could not read cached result " + f, ex);
+            return null;
+        }
+    }
+
+    /*
+     * Writes to a temporary file and renames it, so a result read from disk
+     * is never only partly written
+     */
+    private void writeFile(String key, byte[] b) {
+        if (dir == null) {
+            return;
+        }
+        File f = fileOf(key);
+        if (f.isFile()) {
+            return;
+        }
+        File parent = f.getParentFile();
+        parent.mkdirs();
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(f.getName(), ".tmp", parent);
+            OutputStream os = new FileOutputStream(tmp);
+            try {
+                os.write(b);
+            } finally {
+                os.close();
+            }
+            if (!tmp.renameTo(f) && !f.isFile()) {
+                LOG.log(Level.WARNING, "Could not write cached result {0}", f);
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Could not write cached result " + f, ex);
+        } finally {
+            if (tmp != null && tmp.exists()) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private static String toString(byte[] b) {
+        try {
+            return new String(b, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Removes every result from memory.  The disk tier is left as it is.
+     */
+    public synchronized void clear() {
+        memory.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return memory.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ResultCache [" + size() + " results, " + getBytes() + " bytes, hits " + hits
+                + ", disk hits " + diskHits + ", misses " + misses + ", evictions " + evictions + "]";
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.ohd.pophealth.api;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides which CCRs get full XSD validation.  Feeds that have already been
+ * certified do not need every CCR validated:
+ * <ul>
+ * <li>CCRs from a trusted feed, or whose content hash is trusted, are not validated</li>
+ * <li>Otherwise 1 in <code>sampleRate</code> CCRs of each feed is validated</li>
+ * <li>If too many of the recent samples from a feed fail validation every CCR
+ * from that feed is validated until the error rate drops again</li>
+ * </ul>
+ * CCRs without a feed are tracked together under <code>DEFAULT_FEED</code>.
+ * A policy is shared by all the validators it is configured on, so it is safe
+ * to use from many threads.
+ *
+ * @author ohdohd
+ */
+public class ValidationPolicy {
+
+    private final static Logger LOG = Logger.getLogger(ValidationPolicy.class.getName());
+    public static final String DEFAULT_FEED = "default";
+    private volatile int sampleRate = 1;  // validate 1 in N, 1 validates all
+    private volatile int window = 20;  // number of recent samples the error rate is worked out over
+    private volatile double escalationRate = 0.1;  // error rate that turns on full validation
+    private volatile int escalationLength = 500;  // CCRs fully validated after an escalation
+    private volatile Set<String> trustedFeeds = Collections.emptySet();
+    private volatile Set<String> trustedHashes = Collections.emptySet();
+    private final ConcurrentHashMap<String, FeedState> feeds = new ConcurrentHashMap<String, FeedState>();
+    // Counters
+    private final AtomicLong validated = new AtomicLong();
+    private final AtomicLong skippedSampling = new AtomicLong();
+    private final AtomicLong skippedTrustedFeed = new AtomicLong();
+    private final AtomicLong skippedTrustedHash = new AtomicLong();
+    private final AtomicLong sampleFailures = new AtomicLong();
+    private final AtomicLong escalations = new AtomicLong();
+
+    public ValidationPolicy() {
+    }
+
+    /**
+     * Creates a policy validating 1 in N CCRs of each feed
+     * @param sampleRate N, 1 validates every CCR
+     */
+    public ValidationPolicy(int sampleRate) {
+        setSampleRate(sampleRate);
+    }
+
+    /**
+     * Checks if a CCR should be validated and counts the decision
+     * @param source The CCR source
+     * @return <code>true</code> if the CCR should be validated
+     */
+    public boolean shouldValidate(CCRSource source) {
+        String feed = feedOf(source);
+        FeedState fs = getFeedState(feed);
+        synchronized (fs) {
+            fs.seen++;
+            if (fs.escalatedFor > 0) {
+                fs.escalatedFor--;
+                validated.incrementAndGet();
+                return true;
+            }
+        }
+        if (trustedFeeds.contains(feed)) {
+            skippedTrustedFeed.incrementAndGet();
+            return false;
+        }
+        if (!trustedHashes.isEmpty() && isTrustedContent(source)) {
+            skippedTrustedHash.incrementAndGet();
+            return false;
+        }
+        synchronized (fs) {
+            if (sampleRate <= 1 || fs.sinceSample + 1 >= sampleRate) {
+                fs.sinceSample = 0;
+                validated.incrementAndGet();
+                return true;
+            }
+            fs.sinceSample++;
+        }
+        skippedSampling.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Records the outcome of a validation done because of this policy.  Turns
+     * on full validation for the feed if the error rate of its recent samples
+     * is too high.
+     * @param source The CCR source
+     * @param valid <code>true</code> if the CCR had no validation problems
+     */
+    public void recordOutcome(CCRSource source, boolean valid) {
+        String feed = feedOf(source);
+        FeedState fs = getFeedState(feed);
+        if (!valid) {
+            sampleFailures.incrementAndGet();
+        }
+        boolean escalated = false;
+        synchronized (fs) {
+            fs.record(valid, window);
+            if (fs.samples >= Math.min(window, 5) && fs.errorRate() >= escalationRate) {
+                escalated = fs.escalatedFor == 0;
+                fs.escalatedFor = escalationLength;
+            }
+        }
+        if (escalated) {
+            escalations.incrementAndGet();
+            LOG.log(Level.WARNING, "Validation error rate for feed [{0}] is too high, validating every CCR", feed);
+        }
+    }
+
+    private static String feedOf(CCRSource source) {
+        return source == null || source.getFeed() == null ? DEFAULT_FEED : source.getFeed();
+    }
+
+    private FeedState getFeedState(String feed) {
+        FeedState fs = feeds.get(feed);
+        if (fs == null) {
+            FeedState created = new FeedState();
+            fs = feeds.putIfAbsent(feed, created);
+            if (fs == null) {
+                fs = created;
+            }
+        }
+        return fs;
+    }
+
+    private boolean isTrustedContent(CCRSource source) {
+        try {
+            String hash = ContentHash.of(source);
+            return hash != null && trustedHashes.contains(hash);
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, "Could not hash CCR [" + source.getName() + "]", ex);
+            return false;
+        }
+    }
+
+    /**
+     * Checks if every CCR from a feed is being validated because of a high
+     * error rate
+     * @param feed The feed
+     * @return <code>true</code> if the feed is escalated
+     */
+    public boolean isEscalated(String feed) {
+        FeedState fs = feeds.get(feed == null ? DEFAULT_FEED : feed);
+        if (fs == null) {
+            return false;
+        }
+        synchronized (fs) {
+            return fs.escalatedFor > 0;
+        }
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = Math.max(1, sampleRate);
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Sets the number of recent samples of each feed the error rate is worked
+     * out over
+     * @param window
+     */
+    public void setWindow(int window) {
+        this.window = Math.max(1, window);
+    }
+
+    public double getEscalationRate() {
+        return escalationRate;
+    }
+
+    /**
+     * Sets the error rate, between 0 and 1, of the recent samples that turns
+     * on full validation for a feed
+     * @param escalationRate
+     */
+    public void setEscalationRate(double escalationRate) {
+        this.escalationRate = escalationRate;
+    }
+
+    public int getEscalationLength() {
+        return escalationLength;
+    }
+
+    /**
+     * Sets the number of CCRs from a feed that are all validated after its
+     * error rate gets too high
+     * @param escalationLength
+     */
+    public void setEscalationLength(int escalationLength) {
+        this.escalationLength = escalationLength;
+    }
+
+    public Set<String> getTrustedFeeds() {
+        return trustedFeeds;
+    }
+
+    public void setTrustedFeeds(Set<String> trustedFeeds) {
+        this.trustedFeeds = Collections.unmodifiableSet(new HashSet<String>(trustedFeeds));
+    }
+
+    public Set<String> getTrustedHashes() {
+        return trustedHashes;
+    }
+
+    /**
+     * Sets the SHA-256 hashes, see <code>ContentHash</code>, of CCRs that do
+     * not need to be validated
+     * @param trustedHashes
+     */
+    public void setTrustedHashes(Set<String> trustedHashes) {
+        this.trustedHashes = Collections.unmodifiableSet(new HashSet<String>(trustedHashes));
+    }
+
+    public long getValidated() {
+        return validated.get();
+    }
+
+    public long getSkippedSampling() {
+        return skippedSampling.get();
+    }
+
+    public long getSkippedTrustedFeed() {
+        return skippedTrustedFeed.get();
+    }
+
+    public long getSkippedTrustedHash() {
+        return skippedTrustedHash.get();
+    }
+
+    /**
+     * Total number of CCRs that were not validated
+     * @return the count
+     */
+    public long getSkipped() {
+        return getSkippedSampling() + getSkippedTrustedFeed() + getSkippedTrustedHash();
+    }
+
+    public long getSampleFailures() {
+        return sampleFailures.get();
+    }
+
+    public long getEscalations() {
+        return escalations.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuffer sb = new StringBuffer();
+        sb.append("ValidationPolicy 1 in ").append(sampleRate);
+        sb.append(" validated=").append(getValidated());
+        sb.append(" skipped{sampling=").append(getSkippedSampling());
+        sb.append(", trustedFeed=").append(getSkippedTrustedFeed());
+        sb.append(", trustedHash=").append(getSkippedTrustedHash()).append("}");
+        sb.append(" failures=").append(getSampleFailures());
+        sb.append(" escalations=").append(getEscalations());
+        return sb.toString();
+    }
+
+    /*
+     * Sampling state of one feed, guarded by its own lock
+     */
+    private static class FeedState {
+
+        long seen = 0;
+        int sinceSample = 0;
+        int escalatedFor = 0;
+        // Ring of recent sample outcomes, true for a failure
+        boolean[] recent = new boolean[0];
+        int next = 0;
+        int samples = 0;
+        int failures = 0;
+
+        void record(boolean valid, int window) {
+            if (recent.length != window) {
+                recent = new boolean[window];
+                next = 0;
+                samples = 0;
+                failures = 0;
+            }
+            if (samples == window) {
+                if (recent[next]) {
+                    failures--;
+                }
+            } else {
+                samples++;
+            }
+            recent[next] = !valid;
+            if (!valid) {
+                failures++;
+            }
+            next = (next + 1) % window;
+        }
+
+        double errorRate() {
+            return samples == 0 ? 0 : (double) failures / samples;
+        }
+    }
+}
@@ -7,7 +7,13 @@ package org.ohd.pophealth.api;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import javax.xml.bind.ValidationEvent;
+import javax.xml.bind.ValidationEventHandler;
+import javax.xml.bind.ValidationEventLocator;
 import org.codehaus.jackson.JsonGenerationException;
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonPropertyOrder;
 import org.codehaus.jackson.map.JsonMappingException;
 import org.ohd.pophealth.json.JsonMapper;
 import org.xml.sax.ErrorHandler;
@@ -15,43 +21,244 @@ import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 
 /**
+ * Collects schema validation problems.  Works both as a SAX <code>ErrorHandler</code>
+ * for a <code>Validator</code> and as a JAXB <code>ValidationEventHandler</code>
+ * when validation is done while unmarshalling.
+ * <p>
+ * A handler is used for a single validation.  Only the first <code>maxErrors</code>
+ * problems are kept in full, every problem is counted by its error code (such
+ * as <code>cvc-complex-type.2.4.a</code>).  Once <code>failFastErrors</code>
+ * errors have been found validation is stopped since the CCR will be rejected
+ * anyway.
  *
  * @author ohdohd
  */
-public class ValidatonErrorHandler implements ErrorHandler{
+@JsonPropertyOrder({"errorCount", "warningCount", "aborted", "codes", "errors"})
+public class ValidatonErrorHandler implements ErrorHandler, ValidationEventHandler{
+
+    public static final String WARNING = "warning";
+    public static final String ERROR = "error";
+    public static final String FATAL = "fatal";
+    public static final String UNKNOWN_CODE = "unknown";
+    public static final int DEFAULT_MAX_ERRORS = 100;
 
     private ArrayList<Error> errors = new ArrayList<Error>();
+    private LinkedHashMap<String, Integer> codes = new LinkedHashMap<String, Integer>();
+    private boolean lenient = false;  // Report schema errors as warnings
+    private int maxErrors;  // Number of problems kept in full, 0 keeps all
+    private int failFastErrors;  // Stop after this many errors, 0 never stops early
+    private int warningCount = 0;
+    private int errorCount = 0;
+    private int fatalCount = 0;
+    private boolean aborted = false;
+
+    public ValidatonErrorHandler() {
+        this(DEFAULT_MAX_ERRORS, 0);
+    }
+
+    /**
+     * Creates a handler for one validation
+     * @param maxErrors Number of problems kept in full, 0 keeps all of them
+     * @param failFastErrors Stop validating after this many errors (including
+     *      fatal errors), 0 to never stop early
+     */
+    public ValidatonErrorHandler(int maxErrors, int failFastErrors) {
+        this.maxErrors = maxErrors;
+        this.failFastErrors = failFastErrors;
+    }
+
+    /**
+     * Creates a handler using the limits in a configuration
+     * @param config The configuration
+     * @param lenient Report schema errors as warnings
+     */
+    public ValidatonErrorHandler(Configuration config, boolean lenient) {
+        this(config.getMaxValidationErrors(), config.getValidationFailFast());
+        this.lenient = lenient;
+    }
 
     public void warning(SAXParseException saxpe) throws SAXException {
-        handleError(saxpe);
+        handleError(saxpe, WARNING);
     }
 
     public void error(SAXParseException saxpe) throws SAXException {
-        handleError(saxpe);
+        handleError(saxpe, lenient ? WARNING : ERROR);
     }
 
     public void fatalError(SAXParseException saxpe) throws SAXException {
-        handleError(saxpe);
+        handleError(saxpe, FATAL);
+    }
+
+    private void handleError(SAXParseException ex, String severity) throws SAXException {
+        String message = ex.getLocalizedMessage();
+        if (!collect(severity, errorCode(message), message, ex.getLineNumber(), ex.getColumnNumber())) {
+            throw new SAXException("Validation stopped after " + (errorCount + fatalCount) + " errors", ex);
+        }
+    }
+
+    /**
+     * Collects a JAXB validation event.  Unmarshalling continues after warnings
+     * and errors so that all of the problems are reported, it stops on a fatal
+     * error or once the fail fast limit is reached.
+     * @param event The validation event
+     * @return <code>false</code> to stop unmarshalling
+     */
+    public boolean handleEvent(ValidationEvent event) {
+        String severity;
+        switch (event.getSeverity()) {
+            case ValidationEvent.WARNING:
+                severity = WARNING;
+                break;
+            case ValidationEvent.ERROR:
+                severity = lenient ? WARNING : ERROR;
+                break;
+            default:
+                severity = FATAL;
+        }
+        int line = -1;
+        int column = -1;
+        ValidationEventLocator loc = event.getLocator();
+        if (loc != null) {
+            line = loc.getLineNumber();
+            column = loc.getColumnNumber();
+        }
+        boolean more = collect(severity, errorCode(event.getMessage()), event.getMessage(), line, column);
+        return more && event.getSeverity() != ValidationEvent.FATAL_ERROR;
+    }
+
+    /**
+     * Adds a problem found outside of the XML parser, such as by the
+     * <code>CCRPreScreen</code>
+     * @param severity One of WARNING, ERROR or FATAL
+     * @param code The error code
+     * @param message The error message
+     */
+    public void addError(String severity, String code, String message) {
+        collect(severity, code, message, -1, -1);
+    }
+
+    /*
+     * Counts the problem and keeps it if the cap has not been reached.
+     * Returns false if validation should stop.
+     */
+    private boolean collect(String severity, String code, String message, int line, int column) {
+        if (WARNING.equals(severity)) {
+            warningCount++;
+        } else if (ERROR.equals(severity)) {
+            errorCount++;
+        } else {
+            fatalCount++;
+        }
+        Integer n = codes.get(code);
+        codes.put(code, n == null ? 1 : n + 1);
+        if (maxErrors <= 0 || errors.size() < maxErrors) {
+            Error e = new Error();
+            e.setSeverity(severity);
+            e.setCode(code);
+            e.setMessage(message);
+            e.setLineNumber(line);
+            e.setColumnNumber(column);
+            errors.add(e);
+        }
+        if (failFastErrors > 0 && errorCount + fatalCount >= failFastErrors) {
+            aborted = true;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the error code from a validation message.  Schema messages start
+     * with a code such as <code>cvc-complex-type.2.4.a: ...</code>
+     * @param message The validation message
+     * @return the code or <code>unknown</code> if the message has none
+     */
+    public static String errorCode(String message) {
+        if (message == null) {
+            return UNKNOWN_CODE;
+        }
+        int i = message.indexOf(": ");
+        if (i <= 0 || i > 64) {
+            return UNKNOWN_CODE;
+        }
+        String code = message.substring(0, i);
+        for (int c = 0; c < code.length(); c++) {
+            if (Character.isWhitespace(code.charAt(c))) {
+                return UNKNOWN_CODE;
+            }
+        }
+        return code;
+    }
+
+    @JsonIgnore
+    public boolean isLenient() {
+        return lenient;
+    }
+
+    /**
+     * In lenient mode schema errors are recorded as warnings, fatal (well
+     * formedness) errors are still reported as fatal
+     * @param lenient
+     */
+    public void setLenient(boolean lenient) {
+        this.lenient = lenient;
     }
 
-    private void handleError(SAXParseException ex){
-        Error e = new Error();
-        e.setMessage(ex.getLocalizedMessage());
-        e.setLineNumber(ex.getLineNumber());
-        e.setColumnNumber(ex.getColumnNumber());
-        errors.add(e);
+    /**
+     * Checks for a fatal error, meaning the document could not be read at all
+     * @return <code>true</code> if a fatal error was collected
+     */
+    public boolean hasFatalErrors(){
+        return fatalCount > 0;
     }
 
+    /**
+     * The first problems found, up to the configured cap
+     * @return the kept problems
+     */
     public ArrayList<Error> getErrors() {
         return errors;
     }
 
+    /**
+     * Number of times each error code was found, including problems past the cap
+     * @return counts by error code
+     */
+    public LinkedHashMap<String, Integer> getCodes() {
+        return codes;
+    }
+
+    /**
+     * Number of errors and fatal errors found
+     * @return the count
+     */
+    public int getErrorCount() {
+        return errorCount + fatalCount;
+    }
+
+    public int getWarningCount() {
+        return warningCount;
+    }
+
+    /**
+     * Checks if validation was stopped early by the fail fast limit
+     * @return <code>true</code> if validation was stopped
+     */
+    public boolean isAborted() {
+        return aborted;
+    }
+
     public void resetErrors(){
         errors.clear();
+        codes.clear();
+        warningCount = 0;
+        errorCount = 0;
+        fatalCount = 0;
+        aborted = false;
     }
 
     public boolean hasErrors(){
-        return !errors.isEmpty();
+        return warningCount + errorCount + fatalCount > 0;
     }
 
     public String toJson(boolean prettyPrint) throws JsonMappingException,
@@ -63,7 +270,10 @@ public class ValidatonErrorHandler implements ErrorHandler{
         }
     }
 
+    @JsonPropertyOrder({"severity", "code", "message", "lineNumber", "columnNumber"})
     public class Error{
+        private String severity;
+        private String code;
         private String message;
         private int lineNumber;
         private int columnNumber;
@@ -84,6 +294,22 @@ public class ValidatonErrorHandler implements ErrorHandler{
             this.lineNumber = lineNumber;
         }
 
+        public String getSeverity() {
+            return severity;
+        }
+
+        public void setSeverity(String severity) {
+            this.severity = severity;
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        public void setCode(String code) {
+            this.code = code;
+        }
+
         public String getMessage() {
             return message;
         }
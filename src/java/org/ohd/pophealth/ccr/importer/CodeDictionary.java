@@ -0,0 +1,363 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.ohd.pophealth.ccr.importer;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.ohd.pophealth.json.measuremodel.CodedValue;
+
+/**
+ * A process wide dictionary that gives each code of each coding system a
+ * compact <code>int</code> id, so the codes of records and measures can be
+ * kept as sorted <code>int[]</code> arrays and matched by integer set
+ * intersection.
+ * <p>
+ * Coding system names are normalized (case folded, with everything that is
+ * not a letter or digit removed) and mapped to a coding system through the
+ * terms of the coding system TermSets of the CCR vocabulary, so
+ * <code>ICD9-CM</code>, <code>icd9cm</code> and <code>ICD-9CM</code> are the
+ * same system.  Codes are case folded.  Coding system versions are not looked
+ * at.
+ * <p>
+ * A code of a known coding system only matches the same code of the same
+ * system.  A coding system that is missing or not in the vocabulary matches
+ * every system, as all codes did before coding systems were checked.  Free
+ * text descriptions, the <code>TEXT</code> coding system, are not given ids
+ * and never match a code.
+ * <p>
+ * Only value sets give out ids.  Record codes are looked up without adding
+ * them, a code no value set has can never match, so the dictionary grows
+ * with the codes of the measures loaded and not with the records evaluated.
+ * Ids are never taken back.  A record index built before more measures were
+ * loaded is stale, <code>size</code> tells when that has happened.
+ *
+ * @author ohdohd
+ */
+public class CodeDictionary {
+
+    private final static Logger LOG = Logger.getLogger(CodeDictionary.class.getName());
+    /**
+     * The system number of coding systems that are missing or unknown
+     */
+    public static final int ANY = 0;
+    /**
+     * Returned by the lookups for a code with no id
+     */
+    public static final int NONE = -1;
+    // TermSets of the vocabulary that name coding systems
+    private static final String[] codingSystemTermSets = {"icd9", "icd10",
+        "snomed", "rxnorm", "loinc", "cpt", "cvx", "hcpcs", "text"};
+    private static final String DEFAULT_VOCABULARY = "org/ohd/pophealth/ccr/importer/ccrvocabulary.json";
+    private static CodeDictionary instance;
+    // normalized coding system name -> system number
+    private final HashMap<String, Integer> systems = new HashMap<String, Integer>();
+    private final String[] systemNames;
+    private final int text;
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    // Written only after the id is in ids, so a reader that sees a size
+    // can find every id below it
+    private volatile int next = 0;
+
+    /**
+     * Creates a dictionary with the coding systems of a vocabulary
+     * @param vocab The vocabulary, <code>null</code> for one where every
+     *      coding system is unknown
+     */
+    public CodeDictionary(Vocabulary vocab) {
+        ArrayList<String> names = new ArrayList<String>();
+        names.add("*");
+        for (String id : codingSystemTermSets) {
+            if (vocab == null || !vocab.isValidTermSet(id)) {
+                continue;
+            }
+            int system = names.size();
+            names.add(id);
+            systems.put(normalize(id), system);
+            Iterator<String> terms = vocab.getTerms(id);
+            while (terms.hasNext()) {
+                String term = normalize(terms.next());
+                if (term.length() > 0 && !systems.containsKey(term)) {
+                    systems.put(term, system);
+                }
+            }
+        }
+        systemNames = names.toArray(new String[names.size()]);
+        Integer t = systems.get("text");
+        text = t == null ? NONE : t;
+    }
+
+    /**
+     * The dictionary used by the record and measure indexes, with the coding
+     * systems of the CCR vocabulary bundled with the importer
+     * @return the dictionary
+     */
+    public static synchronized CodeDictionary getInstance() {
+        if (instance == null) {
+            Vocabulary v = null;
+            try {
+                InputStream is = CodeDictionary.class.getClassLoader().getResourceAsStream(DEFAULT_VOCABULARY);
+                if (is != null) {
+                    try {
+                        v = Vocabulary.fromJson(is);
+                    } finally {
+                        is.close();
+                    }
+                }
+            } catch (Exception ex) {
+                LOG.log(Level.SEVERE, "Could not read the coding systems from " + DEFAULT_VOCABULARY, ex);
+            }
+            if (v == null) {
+                LOG.log(Level.WARNING, "No coding systems loaded, codes will be matched in any coding system");
+            }
+            instance = new CodeDictionary(v);
+        }
+        return instance;
+    }
+
+    /**
+     * Normalizes the name of a coding system
+     * @param codingSystem The name
+     * @return the name case folded with only its letters and digits
+     */
+    public static String normalize(String codingSystem) {
+        StringBuilder sb = new StringBuilder(codingSystem.length());
+        for (int i = 0; i < codingSystem.length(); i++) {
+            char c = codingSystem.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Folds a code for case insensitive matching
+     * @param code The code
+     * @return the folded code
+     */
+    public static String fold(String code) {
+        // Codes are ASCII, toLowerCase returns the same String if nothing changes
+        return code.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * The system number of a coding system name
+     * @param codingSystem The name, in any of the forms of the vocabulary
+     * @return the system number, <code>ANY</code> if missing or unknown
+     */
+    public int getSystem(String codingSystem) {
+        if (codingSystem == null) {
+            return ANY;
+        }
+        Integer s = systems.get(normalize(codingSystem));
+        return s == null ? ANY : s;
+    }
+
+    /**
+     * The TermSet id of a system number
+     * @param system The system number
+     * @return the id, <code>*</code> for <code>ANY</code>
+     */
+    public String getSystemName(int system) {
+        return systemNames[system];
+    }
+
+    /**
+     * The number of systems, including <code>ANY</code>
+     * @return the count
+     */
+    public int getSystemCount() {
+        return systemNames.length;
+    }
+
+    /**
+     * Checks if codes of two coding systems can match
+     * @param a A coding system name
+     * @param b Another coding system name
+     * @return true if they are the same system or either is unknown
+     */
+    public boolean isSameSystem(String a, String b) {
+        int sa = getSystem(a);
+        int sb = getSystem(b);
+        return sa == sb || sa == ANY || sb == ANY;
+    }
+
+    private static String key(int system, String code) {
+        return system + ":" + fold(code);
+    }
+
+    /**
+     * The id of a code, given one if it has none yet
+     * @param system The system number
+     * @param code The code, in any case
+     * @return the id
+     */
+    public int intern(int system, String code) {
+        String k = key(system, code);
+        Integer id = ids.get(k);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(k);
+            if (id == null) {
+                id = next;
+                ids.put(k, id);
+                next = id + 1;
+            }
+            return id;
+        }
+    }
+
+    /**
+     * The id of a code, without giving it one
+     * @param system The system number
+     * @param code The code, in any case
+     * @return the id or <code>NONE</code>
+     */
+    public int find(int system, String code) {
+        Integer id = ids.get(key(system, code));
+        return id == null ? NONE : id;
+    }
+
+    /**
+     * The number of ids given out.  Grows whenever a value set adds codes.
+     * @return the count
+     */
+    public int size() {
+        return next;
+    }
+
+    /**
+     * The ids of the codes of a clinical object.  Each code has the id of its
+     * own coding system, or of <code>ANY</code> if the system is unknown.
+     * Codes are only looked up, codes with no id are left out.
+     * @param codes The coded values of the clinical object
+     * @return the sorted, distinct ids
+     */
+    public int[] encodeRecord(List<CodedValue> codes) {
+        IntList l = new IntList();
+        if (codes == null) {
+            return l.toSortedSet();
+        }
+        for (CodedValue cv : codes) {
+            if (cv.getValues() == null) {
+                continue;
+            }
+            int system = getSystem(cv.getCodingSystem());
+            if (system == text) {
+                continue;
+            }
+            for (String v : cv.getValues()) {
+                if (v == null) {
+                    continue;
+                }
+                int id = find(system, v);
+                if (id != NONE) {
+                    l.add(id);
+                }
+            }
+        }
+        return l.toSortedSet();
+    }
+
+    /**
+     * The ids of the codes of a measure's value set.  A code of a known
+     * system has the id of its system and of <code>ANY</code>, a code of an
+     * unknown system has the id of every coded system, so the ids intersect
+     * those of <code>encodeRecord</code> exactly when the codes match.
+     * @param codes The coded values of the measure
+     * @return the sorted, distinct ids
+     */
+    public int[] encodeValueSet(List<CodedValue> codes) {
+        IntList l = new IntList();
+        if (codes == null) {
+            return l.toSortedSet();
+        }
+        for (CodedValue cv : codes) {
+            if (cv.getValues() == null) {
+                continue;
+            }
+            int system = getSystem(cv.getCodingSystem());
+            for (String v : cv.getValues()) {
+                if (v == null) {
+                    continue;
+                }
+                if (system != ANY) {
+                    l.add(intern(system, v));
+                    l.add(intern(ANY, v));
+                } else {
+                    for (int s = 0; s < systemNames.length; s++) {
+                        if (s != text) {
+                            l.add(intern(s, v));
+                        }
+                    }
+                }
+            }
+        }
+        return l.toSortedSet();
+    }
+
+    /**
+     * Checks if two sorted id arrays have an id in common
+     * @param a Sorted ids
+     * @param b Sorted ids
+     * @return true if they intersect
+     */
+    public static boolean intersects(int[] a, int[] b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] == b[j]) {
+                return true;
+            } else if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "CodeDictionary [" + (systemNames.length - 1) + " coding systems, " + size() + " codes]";
+    }
+
+    /*
+     * A growable list of ints
+     */
+    private static class IntList {
+
+        private int[] a = new int[8];
+        private int n = 0;
+
+        void add(int v) {
+            if (n == a.length) {
+                a = Arrays.copyOf(a, n * 2);
+            }
+            a[n++] = v;
+        }
+
+        int[] toSortedSet() {
+            Arrays.sort(a, 0, n);
+            int m = 0;
+            for (int i = 0; i < n; i++) {
+                if (m == 0 || a[i] != a[m - 1]) {
+                    a[m++] = a[i];
+                }
+            }
+            return Arrays.copyOf(a, m);
+        }
+    }
+}
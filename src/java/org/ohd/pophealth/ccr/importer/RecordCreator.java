@@ -59,14 +59,16 @@ import org.ohd.pophealth.json.clinicalmodel.Result;
 public class RecordCreator {
 
     private final static Logger LOG = Logger.getLogger(RecordCreator.class.getName());
-    // Current CCR being worked on
-    private ContinuityOfCareRecord ccr;
     // Controlled Vocabulary for working with CCR
     private Vocabulary v;
     // Required TermSets
     private static final String[] requiredTermSets = {"onset", "occurred",
         "resolved", "ended", "collected", "ordered", "gender_male", "gender_female"};
     private DateTimeFormatter fmt = ISODateTimeFormat.dateTimeParser(); // Formatter to parse ISO8601 Date Strings
+    // <Body> sections that clinical data is extracted from
+    private static final String[] extractedSections = {"Problems", "SocialHistory",
+        "Alerts", "Medications", "Immunizations", "VitalSigns", "Results",
+        "Procedures", "Encounters", "PlanOfCare"};
 
     /**
      * Construct a RecordCreator using a particular Vocabulary.  There is a base
@@ -96,6 +98,21 @@ public class RecordCreator {
         return requiredTermSets;
     }
 
+    /**
+     * Checks if clinical data is extracted from a CCR <Body> section
+     *
+     * @param section The element name of the section, such as <code>Results</code>
+     * @return <code>true</code> if the section is used to create a Record
+     */
+    public static boolean isExtractedSection(String section) {
+        for (String s : extractedSections) {
+            if (s.equals(section)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Creates a <code>Record</code> from the passed CCR
      *
@@ -103,18 +120,19 @@ public class RecordCreator {
      * @return  the extracted record
      */
     public Record createRecord(ContinuityOfCareRecord ccr) {
-        this.ccr = ccr;
         // Create a new Record and set all the attributes
         Record r = new Record();
-        r.setPatient(createPatient());
-        r.setActors(createActors());
-        r.setConditions(createConditions());
-        r.setEncounters(createEncounters());
-        r.setProcedures(createProcedures());
-        r.setResults(createResults());
-        r.setMedications(createMedications());
-        r.setAllergies(createAllergies());
-        r.setOrders(createOrders());
+        r.setPatient(createPatient(ccr));
+        r.setActors(createActors(ccr));
+        r.setConditions(createConditions(ccr));
+        r.setEncounters(createEncounters(ccr));
+        r.setProcedures(createProcedures(ccr));
+        r.setResults(createResults(ccr));
+        r.setMedications(createMedications(ccr));
+        r.setAllergies(createAllergies(ccr));
+        r.setOrders(createOrders(ccr));
+        // Indexed here so evaluations only probe codes
+        r.buildIndex();
 
         if (LOG.isLoggable(Level.FINEST)) {
             try {
@@ -134,7 +152,7 @@ public class RecordCreator {
      * This method walks through the list of CCR Actors and finds the Actor
      * with an <ActorObjectID> equal to the passed actorid.
      */
-    private ActorType getActorById(String actorid) {
+    private ActorType getActorById(ContinuityOfCareRecord ccr, String actorid) {
         for (ActorType a : ccr.getActors().getActor()) {
             if (actorid.equals(a.getActorObjectID())) {
                 return a;
@@ -147,8 +165,15 @@ public class RecordCreator {
      * Extracts the data for the <code>Patient</code> object for the <code>
      * Record</code>
      */
-    private Patient createPatient() {
-        ActorType pt = getActorById(ccr.getPatient().get(0).getActorID());
+    private Patient createPatient(ContinuityOfCareRecord ccr) {
+        return createPatient(getActorById(ccr, ccr.getPatient().get(0).getActorID()));
+    }
+
+    /*
+     * Extracts the data for the <code>Patient</code> object from the patient's
+     * CCR Actor
+     */
+    Patient createPatient(ActorType pt) {
         Patient p = new Patient();
 
         // Set Date Of Birth - Assumes DOB required by CCR Validation
@@ -227,106 +252,126 @@ public class RecordCreator {
      * Walks through the <Actor> nodes in /ContinuityOfCareRecord/Actors and
      * creates clinical model Actors
      */
-    private ArrayList<Actor> createActors() {
+    private ArrayList<Actor> createActors(ContinuityOfCareRecord ccr) {
         ArrayList<Actor> al = new ArrayList<Actor>();
         // Double check there are Actors in the CCR although it should not be the case there are none
         if (ccr.getActors() != null) {
             for (ActorType at : ccr.getActors().getActor()) {
-                Actor a = new Actor(at.getActorObjectID());
-                al.add(a);
+                al.add(createActor(at));
             }
         }
         return al;
     }
 
+    /*
+     * Creates a clinical model Actor from a CCR Actor
+     */
+    Actor createActor(ActorType at) {
+        return new Actor(at.getActorObjectID());
+    }
+
     /*
      * Walks through the <Problem> nodes in /ContinuityOfCareRecord/Body/Problems
      * and creates clinical model Conditions.  Also walks through <SocialHistoryElement>
      * nodes in /ContinuityOfCareRecord/Body/SocialHistory and creates clinical model conditions
      */
-    private ArrayList<Condition> createConditions() {
+    private ArrayList<Condition> createConditions(ContinuityOfCareRecord ccr) {
         ArrayList<Condition> cl = new ArrayList<Condition>();
         // Walk through CCR Problems
         if (ccr.getBody().getProblems() != null) {
             for (ProblemType pt : ccr.getBody().getProblems().getProblem()) {
-                Condition c = new Condition(pt.getCCRDataObjectID());
-                // Set Description
-                if (pt.getDescription() != null) {
-                    c.setDescription(convertToCodedValue(pt.getDescription()));
-                }
-                // Set status of the condition (i.e. is it active, chronic, resolved, etc.)
-                if (pt.getStatus() != null) {
-                    c.setStatus(convertToCodedValue(pt.getStatus()));
-                }
-                // Set the onset date of the Condition
-                String dateOnset = null;
-                try {
-                    dateOnset = findDate(v.getTermSet("onset"), pt.getDateTime());
-                } catch (NoValidDateFound ex) {
-                    Logger.getLogger(RecordCreator.class.getName()).log(Level.WARNING, "No onset date found for problem [{0}]", pt.getCCRDataObjectID());
-                }
-                if (dateOnset != null) {
-                    c.setOnset(convertISO8601toSecfromEpoch(dateOnset));
-                }
-                // Set the resolution date of the Condition
-                String dateResolve = null;
-                try {
-                    dateResolve = findDate(v.getTermSet("resolved"), pt.getDateTime());
-                } catch (NoValidDateFound ex) {
-                    // Not a problem many CCR Problems will not have a resolve date.
-                    Logger.getLogger(RecordCreator.class.getName()).log(Level.FINE, "No resolve date found for problem [{0}]", pt.getCCRDataObjectID());
-                }
-                if (dateResolve != null) {
-                    c.setResolution(convertISO8601toSecfromEpoch(dateResolve));
-                }
-                //TODO set Type on Condition
-                cl.add(c);
+                cl.add(createCondition(pt));
             }
         }
         // Walk through CCR SocialHistory
         if (ccr.getBody().getSocialHistory() != null) {
             for (SocialHistoryType sht : ccr.getBody().getSocialHistory().getSocialHistoryElement()) {
-                Condition c = new Condition(sht.getCCRDataObjectID());
-                // Set description
-                if (sht.getDescription() != null) {
-                    c.setDescription(convertToCodedValue(sht.getDescription()));
-                }
-                // Set status
-                if (sht.getStatus() != null) {
-                    c.setStatus(convertToCodedValue(sht.getStatus()));
-                }
-                // Set onset date
-                String dateOnset = null;
-                try {
-                    dateOnset = findDate(v.getTermSet("onset"), sht.getDateTime());
-                } catch (NoValidDateFound ex) {
-                    Logger.getLogger(RecordCreator.class.getName()).log(Level.WARNING, ex.getLocalizedMessage());
-                }
-                if (dateOnset != null) {
-                    c.setOnset(convertISO8601toSecfromEpoch(dateOnset));
-                }
-                // Set resolve date
-                String dateResolve = null;
-                try {
-                    dateResolve = findDate(v.getTermSet("resolved"), sht.getDateTime());
-                } catch (NoValidDateFound ex) {
-                    Logger.getLogger(RecordCreator.class.getName()).log(Level.WARNING, ex.getLocalizedMessage());
-                }
-                if (dateResolve != null) {
-                    c.setResolution(convertISO8601toSecfromEpoch(dateResolve));
-                }
-                //TODO set Type on Condition
-                cl.add(c);
+                cl.add(createCondition(sht));
             }
         }
         return cl;
     }
 
+    /*
+     * Creates a clinical model Condition from a CCR Problem
+     */
+    Condition createCondition(ProblemType pt) {
+        Condition c = new Condition(pt.getCCRDataObjectID());
+        // Set Description
+        if (pt.getDescription() != null) {
+            c.setDescription(convertToCodedValue(pt.getDescription()));
+        }
+        // Set status of the condition (i.e. is it active, chronic, resolved, etc.)
+        if (pt.getStatus() != null) {
+            c.setStatus(convertToCodedValue(pt.getStatus()));
+        }
+        // Set the onset date of the Condition
+        String dateOnset = null;
+        try {
+            dateOnset = findDate(v.getTermSet("onset"), pt.getDateTime());
+        } catch (NoValidDateFound ex) {
+            Logger.getLogger(RecordCreator.class.getName()).log(Level.WARNING, "No onset date found for problem [{0}]", pt.getCCRDataObjectID());
+        }
+        if (dateOnset != null) {
+            c.setOnset(convertISO8601toSecfromEpoch(dateOnset));
+        }
+        // Set the resolution date of the Condition
+        String dateResolve = null;
+        try {
+            dateResolve = findDate(v.getTermSet("resolved"), pt.getDateTime());
+        } catch (NoValidDateFound ex) {
+            // Not a problem many CCR Problems will not have a resolve date.
+            Logger.getLogger(RecordCreator.class.getName()).log(Level.FINE, "No resolve date found for problem [{0}]", pt.getCCRDataObjectID());
+        }
+        if (dateResolve != null) {
+            c.setResolution(convertISO8601toSecfromEpoch(dateResolve));
+        }
+        //TODO set Type on Condition
+        return c;
+    }
+
+    /*
+     * Creates a clinical model Condition from a CCR SocialHistoryElement
+     */
+    Condition createCondition(SocialHistoryType sht) {
+        Condition c = new Condition(sht.getCCRDataObjectID());
+        // Set description
+        if (sht.getDescription() != null) {
+            c.setDescription(convertToCodedValue(sht.getDescription()));
+        }
+        // Set status
+        if (sht.getStatus() != null) {
+            c.setStatus(convertToCodedValue(sht.getStatus()));
+        }
+        // Set onset date
+        String dateOnset = null;
+        try {
+            dateOnset = findDate(v.getTermSet("onset"), sht.getDateTime());
+        } catch (NoValidDateFound ex) {
+            Logger.getLogger(RecordCreator.class.getName()).log(Level.WARNING, ex.getLocalizedMessage());
+        }
+        if (dateOnset != null) {
+            c.setOnset(convertISO8601toSecfromEpoch(dateOnset));
+        }
+        // Set resolve date
+        String dateResolve = null;
+        try {
+            dateResolve = findDate(v.getTermSet("resolved"), sht.getDateTime());
+        } catch (NoValidDateFound ex) {
+            Logger.getLogger(RecordCreator.class.getName()).log(Level.WARNING, ex.getLocalizedMessage());
+        }
+        if (dateResolve != null) {
+            c.setResolution(convertISO8601toSecfromEpoch(dateResolve));
+        }
+        //TODO set Type on Condition
+        return c;
+    }
+
     /*
      * Walks through the <Encounter> nodes in /ContinuityOfCareRecord/Body/Encounters
      * and creates clinical model Encounters
      */
-    private ArrayList<Encounter> createEncounters() {
+    private ArrayList<Encounter> createEncounters(ContinuityOfCareRecord ccr) {
         ArrayList<Encounter> el = new ArrayList<Encounter>();
         if (ccr.getBody().getEncounters() != null) {
             for (EncounterType et : ccr.getBody().getEncounters().getEncounter()) {
@@ -339,7 +384,7 @@ public class RecordCreator {
         return el;
     }
 
-    private Encounter createEncounter(EncounterType et) {
+    Encounter createEncounter(EncounterType et) {
         Encounter e = new Encounter(et.getCCRDataObjectID());
         // Set description
         if (et.getDescription() != null) {
@@ -378,7 +423,7 @@ public class RecordCreator {
      * Walks through the <Result> nodes in both /ContinuityOfCareRecord/Body/Results
      * and /ContinuityOfCareRecord/Body/VitalSigns
      */
-    private ArrayList<Result> createResults() {
+    private ArrayList<Result> createResults(ContinuityOfCareRecord ccr) {
         ArrayList<Result> rl = new ArrayList<Result>();
         // Create results from the CCR <Results> section
         if (ccr.getBody().getResults() != null) {
@@ -398,7 +443,7 @@ public class RecordCreator {
     /*
      * Creates a clinical model result from a CCR ResultType
      */
-    private Result createResult(ResultType rt) {
+    Result createResult(ResultType rt) {
         Result r = new Result(rt.getCCRDataObjectID());
         // Set description
         if (rt.getDescription() != null) {
@@ -472,7 +517,7 @@ public class RecordCreator {
      * Create clinical model Medications from CCR Medications in
      * /ContinuityOfCare/Body/Medications and /ContinuityOfCare/Body/Immunizations
      */
-    private ArrayList<Medication> createMedications() {
+    private ArrayList<Medication> createMedications(ContinuityOfCareRecord ccr) {
         ArrayList<Medication> ml = new ArrayList<Medication>();
         // Create from CCR Medications
         if (ccr.getBody().getMedications() != null) {
@@ -492,7 +537,7 @@ public class RecordCreator {
     /*
      * Creates a clinical model Medication from a CCR Structured Product
      */
-    private Medication createMedication(StructuredProductType med) {
+    Medication createMedication(StructuredProductType med) {
         Medication m = new Medication(med.getCCRDataObjectID());
         // Set the description of the Medication by adding the general CCR
         // description and the codedvalues of the product name and brand name
@@ -537,112 +582,126 @@ public class RecordCreator {
     /*
      * Create clinical model Allergy objects from CCR Alerts
      */
-    private ArrayList<Allergy> createAllergies() {
+    private ArrayList<Allergy> createAllergies(ContinuityOfCareRecord ccr) {
         ArrayList<Allergy> al = new ArrayList<Allergy>();
         if (ccr.getBody().getAlerts() != null) {
             for (AlertType at : ccr.getBody().getAlerts().getAlert()) {
-                Allergy a = new Allergy(at.getCCRDataObjectID());
-                // Set type
-                if (at.getType() != null) {
-                    a.setType(convertToCodedValue(at.getType()));
-                }
-                // Set the description using Alert <Description> and Alert <Agent>
-                if (at.getDescription() != null) {
-                    a.addDescription(convertToCodedValue(at.getDescription()));
-                }
-                for (Agent agt : at.getAgent()) {
-                    // Walk through any Products and add to description
-                    if (agt.getProducts() != null) {
-                        for (StructuredProductType pt : agt.getProducts().getProduct()) {
-                            if (pt.getDescription() != null) {
-                                a.addDescription(convertToCodedValue(pt.getDescription()));
-                            }
-                            // A medication Product can be a collection of products
-                            for (Product pdt : pt.getProduct()) {
-                                a.addDescription(convertToCodedValue(pdt.getProductName()));
-                                if (pdt.getBrandName() != null) {
-                                    a.addDescription(convertToCodedValue(pdt.getBrandName()));
-                                }
-                            }
-                        }
+                al.add(createAllergy(at));
+            }
+        }
+        return al;
+    }
+
+    /*
+     * Creates a clinical model Allergy from a CCR Alert
+     */
+    Allergy createAllergy(AlertType at) {
+        Allergy a = new Allergy(at.getCCRDataObjectID());
+        // Set type
+        if (at.getType() != null) {
+            a.setType(convertToCodedValue(at.getType()));
+        }
+        // Set the description using Alert <Description> and Alert <Agent>
+        if (at.getDescription() != null) {
+            a.addDescription(convertToCodedValue(at.getDescription()));
+        }
+        for (Agent agt : at.getAgent()) {
+            // Walk through any Products and add to description
+            if (agt.getProducts() != null) {
+                for (StructuredProductType pt : agt.getProducts().getProduct()) {
+                    if (pt.getDescription() != null) {
+                        a.addDescription(convertToCodedValue(pt.getDescription()));
                     }
-                    // Walk through the Environmental Agents as well
-                    if (agt.getEnvironmentalAgents() != null) {
-                        for (CCRCodedDataObjectType cdt : agt.getEnvironmentalAgents().getEnvironmentalAgent()) {
-                            if (cdt.getDescription() != null) {
-                                a.addDescription(convertToCodedValue(cdt.getDescription()));
-                            }
+                    // A medication Product can be a collection of products
+                    for (Product pdt : pt.getProduct()) {
+                        a.addDescription(convertToCodedValue(pdt.getProductName()));
+                        if (pdt.getBrandName() != null) {
+                            a.addDescription(convertToCodedValue(pdt.getBrandName()));
                         }
                     }
                 }
-                try {
-                    // Set Onset Date
-                    String onsetDate = findDate(v.getTermSet("onset"), at.getDateTime());
-                    if (onsetDate != null) {
-                        a.setOnset(convertISO8601toSecfromEpoch(onsetDate));
+            }
+            // Walk through the Environmental Agents as well
+            if (agt.getEnvironmentalAgents() != null) {
+                for (CCRCodedDataObjectType cdt : agt.getEnvironmentalAgents().getEnvironmentalAgent()) {
+                    if (cdt.getDescription() != null) {
+                        a.addDescription(convertToCodedValue(cdt.getDescription()));
                     }
-                } catch (NoValidDateFound ex) {
-                    Logger.getLogger(RecordCreator.class.getName()).log(Level.WARNING, ex.getMessage());
                 }
-                al.add(a);
             }
         }
-        return al;
+        try {
+            // Set Onset Date
+            String onsetDate = findDate(v.getTermSet("onset"), at.getDateTime());
+            if (onsetDate != null) {
+                a.setOnset(convertISO8601toSecfromEpoch(onsetDate));
+            }
+        } catch (NoValidDateFound ex) {
+            Logger.getLogger(RecordCreator.class.getName()).log(Level.WARNING, ex.getMessage());
+        }
+        return a;
     }
 
     /*
      * Create clinical model procedures from CCR Procedures
      */
-    private ArrayList<Procedure> createProcedures() {
+    private ArrayList<Procedure> createProcedures(ContinuityOfCareRecord ccr) {
         // At this point a Procedure is just another encounter
         ArrayList<Procedure> pL = new ArrayList<Procedure>();
         if (ccr.getBody().getProcedures() != null) {
             for (ProcedureType pt : ccr.getBody().getProcedures().getProcedure()) {
-                Procedure p = new Procedure(pt.getCCRDataObjectID());
-                // Set type
-                if (pt.getType() != null) {
-                    p.setType(convertToCodedValue(pt.getType()));
-                }
-                // Set description
-                if (pt.getDescription() != null) {
-                    p.setDescription(convertToCodedValue(pt.getDescription()));
-                }
-                // Set the date the procedure occurred
-                try {
-                    String encounterDate = findDate(v.getTermSet("occurred"), pt.getDateTime());
-                    if (encounterDate != null) {
-                        p.setOccurred(convertISO8601toSecfromEpoch(encounterDate));
-                    }
-                } catch (NoValidDateFound ex) {
-                    Logger.getLogger(RecordCreator.class.getName()).log(Level.WARNING, ex.getMessage());
-                }
-                // Set the date the procedure ended on
-                try {
-                    String endDate = findDate(v.getTermSet("ended"), pt.getDateTime());
-                    if (endDate != null) {
-                        p.setEnded(convertISO8601toSecfromEpoch(endDate));
-                    }
-                } catch (NoValidDateFound ex) {
-                    Logger.getLogger(RecordCreator.class.getName()).log(Level.WARNING, ex.getMessage());
-                }
-                // Set the list of practitioners involved in the procedure
-                if (pt.getPractitioners() != null) {
-                    for (ActorReferenceType art : pt.getPractitioners().getPractitioner()) {
-                        p.addProvider(art.getActorID());
-                    }
-                }
-                pL.add(p);
+                pL.add(createProcedure(pt));
             }
         }
 
         return pL;
     }
 
+    /*
+     * Creates a clinical model Procedure from a CCR Procedure
+     */
+    Procedure createProcedure(ProcedureType pt) {
+        Procedure p = new Procedure(pt.getCCRDataObjectID());
+        // Set type
+        if (pt.getType() != null) {
+            p.setType(convertToCodedValue(pt.getType()));
+        }
+        // Set description
+        if (pt.getDescription() != null) {
+            p.setDescription(convertToCodedValue(pt.getDescription()));
+        }
+        // Set the date the procedure occurred
+        try {
+            String encounterDate = findDate(v.getTermSet("occurred"), pt.getDateTime());
+            if (encounterDate != null) {
+                p.setOccurred(convertISO8601toSecfromEpoch(encounterDate));
+            }
+        } catch (NoValidDateFound ex) {
+            Logger.getLogger(RecordCreator.class.getName()).log(Level.WARNING, ex.getMessage());
+        }
+        // Set the date the procedure ended on
+        try {
+            String endDate = findDate(v.getTermSet("ended"), pt.getDateTime());
+            if (endDate != null) {
+                p.setEnded(convertISO8601toSecfromEpoch(endDate));
+            }
+        } catch (NoValidDateFound ex) {
+            Logger.getLogger(RecordCreator.class.getName()).log(Level.WARNING, ex.getMessage());
+        }
+        // Set the list of practitioners involved in the procedure
+        if (pt.getPractitioners() != null) {
+            for (ActorReferenceType art : pt.getPractitioners().getPractitioner()) {
+                p.addProvider(art.getActorID());
+            }
+        }
+        return p;
+    }
+
     /*
      * Create clinical model Orders from CCR Orders. Also where clinical model
      * Goals are created.
      */
-    private ArrayList<Order> createOrders() {
+    private ArrayList<Order> createOrders(ContinuityOfCareRecord ccr) {
         ArrayList<Order> ol = new ArrayList<Order>();
         // There are three places for coded descriptions for orders
         // //Plan/Description  //Plan/OrderRequest/Description  //Plan/OrderRequest/*/Description
@@ -650,108 +709,116 @@ public class RecordCreator {
         // down if not set in the OrderRequest.
         if (ccr.getBody().getPlanOfCare() != null) {
             for (PlanType pt : ccr.getBody().getPlanOfCare().getPlan()) {
+                ol.addAll(createOrders(pt));
+            }
+        }
 
-                String planOrderDate = null;
-                ArrayList<CodedValue> planDescription = new ArrayList<CodedValue>();
-                ArrayList<CodedValue> planType = new ArrayList<CodedValue>();
-                // Check for an ordered date for the <Plan>
-                try {
-                    planOrderDate = findDate(v.getTermSet("ordered"), pt.getDateTime());
-                } catch (NoValidDateFound ex) {
-                    //Logger.getLogger(RecordCreator.class.getName()).log(Level.INFO, "No ordered date found", ex);
+
+        return ol;
+    }
+
+    /*
+     * Creates the clinical model Orders for each <OrderRequest> in a CCR Plan
+     */
+    ArrayList<Order> createOrders(PlanType pt) {
+        ArrayList<Order> ol = new ArrayList<Order>();
+        String planOrderDate = null;
+        ArrayList<CodedValue> planDescription = new ArrayList<CodedValue>();
+        ArrayList<CodedValue> planType = new ArrayList<CodedValue>();
+        // Check for an ordered date for the <Plan>
+        try {
+            planOrderDate = findDate(v.getTermSet("ordered"), pt.getDateTime());
+        } catch (NoValidDateFound ex) {
+            //Logger.getLogger(RecordCreator.class.getName()).log(Level.INFO, "No ordered date found", ex);
+        }
+        // Check for a description for the <Plan>
+        if (pt.getDescription() != null) {
+            planDescription.addAll(convertToCodedValue(pt.getDescription()));
+        }
+        // Set the type
+        if (pt.getType() != null) {
+            planType.addAll(convertToCodedValue(pt.getType()));
+        }
+        // Now walk through each <OrderRequest> and create a clinical model Order
+        for (PlanOfCareType pct : pt.getOrderRequest()) {
+            Order o = new Order(pt.getCCRDataObjectID());
+            // Check for an ordered date on the OrderRequest and if not found use <Plan> order date
+            try {
+                String orderDate = findDate(v.getTermSet("ordered"), pct.getDateTime());
+
+            } catch (NoValidDateFound ex) {
+                if (planOrderDate == null) {
+                    Logger.getLogger(RecordCreator.class.getName()).log(Level.WARNING, ex.getMessage());
+                } else {
+                    o.setOrderDate(convertISO8601toSecfromEpoch(planOrderDate));
                 }
-                // Check for a description for the <Plan>
-                if (pt.getDescription() != null) {
-                    planDescription.addAll(convertToCodedValue(pt.getDescription()));
+            }
+            // Add the <Plan> type to the Order type
+            o.addType(planType);
+            // Add the <Plan> description to the Order description
+            o.addDescription(planDescription);
+            // If the OrderRequest has a description add it to the Order as well
+            if (pct.getDescription() != null) {
+                o.addDescription(convertToCodedValue(pct.getDescription()));
+            }
+            // For each of the types of orderrequests, add to the Order
+            // Walk through Procedures
+            // TODO Add Procedure to Clinical Model
+            // Walk through Products
+            if (pct.getProducts() != null) {
+                for (StructuredProductType spt : pct.getProducts().getProduct()) {
+                    o.addOrderRequest(createMedication(spt));
                 }
-                // Set the type
-                if (pt.getType() != null) {
-                    planType.addAll(convertToCodedValue(pt.getType()));
+            }
+            // Walk through Medications
+            if (pct.getMedications() != null) {
+                for (StructuredProductType spt : pct.getMedications().getMedication()) {
+                    o.addOrderRequest(createMedication(spt));
                 }
-                // Now walk through each <OrderRequest> and create a clinical model Order
-                for (PlanOfCareType pct : pt.getOrderRequest()) {
-                    Order o = new Order(pt.getCCRDataObjectID());
-                    // Check for an ordered date on the OrderRequest and if not found use <Plan> order date
-                    try {
-                        String orderDate = findDate(v.getTermSet("ordered"), pct.getDateTime());
-
-                    } catch (NoValidDateFound ex) {
-                        if (planOrderDate == null) {
-                            Logger.getLogger(RecordCreator.class.getName()).log(Level.WARNING, ex.getMessage());
-                        } else {
-                            o.setOrderDate(convertISO8601toSecfromEpoch(planOrderDate));
-                        }
-                    }
-                    // Add the <Plan> type to the Order type
-                    o.addType(planType);
-                    // Add the <Plan> description to the Order description
-                    o.addDescription(planDescription);
-                    // If the OrderRequest has a description add it to the Order as well
-                    if (pct.getDescription() != null) {
-                        o.addDescription(convertToCodedValue(pct.getDescription()));
-                    }
-                    // For each of the types of orderrequests, add to the Order
-                    // Walk through Procedures
-                    // TODO Add Procedure to Clinical Model
-                    // Walk through Products
-                    if (pct.getProducts() != null) {
-                        for (StructuredProductType spt : pct.getProducts().getProduct()) {
-                            o.addOrderRequest(createMedication(spt));
-                        }
-                    }
-                    // Walk through Medications
-                    if (pct.getMedications() != null) {
-                        for (StructuredProductType spt : pct.getMedications().getMedication()) {
-                            o.addOrderRequest(createMedication(spt));
-                        }
-                    }
-                    // Walk through Immunizations
-                    if (pct.getImmunizations() != null) {
-                        for (StructuredProductType spt : pct.getImmunizations().getImmunization()) {
-                            o.addOrderRequest(createMedication(spt));
-                        }
-                    }
-                    // Walk through Services
-                    if (pct.getServices() != null) {
-                        for (EncounterType et : pct.getServices().getService()) {
-                            o.addOrderRequest(createEncounter(et));
-                        }
+            }
+            // Walk through Immunizations
+            if (pct.getImmunizations() != null) {
+                for (StructuredProductType spt : pct.getImmunizations().getImmunization()) {
+                    o.addOrderRequest(createMedication(spt));
+                }
+            }
+            // Walk through Services
+            if (pct.getServices() != null) {
+                for (EncounterType et : pct.getServices().getService()) {
+                    o.addOrderRequest(createEncounter(et));
+                }
+            }
+            // Walk through Encounters
+            if (pct.getEncounters() != null) {
+                for (EncounterType et : pct.getEncounters().getEncounter()) {
+                    o.addOrderRequest(createEncounter(et));
+                }
+            }
+            // TODO Skipped Authorizations
+
+            // Create the Goals for the order
+            if (pct.getGoals() != null) {
+                for (GoalType gt : pct.getGoals().getGoal()) {
+                    Goal g = new Goal(gt.getCCRDataObjectID());
+                    if (gt.getDescription() != null) {
+                        g.setDescription(convertToCodedValue(gt.getDescription()));
                     }
-                    // Walk through Encounters
-                    if (pct.getEncounters() != null) {
-                        for (EncounterType et : pct.getEncounters().getEncounter()) {
-                            o.addOrderRequest(createEncounter(et));
-                        }
+                    if (gt.getType() != null) {
+                        g.setType(convertToCodedValue(gt.getType()));
                     }
-                    // TODO Skipped Authorizations
-
-                    // Create the Goals for the order
-                    if (pct.getGoals() != null) {
-                        for (GoalType gt : pct.getGoals().getGoal()) {
-                            Goal g = new Goal(gt.getCCRDataObjectID());
-                            if (gt.getDescription() != null) {
-                                g.setDescription(convertToCodedValue(gt.getDescription()));
-                            }
-                            if (gt.getType() != null) {
-                                g.setType(convertToCodedValue(gt.getType()));
-                            }
-                            try {
-                                String goalDate = findDate(v.getTermSet("onset"), gt.getDateTime());
-                                if (goalDate != null) {
-                                    g.setGoalDate(convertISO8601toSecfromEpoch(goalDate));
-                                }
-                            } catch (NoValidDateFound ex) {
-                                Logger.getLogger(RecordCreator.class.getName()).log(Level.WARNING, ex.getMessage());
-                            }
-                            o.addGoal(g);
+                    try {
+                        String goalDate = findDate(v.getTermSet("onset"), gt.getDateTime());
+                        if (goalDate != null) {
+                            g.setGoalDate(convertISO8601toSecfromEpoch(goalDate));
                         }
+                    } catch (NoValidDateFound ex) {
+                        Logger.getLogger(RecordCreator.class.getName()).log(Level.WARNING, ex.getMessage());
                     }
-                    ol.add(o);
+                    o.addGoal(g);
                 }
             }
+            ol.add(o);
         }
-
-
         return ol;
     }
 
@@ -795,10 +862,9 @@ public class RecordCreator {
      * @return <code>true</code> if there is a match, otherwise <code>false</code>
      */
     public static boolean codeMatch(ArrayList<CodedValue> cvList, CodedDescriptionType cdt) {
-        // TODO Need to check for coding system.
-        // Do not now becuase no overlap in SNOMED, ICD9, ICD10
-        // Will need to leverage coding system names from CCR Validator and map
-        //  to the names used by quality measures
+        // Coding system names are mapped through the CodeDictionary, an
+        // unknown coding system matches any system
+        CodeDictionary cd = CodeDictionary.getInstance();
 
         // Step through each coded value in the list
         for (CodedValue cv : cvList) {
@@ -806,7 +872,8 @@ public class RecordCreator {
             for (String c : cv.getValues()) {
                 // Compare the value to each code in the CCR coded item
                 for (CodeType ct : cdt.getCode()) {
-                    if (c.equals(ct.getValue())) {
+                    if (c.equals(ct.getValue())
+                            && cd.isSameSystem(cv.getCodingSystem(), ct.getCodingSystem())) {
                         return true;
                     }
                 }
@@ -909,14 +976,11 @@ public class RecordCreator {
     }
 
     /*
-     * In the real world it will require a little bit of coding to handle the
-     * variations in naming of coding systems and the issues around versioning
-     * of the coding systems.  
+     * The variations in naming of coding systems are handled by the
+     * CodeDictionary, versions of the coding systems are not looked at.
+     * A TermSet code with no coding system matches any system.
      */
     private boolean isSameCodingSystem(CodedValue cv, CodeType ct) {
-        // TODO Not yet implemented (works okay now for ICD, SNOMED, RXNORM)
-        // Need to check the codingsystem in the CCR code against the
-        // correct TermSet based on cv.getCodingSystem()
-        return true;
+        return CodeDictionary.getInstance().isSameSystem(cv.getCodingSystem(), ct.getCodingSystem());
     }
 }
@@ -0,0 +1,240 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.ohd.pophealth.ccr.importer;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+import javax.xml.transform.stream.StreamSource;
+import org.ohd.pophealth.json.measuremodel.Measure;
+import org.ohd.pophealth.json.measuremodel.QualityMeasure;
+
+/**
+ * The set of CCR <Body> sections that need to be read for a set of quality
+ * measures.  All other <Body> sections (FamilyHistory, AdvanceDirectives,
+ * Payers, ...) are skipped by the parser before they reach JAXB, so no objects
+ * are created and no text is kept for them.  Only <Body> sections are skipped,
+ * all of them are optional so a projected CCR is still valid against the schema.
+ *
+ * @author ohdohd
+ */
+public class SectionProjection {
+
+    private static final XMLInputFactory xif = XMLInputFactory.newInstance();
+
+    static {
+        xif.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        xif.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+    private Set<String> keptSections;
+
+    /**
+     * Creates a projection keeping only the named <Body> sections
+     * @param keptSections Element names of the sections to keep
+     */
+    public SectionProjection(Collection<String> keptSections) {
+        this.keptSections = Collections.unmodifiableSet(new HashSet<String>(keptSections));
+    }
+
+    /**
+     * Creates the projection needed to evaluate a set of quality measures.  A
+     * section is kept if the <code>RecordCreator</code> extracts from it into
+     * a record category used by one of the measures.  The <code>PreProcessor</code>
+     * only works on sections that feed these same categories (Encounters,
+     * SocialHistory into Problems and the coded sections) so it does not add
+     * any sections of its own.
+     *
+     * @param measures The quality measures that will be evaluated
+     * @return the projection
+     */
+    public static SectionProjection forMeasures(Collection<QualityMeasure> measures) {
+        HashSet<String> kept = new HashSet<String>();
+        for (QualityMeasure qm : measures) {
+            for (Measure m : qm.getMeasures()) {
+                addSections(m.getCategory(), kept);
+            }
+        }
+        return new SectionProjection(kept);
+    }
+
+    /*
+     * Adds the <Body> sections the records for a measure category are created from.
+     * Follows how the QualityMeasureEvaluator matches each category.
+     */
+    private static void addSections(Measure.CAT category, Set<String> kept) {
+        if (category == null) {
+            return;
+        }
+        switch (category) {
+            case Condition:
+            case Characteristic:
+                kept.add("Problems");
+                kept.add("SocialHistory");
+                break;
+            case Encounter:
+                kept.add("Encounters");
+                break;
+            case Result:
+            case VitalSign:
+                kept.add("Results");
+                kept.add("VitalSigns");
+                break;
+            case Medication:
+            case Immunization:
+                kept.add("Medications");
+                kept.add("Immunizations");
+                break;
+            case PhysicalExam:
+                // Physical Exam items could be either a procedure or result
+                kept.add("Procedures");
+                kept.add("Results");
+                kept.add("VitalSigns");
+                break;
+            case Communication:
+                // Communication maybe an encounter or an order
+                kept.add("Encounters");
+                kept.add("PlanOfCare");
+                break;
+            case Allergy:
+                kept.add("Alerts");
+                break;
+            case Procedure:
+                kept.add("Procedures");
+                break;
+            case Order:
+            case Goal:
+                kept.add("PlanOfCare");
+                break;
+            default:
+                // Not evaluated so nothing to read
+        }
+    }
+
+    public Set<String> getKeptSections() {
+        return keptSections;
+    }
+
+    /**
+     * Checks if a <Body> section is skipped by this projection
+     * @param section The element name of the section
+     * @return <code>true</code> if the section is not read
+     */
+    public boolean isSkipped(String section) {
+        return !keptSections.contains(section);
+    }
+
+    /**
+     * Wraps a reader so the skipped <Body> sections are passed over.  The
+     * reader must not have moved past the start of the document.
+     * @param reader The reader over the CCR
+     * @return a reader that does not return any events for skipped sections
+     */
+    public XMLStreamReader filter(XMLStreamReader reader) {
+        return new ProjectingReader(reader);
+    }
+
+    /**
+     * Creates a projected reader over the stream or reader of a StreamSource
+     * @param src The CCR source
+     * @return the projected reader, must be closed by the caller
+     * @throws XMLStreamException
+     */
+    public XMLStreamReader createReader(StreamSource src) throws XMLStreamException {
+        XMLStreamReader reader;
+        if (src.getInputStream() != null) {
+            reader = xif.createXMLStreamReader(src.getSystemId(), src.getInputStream());
+        } else if (src.getReader() != null) {
+            reader = xif.createXMLStreamReader(src.getSystemId(), src.getReader());
+        } else {
+            throw new XMLStreamException("StreamSource has no InputStream or Reader");
+        }
+        return filter(reader);
+    }
+
+    @Override
+    public String toString() {
+        return "SectionProjection " + keptSections;
+    }
+
+    /*
+     * Passes over the skipped sections by reading through them at the parser
+     * level.  Tracks the element depth to find the children of <Body>.
+     */
+    private class ProjectingReader extends StreamReaderDelegate {
+
+        private int depth = 0;
+        private boolean inBody = false;
+
+        ProjectingReader(XMLStreamReader reader) {
+            super(reader);
+        }
+
+        @Override
+        public int next() throws XMLStreamException {
+            int event = super.next();
+            while (true) {
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    if (depth == 2) {
+                        inBody = "Body".equals(getLocalName());
+                    } else if (depth == 3 && inBody && isSkipped(getLocalName())) {
+                        skipSection();
+                        depth--;
+                        event = super.next();
+                        continue;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (depth == 2) {
+                        inBody = false;
+                    }
+                    depth--;
+                }
+                return event;
+            }
+        }
+
+        @Override
+        public int nextTag() throws XMLStreamException {
+            int event = next();
+            while ((event == XMLStreamConstants.CHARACTERS && isWhiteSpace())
+                    || (event == XMLStreamConstants.CDATA && isWhiteSpace())
+                    || event == XMLStreamConstants.SPACE
+                    || event == XMLStreamConstants.COMMENT
+                    || event == XMLStreamConstants.PROCESSING_INSTRUCTION) {
+                event = next();
+            }
+            if (event != XMLStreamConstants.START_ELEMENT && event != XMLStreamConstants.END_ELEMENT) {
+                throw new XMLStreamException("Expected start or end tag", getLocation());
+            }
+            return event;
+        }
+
+        /*
+         * Reads up to the end tag of the current section
+         */
+        private void skipSection() throws XMLStreamException {
+            int d = 0;
+            while (true) {
+                int event = super.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    d++;
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (d == 0) {
+                        return;
+                    }
+                    d--;
+                } else if (event == XMLStreamConstants.END_DOCUMENT) {
+                    throw new XMLStreamException("Unexpected end of CCR in skipped section", getLocation());
+                }
+            }
+        }
+    }
+}
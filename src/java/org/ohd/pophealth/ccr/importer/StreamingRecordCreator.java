@@ -0,0 +1,371 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.ohd.pophealth.ccr.importer;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.stream.StreamSource;
+import org.astm.ccr.ActorType;
+import org.astm.ccr.AlertType;
+import org.astm.ccr.EncounterType;
+import org.astm.ccr.PlanType;
+import org.astm.ccr.ProblemType;
+import org.astm.ccr.ProcedureType;
+import org.astm.ccr.ResultType;
+import org.astm.ccr.SocialHistoryType;
+import org.astm.ccr.StructuredProductType;
+import org.ohd.pophealth.json.clinicalmodel.Actor;
+import org.ohd.pophealth.json.clinicalmodel.Allergy;
+import org.ohd.pophealth.json.clinicalmodel.Condition;
+import org.ohd.pophealth.json.clinicalmodel.Encounter;
+import org.ohd.pophealth.json.clinicalmodel.Medication;
+import org.ohd.pophealth.json.clinicalmodel.Order;
+import org.ohd.pophealth.json.clinicalmodel.Procedure;
+import org.ohd.pophealth.json.clinicalmodel.Record;
+import org.ohd.pophealth.json.clinicalmodel.Result;
+
+/**
+ * Creates a <code>Record</code> while streaming through the CCR XML instead
+ * of from a fully unmarshalled <code>ContinuityOfCareRecord</code>.  Sections
+ * that are not used by the <code>RecordCreator</code> are skipped without
+ * creating any objects.  Each clinical data object (a single <Result>,
+ * <Problem>, etc.) is unmarshalled on its own, converted using the same
+ * <code>RecordCreator</code> logic and then dropped, so memory use is bounded
+ * by the largest single item instead of the whole document.
+ *
+ * @author ohdohd
+ */
+public class StreamingRecordCreator {
+
+    private final static Logger LOG = Logger.getLogger(StreamingRecordCreator.class.getName());
+    private static final XMLInputFactory xif = XMLInputFactory.newInstance();
+
+    static {
+        xif.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        xif.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+    private RecordCreator rc;
+
+    /**
+     * Construct a StreamingRecordCreator using a particular Vocabulary
+     * @param vocab CCR Vocabulary to use during CCR data extraction
+     * @throws InCompleteVocabularyException Thrown if not all of the required
+     *      termsets are in the passed Vocabulary
+     */
+    public StreamingRecordCreator(Vocabulary vocab) throws InCompleteVocabularyException {
+        this.rc = new RecordCreator(vocab);
+    }
+
+    /**
+     * Construct a StreamingRecordCreator sharing the conversion logic of an
+     * existing RecordCreator
+     * @param rc The RecordCreator to use to convert each CCR item
+     */
+    public StreamingRecordCreator(RecordCreator rc) {
+        this.rc = rc;
+    }
+
+    /**
+     * Creates a <code>Record</code> from the CCR in a StreamSource
+     * @param src StreamSource holding either an InputStream or Reader
+     * @param u Unmarshaller for the <code>org.astm.ccr</code> package
+     * @return the extracted record
+     * @throws XMLStreamException Thrown if the CCR could not be read
+     * @throws JAXBException Thrown if a CCR item could not be unmarshalled
+     */
+    public Record createRecord(StreamSource src, Unmarshaller u) throws XMLStreamException, JAXBException {
+        return createRecord(src, u, null);
+    }
+
+    /**
+     * Creates a <code>Record</code> from the CCR in a StreamSource, reading
+     * only the <Body> sections kept by a projection
+     * @param src StreamSource holding either an InputStream or Reader
+     * @param u Unmarshaller for the <code>org.astm.ccr</code> package
+     * @param projection The sections to read, <code>null</code> to read all sections
+     * @return the extracted record
+     * @throws XMLStreamException Thrown if the CCR could not be read
+     * @throws JAXBException Thrown if a CCR item could not be unmarshalled
+     */
+    public Record createRecord(StreamSource src, Unmarshaller u, SectionProjection projection) throws XMLStreamException, JAXBException {
+        if (projection != null) {
+            XMLStreamReader reader = projection.createReader(src);
+            try {
+                return createRecord(reader, u);
+            } finally {
+                reader.close();
+            }
+        }
+        if (src.getInputStream() != null) {
+            return createRecord(src.getInputStream(), u);
+        } else if (src.getReader() != null) {
+            return createRecord(src.getReader(), u);
+        }
+        throw new XMLStreamException("StreamSource has no InputStream or Reader");
+    }
+
+    public Record createRecord(InputStream is, Unmarshaller u) throws XMLStreamException, JAXBException {
+        XMLStreamReader reader = xif.createXMLStreamReader(is);
+        try {
+            return createRecord(reader, u);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public Record createRecord(Reader r, Unmarshaller u) throws XMLStreamException, JAXBException {
+        XMLStreamReader reader = xif.createXMLStreamReader(r);
+        try {
+            return createRecord(reader, u);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Creates a <code>Record</code> from a CCR.  The reader must be positioned
+     * before or at the <ContinuityOfCareRecord> start tag.
+     * @param reader The StAX reader over the CCR
+     * @param u Unmarshaller for the <code>org.astm.ccr</code> package
+     * @return the extracted record
+     * @throws XMLStreamException Thrown if the CCR could not be read
+     * @throws JAXBException Thrown if a CCR item could not be unmarshalled
+     */
+    public Record createRecord(XMLStreamReader reader, Unmarshaller u) throws XMLStreamException, JAXBException {
+        Extraction x = new Extraction();
+        if (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+            reader.nextTag();
+        }
+        if (!"ContinuityOfCareRecord".equals(reader.getLocalName())) {
+            throw new XMLStreamException("Root element is not a ContinuityOfCareRecord [" + reader.getLocalName() + "]", reader.getLocation());
+        }
+        reader.next();
+        while (nextChild(reader)) {
+            String name = reader.getLocalName();
+            if ("Patient".equals(name)) {
+                readPatient(reader, x);
+            } else if ("Body".equals(name)) {
+                readBody(reader, u, x);
+            } else if ("Actors".equals(name)) {
+                readActors(reader, u, x);
+            } else {
+                skipElement(reader);
+            }
+        }
+        return x.toRecord();
+    }
+
+    /*
+     * Reads the <ActorID> of the first <Patient>
+     */
+    private void readPatient(XMLStreamReader r, Extraction x) throws XMLStreamException {
+        r.next();
+        while (nextChild(r)) {
+            if ("ActorID".equals(r.getLocalName()) && x.patientId == null) {
+                x.patientId = r.getElementText();
+                r.next();
+            } else {
+                skipElement(r);
+            }
+        }
+    }
+
+    /*
+     * Reads each <Actor>, keeping the CCR Actor for the patient
+     */
+    private void readActors(XMLStreamReader r, Unmarshaller u, Extraction x) throws XMLStreamException, JAXBException {
+        r.next();
+        while (nextChild(r)) {
+            if ("Actor".equals(r.getLocalName())) {
+                ActorType at = unmarshal(r, u, ActorType.class);
+                x.actors.add(rc.createActor(at));
+                x.addActor(at);
+            } else {
+                skipElement(r);
+            }
+        }
+    }
+
+    /*
+     * Walks through the sections of the <Body> that are used by the RecordCreator
+     */
+    private void readBody(XMLStreamReader r, Unmarshaller u, Extraction x) throws XMLStreamException, JAXBException {
+        r.next();
+        while (nextChild(r)) {
+            String section = r.getLocalName();
+            if (RecordCreator.isExtractedSection(section)) {
+                r.next();
+                while (nextChild(r)) {
+                    readItem(section, r, u, x);
+                }
+            } else {
+                skipElement(r);
+            }
+        }
+    }
+
+    /*
+     * Converts a single item of a <Body> section into the clinical model
+     */
+    private void readItem(String section, XMLStreamReader r, Unmarshaller u, Extraction x) throws XMLStreamException, JAXBException {
+        String item = r.getLocalName();
+        if ("Problems".equals(section) && "Problem".equals(item)) {
+            x.problems.add(rc.createCondition(unmarshal(r, u, ProblemType.class)));
+        } else if ("SocialHistory".equals(section) && "SocialHistoryElement".equals(item)) {
+            x.socialHistory.add(rc.createCondition(unmarshal(r, u, SocialHistoryType.class)));
+        } else if ("Alerts".equals(section) && "Alert".equals(item)) {
+            x.allergies.add(rc.createAllergy(unmarshal(r, u, AlertType.class)));
+        } else if ("Medications".equals(section) && "Medication".equals(item)) {
+            x.medications.add(rc.createMedication(unmarshal(r, u, StructuredProductType.class)));
+        } else if ("Immunizations".equals(section) && "Immunization".equals(item)) {
+            x.immunizations.add(rc.createMedication(unmarshal(r, u, StructuredProductType.class)));
+        } else if ("VitalSigns".equals(section) && "Result".equals(item)) {
+            x.vitalSigns.add(rc.createResult(unmarshal(r, u, ResultType.class)));
+        } else if ("Results".equals(section) && "Result".equals(item)) {
+            x.results.add(rc.createResult(unmarshal(r, u, ResultType.class)));
+        } else if ("Procedures".equals(section) && "Procedure".equals(item)) {
+            x.procedures.add(rc.createProcedure(unmarshal(r, u, ProcedureType.class)));
+        } else if ("Encounters".equals(section) && "Encounter".equals(item)) {
+            Encounter e = rc.createEncounter(unmarshal(r, u, EncounterType.class));
+            if (e != null) {
+                x.encounters.add(e);
+            }
+        } else if ("PlanOfCare".equals(section) && "Plan".equals(item)) {
+            x.orders.addAll(rc.createOrders(unmarshal(r, u, PlanType.class)));
+        } else {
+            skipElement(r);
+        }
+    }
+
+    /*
+     * Unmarshals the element at the reader into a CCR type.  Leaves the reader
+     * positioned after the end tag of the element.
+     */
+    private static <T> T unmarshal(XMLStreamReader r, Unmarshaller u, Class<T> type) throws JAXBException {
+        return u.unmarshal(r, type).getValue();
+    }
+
+    /*
+     * Moves to the start tag of the next child element.  Returns false and
+     * steps past the parent end tag if there are no more children.
+     */
+    private static boolean nextChild(XMLStreamReader r) throws XMLStreamException {
+        while (true) {
+            switch (r.getEventType()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    return true;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (r.hasNext()) {
+                        r.next();
+                    }
+                    return false;
+                case XMLStreamConstants.END_DOCUMENT:
+                    return false;
+                default:
+                    r.next();
+            }
+        }
+    }
+
+    /*
+     * Skips over the element at the reader, including all of its children,
+     * without creating any objects.  Leaves the reader positioned after the
+     * end tag of the element.
+     */
+    static void skipElement(XMLStreamReader r) throws XMLStreamException {
+        int depth = 0;
+        while (true) {
+            int event = r.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (depth == 0) {
+                    r.next();
+                    return;
+                }
+                depth--;
+            } else if (event == XMLStreamConstants.END_DOCUMENT) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * Holds the clinical objects found so far for one CCR.  The CCR sections
+     * are kept separate so the lists are put together in the same order as
+     * the RecordCreator regardless of where they appear in the document.
+     */
+    private class Extraction {
+
+        String patientId;
+        ActorType patientActor;
+        ArrayList<ActorType> unmatchedActors = new ArrayList<ActorType>();
+        ArrayList<Actor> actors = new ArrayList<Actor>();
+        ArrayList<Condition> problems = new ArrayList<Condition>();
+        ArrayList<Condition> socialHistory = new ArrayList<Condition>();
+        ArrayList<Encounter> encounters = new ArrayList<Encounter>();
+        ArrayList<Procedure> procedures = new ArrayList<Procedure>();
+        ArrayList<Result> results = new ArrayList<Result>();
+        ArrayList<Result> vitalSigns = new ArrayList<Result>();
+        ArrayList<Medication> medications = new ArrayList<Medication>();
+        ArrayList<Medication> immunizations = new ArrayList<Medication>();
+        ArrayList<Allergy> allergies = new ArrayList<Allergy>();
+        ArrayList<Order> orders = new ArrayList<Order>();
+
+        /*
+         * Only the patient's CCR Actor is kept.  If the <Patient> has not been
+         * seen yet the Actors are held until it is.
+         */
+        void addActor(ActorType at) {
+            if (patientActor != null) {
+                return;
+            }
+            if (patientId == null) {
+                unmatchedActors.add(at);
+            } else if (patientId.equals(at.getActorObjectID())) {
+                patientActor = at;
+            }
+        }
+
+        ActorType findPatientActor() {
+            if (patientActor == null && patientId != null) {
+                for (ActorType at : unmatchedActors) {
+                    if (patientId.equals(at.getActorObjectID())) {
+                        return at;
+                    }
+                }
+            }
+            return patientActor;
+        }
+
+        Record toRecord() {
+            Record r = new Record();
+            r.setPatient(rc.createPatient(findPatientActor()));
+            r.setActors(actors);
+            problems.addAll(socialHistory);
+            r.setConditions(problems);
+            r.setEncounters(encounters);
+            r.setProcedures(procedures);
+            results.addAll(vitalSigns);
+            r.setResults(results);
+            medications.addAll(immunizations);
+            r.setMedications(medications);
+            r.setAllergies(allergies);
+            r.setOrders(orders);
+            r.buildIndex();
+            LOG.log(Level.FINEST, "Streamed record with {0} conditions and {1} results", new Object[]{problems.size(), results.size()});
+            return r;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.ohd.pophealth.evaluator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.ohd.pophealth.json.measuremodel.Measure;
+
+/**
+ * An inverted index over a set of compiled quality measures.  Every
+ * <code>Measure</code> of every <code>QualityMeasure</code> is given a slot,
+ * numbered in evaluation order, and each <code>CodeDictionary</code> code id
+ * maps to the slots of the measures that use it.  The ids are kept sorted in
+ * an <code>int[]</code> and found by binary search.  The codes are indexed
+ * separately for each kind of clinical object, so a condition code only
+ * reaches the measures that look at conditions.
+ * <p>
+ * <code>QualityMeasureEvaluator.evaluateIndex</code> uses the index to walk
+ * each clinical object of a record once and hand it to every measure it
+ * matches, instead of each measure walking the record.  The index is not
+ * changed once built and can be shared by many threads.
+ *
+ * @author ohdohd
+ */
+public class MeasureIndex {
+
+    /**
+     * The kinds of clinical object a record is walked for
+     */
+    static enum Kind {
+
+        CONDITION, ENCOUNTER, PROCEDURE, RESULT, MEDICATION, ALLERGY, ORDER, GOAL
+    }
+    private final List<QualityMeasurePlan> plans;
+    private final MeasurePlan[] slots;
+    // For each kind, the sorted code ids and the slots of each id
+    private final EnumMap<Kind, int[]> codes = new EnumMap<Kind, int[]>(Kind.class);
+    private final EnumMap<Kind, int[][]> codeSlots = new EnumMap<Kind, int[][]>(Kind.class);
+
+    public MeasureIndex(List<QualityMeasurePlan> plans) {
+        this.plans = Collections.unmodifiableList(new ArrayList<QualityMeasurePlan>(plans));
+        ArrayList<MeasurePlan> all = new ArrayList<MeasurePlan>();
+        for (QualityMeasurePlan q : this.plans) {
+            all.addAll(q.getMeasures());
+        }
+        slots = all.toArray(new MeasurePlan[all.size()]);
+        // Built as lists then packed into arrays
+        EnumMap<Kind, TreeMap<Integer, ArrayList<Integer>>> lists = new EnumMap<Kind, TreeMap<Integer, ArrayList<Integer>>>(Kind.class);
+        for (int s = 0; s < slots.length; s++) {
+            for (Kind k : kindsOf(slots[s].getMeasure().getCategory())) {
+                TreeMap<Integer, ArrayList<Integer>> byCode = lists.get(k);
+                if (byCode == null) {
+                    byCode = new TreeMap<Integer, ArrayList<Integer>>();
+                    lists.put(k, byCode);
+                }
+                for (int code : slots[s].getCodes()) {
+                    ArrayList<Integer> l = byCode.get(code);
+                    if (l == null) {
+                        l = new ArrayList<Integer>(2);
+                        byCode.put(code, l);
+                    }
+                    l.add(s);
+                }
+            }
+        }
+        for (Map.Entry<Kind, TreeMap<Integer, ArrayList<Integer>>> e : lists.entrySet()) {
+            int[] ids = new int[e.getValue().size()];
+            int[][] idSlots = new int[ids.length][];
+            int n = 0;
+            for (Map.Entry<Integer, ArrayList<Integer>> c : e.getValue().entrySet()) {
+                ids[n] = c.getKey();
+                idSlots[n] = new int[c.getValue().size()];
+                for (int i = 0; i < idSlots[n].length; i++) {
+                    idSlots[n][i] = c.getValue().get(i);
+                }
+                n++;
+            }
+            codes.put(e.getKey(), ids);
+            codeSlots.put(e.getKey(), idSlots);
+        }
+    }
+
+    /*
+     * The kinds of clinical object a measure category is matched against.
+     * Follows the category handling of QualityMeasureEvaluator.
+     */
+    private static EnumSet<Kind> kindsOf(Measure.CAT category) {
+        if (category == null) {
+            return EnumSet.noneOf(Kind.class);
+        }
+        switch (category) {
+            case Condition:
+            case Characteristic:
+                return EnumSet.of(Kind.CONDITION);
+            case Encounter:
+                return EnumSet.of(Kind.ENCOUNTER);
+            case Result:
+            case VitalSign:
+                return EnumSet.of(Kind.RESULT);
+            case Medication:
+            case Immunization:
+                return EnumSet.of(Kind.MEDICATION);
+            case PhysicalExam:
+                return EnumSet.of(Kind.PROCEDURE, Kind.RESULT);
+            case Communication:
+                return EnumSet.of(Kind.ENCOUNTER, Kind.ORDER);
+            case Allergy:
+                return EnumSet.of(Kind.ALLERGY);
+            case Procedure:
+                return EnumSet.of(Kind.PROCEDURE);
+            case Order:
+                return EnumSet.of(Kind.ORDER);
+            case Goal:
+                return EnumSet.of(Kind.GOAL);
+            default:
+                return EnumSet.noneOf(Kind.class);
+        }
+    }
+
+    /**
+     * The slots of the measures that use a code for a kind of clinical object
+     * @param kind The kind of clinical object
+     * @param code The <code>CodeDictionary</code> id of the code
+     * @return the slots or <code>null</code> if no measure uses the code
+     */
+    int[] lookup(Kind kind, int code) {
+        int[] ids = codes.get(kind);
+        if (ids == null) {
+            return null;
+        }
+        int i = Arrays.binarySearch(ids, code);
+        return i < 0 ? null : codeSlots.get(kind)[i];
+    }
+
+    /**
+     * Checks if any measure looks at a kind of clinical object
+     * @param kind The kind of clinical object
+     * @return true if there are codes for the kind
+     */
+    boolean hasKind(Kind kind) {
+        return codes.containsKey(kind);
+    }
+
+    public List<QualityMeasurePlan> getPlans() {
+        return plans;
+    }
+
+    /**
+     * The number of measures, over all of the quality measures
+     * @return the count
+     */
+    public int getSlotCount() {
+        return slots.length;
+    }
+
+    /**
+     * The number of distinct codes indexed for each kind of clinical object
+     * @return a description of the index size
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("MeasureIndex [");
+        sb.append(plans.size()).append(" quality measures, ").append(slots.length).append(" measures");
+        for (Map.Entry<Kind, int[]> e : codes.entrySet()) {
+            sb.append(", ").append(e.getKey()).append(' ').append(e.getValue().length);
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.ohd.pophealth.evaluator;
+
+import org.ohd.pophealth.ccr.importer.CodeDictionary;
+import org.ohd.pophealth.json.measuremodel.CodedValue;
+import org.ohd.pophealth.json.measuremodel.Measure;
+
+/**
+ * A <code>Measure</code> compiled for evaluation.  The codes of all of the
+ * measure's coded values are kept as one sorted array of
+ * <code>CodeDictionary</code> ids, which a <code>MeasureIndex</code> maps
+ * back to the measure.  A code only matches the same code in the same coding
+ * system, or in any system when either coding system is unknown.
+ * <p>
+ * A plan is a snapshot, changing the <code>Measure</code> afterwards does not
+ * change the plan.
+ *
+ * @author ohdohd
+ */
+public class MeasurePlan {
+
+    private final Measure measure;
+    private final int[] codes;
+    private final int codeCount;
+
+    public MeasurePlan(Measure measure) {
+        this.measure = measure;
+        this.codes = CodeDictionary.getInstance().encodeValueSet(measure.getCodes());
+        int count = 0;
+        if (measure.getCodes() != null) {
+            for (CodedValue cv : measure.getCodes()) {
+                if (cv.getValues() != null) {
+                    count += cv.getValues().size();
+                }
+            }
+        }
+        this.codeCount = count;
+    }
+
+    public Measure getMeasure() {
+        return measure;
+    }
+
+    /*
+     * The sorted code ids, used to build a MeasureIndex
+     */
+    int[] getCodes() {
+        return codes;
+    }
+
+    /**
+     * The number of codes in the value set
+     * @return the count
+     */
+    public int getCodeCount() {
+        return codeCount;
+    }
+}
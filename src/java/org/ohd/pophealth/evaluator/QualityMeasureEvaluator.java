@@ -6,14 +6,20 @@ package org.ohd.pophealth.evaluator;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.codehaus.jackson.JsonGenerationException;
 import org.codehaus.jackson.map.JsonMappingException;
+import org.ohd.pophealth.evaluator.MeasureIndex.Kind;
 import org.ohd.pophealth.json.clinicalmodel.Allergy;
-import org.ohd.pophealth.json.measuremodel.CodedValue;
+import org.ohd.pophealth.json.clinicalmodel.BaseClinicalObject;
+import org.ohd.pophealth.json.clinicalmodel.RecordIndex;
+import org.ohd.pophealth.json.clinicalmodel.RecordIndex.Category;
 import org.ohd.pophealth.json.measuremodel.Measure;
 import org.ohd.pophealth.json.measuremodel.PopHealthPatientRecord;
 import org.ohd.pophealth.json.measuremodel.QualityMeasure;
@@ -35,15 +41,23 @@ import org.ohd.pophealth.json.measuremodel.ValueDateItem;
 
 /**
  * This class handles the evaluation of a <code>Record</code> against a set of
- * quality measures.
+ * quality measures.  No state is kept between calls so one instance can be
+ * used by many threads at once.
+ * <p>
+ * Quality measures are evaluated as <code>QualityMeasurePlan</code>s, which
+ * hold each value set as an array of code ids, through a
+ * <code>MeasureIndex</code> from code id to the measures that use it.  Each
+ * code id of each clinical object, taken from the record's
+ * <code>RecordIndex</code>, is looked up once and the object is handed to
+ * every measure that uses it.  Build the measure index
+ * once when the measures are loaded and call <code>evaluateIndex</code>, the
+ * other methods build it on every call.
  *
  * @author ohdohd
  */
 public class QualityMeasureEvaluator {
 
     private final static Logger LOG = Logger.getLogger(QualityMeasureEvaluator.class.getName());
-    private Record r; //current working Record
-    private PopHealthPatientRecord pop;  // current working popHealth result record
 
     /**
      * Evaluate a record against a set of quality measures
@@ -54,24 +68,67 @@ public class QualityMeasureEvaluator {
      *          by the <code>QualityMeasure</code> items used.
      */
     public String evaluate(Record record, ArrayList<QualityMeasure> qList) {
-        LOG.log(Level.FINEST, "Evaluating {0} measures", qList.size());
-        // Set the current working record
-        this.r = record;
+        return toJson(evaluateRecord(record, qList));
+    }
+
+    /**
+     * Evaluate a record against a set of quality measures without writing the
+     * result as JSON
+     *
+     * @param record The extracted patient data
+     * @param qList The set of <code>QualityMeasure</code> items to evaluate against
+     * @return the result of the evaluation
+     */
+    public PopHealthPatientRecord evaluateRecord(Record record, ArrayList<QualityMeasure> qList) {
+        return evaluatePlans(record, QualityMeasurePlan.compile(qList));
+    }
+
+    /**
+     * Evaluate a record against a set of compiled quality measures without
+     * writing the result as JSON
+     *
+     * @param record The extracted patient data
+     * @param plans The compiled quality measures to evaluate against
+     * @return the result of the evaluation
+     */
+    public PopHealthPatientRecord evaluatePlans(Record record, List<QualityMeasurePlan> plans) {
+        return evaluateIndex(record, new MeasureIndex(plans));
+    }
+
+    /**
+     * Evaluate a record against an index of compiled quality measures without
+     * writing the result as JSON
+     *
+     * @param record The extracted patient data
+     * @param index The index of the quality measures to evaluate against
+     * @return the result of the evaluation
+     */
+    public PopHealthPatientRecord evaluateIndex(Record record, MeasureIndex index) {
+        LOG.log(Level.FINEST, "Evaluating {0} measures", index.getPlans().size());
         // Create a new result object which represent the JSON result
-        pop = new PopHealthPatientRecord();
+        PopHealthPatientRecord pop = new PopHealthPatientRecord();
         // Set the information about the patient
-        pop.setPatient(r.getPatient());
+        pop.setPatient(record.getPatient());
+        // Find the matches of every measure in one walk through the record
+        Hits hits = findMatches(record, index);
         // Iterate through each quality measure and evaluate against it
-        for (QualityMeasure q : qList) {
-            evaluate(pop, q);
+        int slot = 0;
+        for (QualityMeasurePlan q : index.getPlans()) {
+            slot = evaluate(hits, pop, q, slot);
         }
-        // Reset the working record
-        r = null;
+        return pop;
+    }
+
+    /**
+     * Writes the result of an evaluation as JSON
+     *
+     * @param pop The result of <code>evaluateRecord</code>
+     * @return the JSON string or <code>null</code> if it could not be written
+     */
+    public String toJson(PopHealthPatientRecord pop) {
         try {
             // TODO set to false for production
-            String jsonResult = pop.toJson(true);
-            pop = null;
-            return jsonResult;
+            return pop.toJson(true);
         } catch (JsonMappingException ex) {
             Logger.getLogger(QualityMeasureEvaluator.class.getName()).log(Level.SEVERE, null, ex);
         } catch (JsonGenerationException ex) {
@@ -83,93 +140,151 @@ public class QualityMeasureEvaluator {
     }
 
     /*
-     * This method evaluates a single quality measure
+     * Probes the measure index once for each code id of each clinical object,
+     * from the record's code index, and marks the object for every measure
+     * that uses the code.
      */
-    private void evaluate(PopHealthPatientRecord pop, QualityMeasure q) {
+    private Hits findMatches(Record r, MeasureIndex index) {
+        RecordIndex ri = r.getIndex();
+        Hits hits = new Hits(index, ri);
+        for (Category c : Category.values()) {
+            Kind kind = kindOf(c);
+            if (!index.hasKind(kind)) {
+                continue;
+            }
+            int count = ri.getObjects(c).size();
+            for (int n = 0; n < count; n++) {
+                for (int code : ri.getCodes(c, n)) {
+                    int[] slots = index.lookup(kind, code);
+                    if (slots != null) {
+                        for (int s : slots) {
+                            hits.mark(c, s, n);
+                        }
+                    }
+                }
+            }
+        }
+        return hits;
+    }
+
+    /*
+     * The kind of clinical object measures look for in a record category.
+     * Tests are matched like results.
+     */
+    private static Kind kindOf(Category c) {
+        switch (c) {
+            case CONDITION:
+                return Kind.CONDITION;
+            case ENCOUNTER:
+                return Kind.ENCOUNTER;
+            case PROCEDURE:
+                return Kind.PROCEDURE;
+            case RESULT:
+            case TEST:
+                return Kind.RESULT;
+            case MEDICATION:
+                return Kind.MEDICATION;
+            case ALLERGY:
+                return Kind.ALLERGY;
+            case ORDER:
+                return Kind.ORDER;
+            default:
+                return Kind.GOAL;
+        }
+    }
+
+    /*
+     * This method evaluates a single quality measure from the matches found
+     * for its measures, starting at the measure slot given
+     */
+    private int evaluate(Hits hits, PopHealthPatientRecord pop, QualityMeasurePlan q, int slot) {
         // Create a map to house the result items
         LinkedHashMap<String, Item> items = new LinkedHashMap<String, Item>();
         // Work through each measure in the quality measure
-        for (Measure m : q.getMeasures()) {
+        for (MeasurePlan plan : q.getMeasures()) {
+            Measure m = plan.getMeasure();
             // Each type of item might (most likely) needs to be handled differently
             // Uses the enum Measure.CAT
             boolean match = false;
             switch (m.getCategory()) {
                 case Condition:
-                    evaluateCondition(m, items);
+                    evaluateCondition(hits.<Condition>get(Category.CONDITION, slot), m, items);
                     break;
                 case Characteristic:
-                    evaluateCondition(m, items);
+                    evaluateCondition(hits.<Condition>get(Category.CONDITION, slot), m, items);
                     break;
                 case Encounter:
-                    evaluateEncounter(m, items);
+                    evaluateEncounter(hits.<Encounter>get(Category.ENCOUNTER, slot), m, items);
                     break;
                 case Result:
-                    evaluateResult(m, items);
+                    evaluateResult(hits.results(slot), m, items);
                     break;
                 case VitalSign:
                     // VitalSigns are the same as results
-                    evaluateResult(m, items);
+                    evaluateResult(hits.results(slot), m, items);
                     break;
                 case Medication:
-                    evaluateMedication(m, items);
+                    evaluateMedication(hits.<Medication>get(Category.MEDICATION, slot), m, items);
                     break;
                 case Immunization:
                     // Immunizations are the same as Medications
-                    evaluateMedication(m, items);
+                    evaluateMedication(hits.<Medication>get(Category.MEDICATION, slot), m, items);
                     break;
                 case PhysicalExam:
                     // Physical Exam items could be either a procedure or result
-                    match = evaluateProcedure(m, items);
+                    match = evaluateProcedure(hits.<Procedure>get(Category.PROCEDURE, slot), m, items);
                     if (!match){
                         items.remove(m.getName());
-                        evaluateResult(m, items);
+                        evaluateResult(hits.results(slot), m, items);
                     }
                     break;
                 case Communication:
                     // Communication maybe an encounter or an order
-                    match = evaluateEncounter(m, items);
+                    match = evaluateEncounter(hits.<Encounter>get(Category.ENCOUNTER, slot), m, items);
                     if (!match){
                         items.remove(m.getName());
-                        evaluateOrder(m, items);
+                        evaluateOrder(hits.<Order>get(Category.ORDER, slot), m, items);
                     }
                     break;
                 case Allergy:
-                    evaluateAllergy(m, items);
+                    evaluateAllergy(hits.<Allergy>get(Category.ALLERGY, slot), m, items);
                     break;
                 case Procedure:
-                    evaluateProcedure(m, items);
+                    evaluateProcedure(hits.<Procedure>get(Category.PROCEDURE, slot), m, items);
                     break;
                 case Order:
-                    evaluateOrder(m, items);
+                    evaluateOrder(hits.<Order>get(Category.ORDER, slot), m, items);
                     break;
                 case Goal:
-                    evaluateGoal(m, items);
+                    evaluateGoal(hits.<Goal>get(Category.GOAL, slot), m, items);
                     break;
                 default:
                     LOG.log(Level.WARNING, "Found Unknown or Unsupported Category Type [{0}]", m.getCategory());
             }
+            slot++;
             LOG.log(Level.FINER, "Adding Quality Measure {0} to popHealth record", q.getId());
         }
         // Add the results of the quality measure evaluation to the result object
         pop.addMeasureResult(q.getId(), items);
+        return slot;
     }
 
     // TODO Pull the category specific evaluations out into another class to allow for
     //  multiple implementations in the future.
-    private boolean evaluateCondition(Measure m, LinkedHashMap<String, Item> items) {
+    // Each evaluation is given only the clinical objects that matched the
+    // measure's codes, in record order.
+    private boolean evaluateCondition(List<Condition> matched, Measure m, LinkedHashMap<String, Item> items) {
         LOG.log(Level.FINEST, "Evaluating Measure {0} against conditions", m.getName());
         boolean match = false;
         switch (m.getItemType()) {
             case DateItem:
                 DateItem di = new DateItem();
                 LinkedList<Long> dL = new LinkedList<Long>();
-                for (Condition c : r.getConditions()) {
+                for (Condition c : matched) {
                     // TODO  Do we need to handle Active vs. Resolved conditions
-                    if (codeMatch(m.getCodes(), c.getDescription())) {
-                        dL.add(new Long(c.getOnset()));
-                        match = true;
-                        LOG.log(Level.FINEST, "Match Found for {0} in condition {1}", new Object[]{m.getDescription(), c.getId()});
-                    }
+                    dL.add(new Long(c.getOnset()));
+                    match = true;
+                    LOG.log(Level.FINEST, "Match Found for {0} in condition {1}", new Object[]{m.getDescription(), c.getId()});
                 }
                 if (!dL.isEmpty()) {
                     di.setDate((Long[]) dL.toArray(new Long[0]));
@@ -178,12 +293,10 @@ public class QualityMeasureEvaluator {
                 break;
             case DateRangeItem:
                 DateRangeItem dri = new DateRangeItem();
-                for (Condition c : r.getConditions()) {
-                    if (codeMatch(m.getCodes(), c.getDescription())) {
-                        dri.addRange(c.getOnset(), c.getResolution());
-                        match = true;
-                        LOG.log(Level.FINEST, "Match Found for {0} in condition {1}", new Object[]{m.getDescription(), c.getId()});
-                    }
+                for (Condition c : matched) {
+                    dri.addRange(c.getOnset(), c.getResolution());
+                    match = true;
+                    LOG.log(Level.FINEST, "Match Found for {0} in condition {1}", new Object[]{m.getDescription(), c.getId()});
                 }
                 items.put(m.getName(), dri);
                 break;
@@ -192,11 +305,9 @@ public class QualityMeasureEvaluator {
                 break;
             case BooleanItem:
                 BooleanItem bi = new BooleanItem();
-                for (Condition c : r.getConditions()) {
-                    if (codeMatch(m.getCodes(), c.getDescription())) {
-                        bi.setValue(true);
-                        match = true;
-                    }
+                if (!matched.isEmpty()) {
+                    bi.setValue(true);
+                    match = true;
                 }
                 // If no condition found BooleanItem.isValue defaults to false
                 items.put(m.getName(), bi);
@@ -208,19 +319,16 @@ public class QualityMeasureEvaluator {
         return match;
     }
 
-    private boolean evaluateEncounter(Measure m, LinkedHashMap<String, Item> items) {
+    private boolean evaluateEncounter(List<Encounter> matched, Measure m, LinkedHashMap<String, Item> items) {
         LOG.log(Level.FINEST, "Evaluating Measure {0} against encounters", m.getName());
         boolean match = false;
         switch (m.getItemType()) {
             case DateItem:
                 DateItem di = new DateItem();
                 LinkedList<Long> dL = new LinkedList<Long>();
-                for (Encounter e : r.getEncounters()) {
-
-                    if (codeMatch(m.getCodes(), e.getDescription())) {
-                        dL.add(new Long(e.getOccured()));
-                        match = true;
-                    }
+                for (Encounter e : matched) {
+                    dL.add(new Long(e.getOccured()));
+                    match = true;
                 }
                 if (!dL.isEmpty()) {
                     di.setDate((Long[]) dL.toArray(new Long[0]));
@@ -229,12 +337,10 @@ public class QualityMeasureEvaluator {
                 break;
             case DateRangeItem:
                 DateRangeItem dri = new DateRangeItem();
-                for (Encounter e : r.getEncounters()) {
-                    if (codeMatch(m.getCodes(), e.getDescription())) {
-                        dri.addRange(e.getOccured(), e.getEnded());
-                        match = true;
-                        LOG.log(Level.FINEST, "Match Found for {0} in encounter {1}", new Object[]{m.getDescription(), e.getId()});
-                    }
+                for (Encounter e : matched) {
+                    dri.addRange(e.getOccured(), e.getEnded());
+                    match = true;
+                    LOG.log(Level.FINEST, "Match Found for {0} in encounter {1}", new Object[]{m.getDescription(), e.getId()});
                 }
                 items.put(m.getName(), dri);
                 break;
@@ -243,11 +349,9 @@ public class QualityMeasureEvaluator {
                 break;
             case BooleanItem:
                 BooleanItem bi = new BooleanItem();
-                for (Encounter e : r.getEncounters()) {
-                    if (codeMatch(m.getCodes(), e.getDescription())) {
-                        bi.setValue(true);
-                        match = true;
-                    }
+                if (!matched.isEmpty()) {
+                    bi.setValue(true);
+                    match = true;
                 }
                 // If no condition found BooleanItem.isValue defaults to false
                 items.put(m.getName(), bi);
@@ -259,19 +363,16 @@ public class QualityMeasureEvaluator {
         return match;
     }
 
-    private boolean evaluateProcedure(Measure m, LinkedHashMap<String, Item> items) {
+    private boolean evaluateProcedure(List<Procedure> matched, Measure m, LinkedHashMap<String, Item> items) {
         // Currently just handles a procedure like an Encounter
         boolean match = false;
         switch (m.getItemType()) {
             case DateItem:
                 DateItem di = new DateItem();
                 LinkedList<Long> dL = new LinkedList<Long>();
-                for (Procedure p : r.getProcedures()) {
-
-                    if (codeMatch(m.getCodes(), p.getDescription())) {
-                        dL.add(new Long(p.getOccured()));
-                        match = true;
-                    }
+                for (Procedure p : matched) {
+                    dL.add(new Long(p.getOccured()));
+                    match = true;
                 }
                 if (!dL.isEmpty()) {
                     di.setDate((Long[]) dL.toArray(new Long[0]));
@@ -280,12 +381,10 @@ public class QualityMeasureEvaluator {
                 break;
             case DateRangeItem:
                 DateRangeItem dri = new DateRangeItem();
-                for (Procedure p : r.getProcedures()) {
-                    if (codeMatch(m.getCodes(), p.getDescription())) {
-                        dri.addRange(p.getOccured(), p.getEnded());
-                        match = true;
-                        LOG.log(Level.FINEST, "Match Found for {0} in encounter {1}", new Object[]{m.getDescription(), p.getId()});
-                    }
+                for (Procedure p : matched) {
+                    dri.addRange(p.getOccured(), p.getEnded());
+                    match = true;
+                    LOG.log(Level.FINEST, "Match Found for {0} in encounter {1}", new Object[]{m.getDescription(), p.getId()});
                 }
                 items.put(m.getName(), dri);
                 break;
@@ -294,11 +393,9 @@ public class QualityMeasureEvaluator {
                 break;
             case BooleanItem:
                 BooleanItem bi = new BooleanItem();
-                for (Procedure p : r.getProcedures()) {
-                    if (codeMatch(m.getCodes(), p.getDescription())) {
-                        bi.setValue(true);
-                        match = true;
-                    }
+                if (!matched.isEmpty()) {
+                    bi.setValue(true);
+                    match = true;
                 }
                 // If no condition found BooleanItem.isValue defaults to false
                 items.put(m.getName(), bi);
@@ -310,25 +407,22 @@ public class QualityMeasureEvaluator {
         return match;
     }
 
-    private boolean evaluateResult(Measure m, LinkedHashMap<String, Item> items) {
+    /*
+     * The matches are results, and tests of results that did not match
+     */
+    private boolean evaluateResult(List<Object> matched, Measure m, LinkedHashMap<String, Item> items) {
         boolean match = false;
         switch (m.getItemType()) {
             case DateItem:
                 DateItem di = new DateItem();
                 LinkedList<Long> dL = new LinkedList<Long>();
-                for (Result e : r.getResults()) {
-
-                    if (codeMatch(m.getCodes(), e.getDescription())) {
-                        dL.add(new Long(e.getCollectionTime()));
-                        match = true;
+                for (Object o : matched) {
+                    if (o instanceof Result) {
+                        dL.add(new Long(((Result) o).getCollectionTime()));
                     } else {
-                        for (Test t : e.getTests()) {
-                            if (codeMatch(m.getCodes(), t.getDescription())) {
-                                dL.add(new Long(t.getCollectionTime()));
-                                match = true;
-                            }
-                        }
+                        dL.add(new Long(((Test) o).getCollectionTime()));
                     }
+                    match = true;
                 }
                 if (!dL.isEmpty()) {
                     di.setDate((Long[]) dL.toArray(new Long[0]));
@@ -340,30 +434,29 @@ public class QualityMeasureEvaluator {
                 break;
             case ValueDateItem:
                 ValueDateItem vdi = new ValueDateItem();
-                for (Result e : r.getResults()) {
-                    if (codeMatch(m.getCodes(), e.getDescription())) {
+                for (Object o : matched) {
+                    if (o instanceof Result) {
+                        Result e = (Result) o;
                         // Assume only one test and it contains the value
                         if (e.getTests().size() == 1) {
                             vdi.addValueDate(e.getCollectionTime(), e.getTests().get(0).getValueString());
                         }
-                        match = true;
                     } else {
-                        for (Test t : e.getTests()) {
-                            if (codeMatch(m.getCodes(), t.getDescription())) {
-                                vdi.addValueDate(t.getCollectionTime(), t.getValueString());
-                                match = true;
-                            }
-                        }
+                        Test t = (Test) o;
+                        vdi.addValueDate(t.getCollectionTime(), t.getValueString());
                     }
+                    match = true;
                 }
                 items.put(m.getName(), vdi);
                 break;
             case BooleanItem:
                 BooleanItem bi = new BooleanItem();
-                for (Result e : r.getResults()) {
-                    if (codeMatch(m.getCodes(), e.getDescription())) {
+                for (Object o : matched) {
+                    // Only the result itself is checked, not its tests
+                    if (o instanceof Result) {
                         bi.setValue(true);
                         match = true;
+                        break;
                     }
                 }
                 // If no condition found BooleanItem.isValue defaults to false
@@ -376,19 +469,17 @@ public class QualityMeasureEvaluator {
         return match;
     }
 
-    private boolean evaluateMedication(Measure m, LinkedHashMap<String, Item> items) {
+    private boolean evaluateMedication(List<Medication> matched, Measure m, LinkedHashMap<String, Item> items) {
         boolean match = false;
         switch (m.getItemType()) {
             case DateItem:  // Assumption: DateItem is always the start date of the medication
                 DateItem di = new DateItem();
                 LinkedList<Long> dL = new LinkedList<Long>();
-                for (Medication med : r.getMedications()) {
-                    if (codeMatch(m.getCodes(), med.getDescription())) {
-                        // Assumption: A medication may have been stopped or not
-                        dL.add(new Long(med.getStarted()));
-                        match = true;
-                        LOG.log(Level.FINEST, "Match Found for {0} in medication {1}", new Object[]{m.getDescription(), med.getId()});
-                    }
+                for (Medication med : matched) {
+                    // Assumption: A medication may have been stopped or not
+                    dL.add(new Long(med.getStarted()));
+                    match = true;
+                    LOG.log(Level.FINEST, "Match Found for {0} in medication {1}", new Object[]{m.getDescription(), med.getId()});
                 }
                 if (!dL.isEmpty()) {
                     di.setDate((Long[]) dL.toArray(new Long[0]));
@@ -397,12 +488,10 @@ public class QualityMeasureEvaluator {
                 break;
             case DateRangeItem:
                 DateRangeItem dri = new DateRangeItem();
-                for (Medication med : r.getMedications()) {
-                    if (codeMatch(m.getCodes(), med.getDescription())) {
-                        dri.addRange(med.getStarted(), med.getStopped());
-                        match = true;
-                        LOG.log(Level.FINEST, "Match Found for {0} in medication {1}", new Object[]{m.getDescription(), med.getId()});
-                    }
+                for (Medication med : matched) {
+                    dri.addRange(med.getStarted(), med.getStopped());
+                    match = true;
+                    LOG.log(Level.FINEST, "Match Found for {0} in medication {1}", new Object[]{m.getDescription(), med.getId()});
                 }
                 items.put(m.getName(), dri);
                 break;
@@ -412,12 +501,10 @@ public class QualityMeasureEvaluator {
                 break;
             case BooleanItem:
                 BooleanItem bi = new BooleanItem();
-                for (Medication med : r.getMedications()) {
-                    if (codeMatch(m.getCodes(), med.getDescription())) {
-                        bi.setValue(true);
-                        match = true;
-                        LOG.log(Level.FINEST, "Match Found for {0} in medication {1}", new Object[]{m.getDescription(), med.getId()});
-                    }
+                for (Medication med : matched) {
+                    bi.setValue(true);
+                    match = true;
+                    LOG.log(Level.FINEST, "Match Found for {0} in medication {1}", new Object[]{m.getDescription(), med.getId()});
                 }
                 // If no condition found BooleanItem.isValue defaults to false
                 items.put(m.getName(), bi);
@@ -428,19 +515,17 @@ public class QualityMeasureEvaluator {
         return match;
     }
 
-    private boolean evaluateAllergy(Measure m, LinkedHashMap<String, Item> items) {
+    private boolean evaluateAllergy(List<Allergy> matched, Measure m, LinkedHashMap<String, Item> items) {
         boolean match = false;
         switch (m.getItemType()) {
             case DateItem:  // Assumption: DateItem is always the start date of the medication
                 DateItem di = new DateItem();
                 LinkedList<Long> dL = new LinkedList<Long>();
-                for (Allergy alg : r.getAllergies()) {
-                    if (codeMatch(m.getCodes(), alg.getDescription())) {
-                        // Assumption: A medication may have been stopped or not
-                        dL.add(new Long(alg.getOnset()));
-                        match = true;
-                        LOG.log(Level.FINEST, "Match Found for {0} in allergy {1}", new Object[]{m.getDescription(), alg.getId()});
-                    }
+                for (Allergy alg : matched) {
+                    // Assumption: A medication may have been stopped or not
+                    dL.add(new Long(alg.getOnset()));
+                    match = true;
+                    LOG.log(Level.FINEST, "Match Found for {0} in allergy {1}", new Object[]{m.getDescription(), alg.getId()});
                 }
                 if (!dL.isEmpty()) {
                     di.setDate((Long[]) dL.toArray(new Long[0]));
@@ -449,12 +534,10 @@ public class QualityMeasureEvaluator {
                 break;
             case DateRangeItem:
                 DateRangeItem dri = new DateRangeItem();
-                for (Allergy alg : r.getAllergies()) {
-                    if (codeMatch(m.getCodes(), alg.getDescription())) {
-                        dri.addRange(alg.getOnset(), alg.getResolution());
-                        match = true;
-                        LOG.log(Level.FINEST, "Match Found for {0} in allergy {1}", new Object[]{m.getDescription(), alg.getId()});
-                    }
+                for (Allergy alg : matched) {
+                    dri.addRange(alg.getOnset(), alg.getResolution());
+                    match = true;
+                    LOG.log(Level.FINEST, "Match Found for {0} in allergy {1}", new Object[]{m.getDescription(), alg.getId()});
                 }
                 items.put(m.getName(), dri);
                 break;
@@ -464,12 +547,10 @@ public class QualityMeasureEvaluator {
                 break;
             case BooleanItem:
                 BooleanItem bi = new BooleanItem();
-                for (Allergy alg : r.getAllergies()) {
-                    if (codeMatch(m.getCodes(), alg.getDescription())) {
-                        bi.setValue(true);
-                        match = true;
-                        LOG.log(Level.FINEST, "Match Found for {0} in allergy {1}", new Object[]{m.getDescription(), alg.getId()});
-                    }
+                for (Allergy alg : matched) {
+                    bi.setValue(true);
+                    match = true;
+                    LOG.log(Level.FINEST, "Match Found for {0} in allergy {1}", new Object[]{m.getDescription(), alg.getId()});
                 }
                 // If no condition found BooleanItem.isValue defaults to false
                 items.put(m.getName(), bi);
@@ -480,20 +561,18 @@ public class QualityMeasureEvaluator {
         return match;
     }
 
-    private boolean evaluateOrder(Measure m, LinkedHashMap<String, Item> items) {
+    private boolean evaluateOrder(List<Order> matched, Measure m, LinkedHashMap<String, Item> items) {
         // TODO Finish method - need to check for match in Order.orderrequests
         boolean match = true;
         switch (m.getItemType()) {
             case DateItem:
                 DateItem di = new DateItem();
                 LinkedList<Long> dL = new LinkedList<Long>();
-                for (Order ord : r.getOrders()) {
-                    if (codeMatch(m.getCodes(), ord.getDescription())) {
-                        // Assumption: A medication may have been stopped or not
-                        dL.add(new Long(ord.getOrderDate()));
-                        match = true;
-                        LOG.log(Level.FINEST, "Match Found for {0} in order {1}", new Object[]{m.getDescription(), ord.getId()});
-                    }
+                for (Order ord : matched) {
+                    // Assumption: A medication may have been stopped or not
+                    dL.add(new Long(ord.getOrderDate()));
+                    match = true;
+                    LOG.log(Level.FINEST, "Match Found for {0} in order {1}", new Object[]{m.getDescription(), ord.getId()});
                 }
                 if (!dL.isEmpty()) {
                     di.setDate((Long[]) dL.toArray(new Long[0]));
@@ -508,12 +587,10 @@ public class QualityMeasureEvaluator {
                 break;
             case BooleanItem:
                 BooleanItem bi = new BooleanItem();
-                for (Order ord : r.getOrders()) {
-                    if (codeMatch(m.getCodes(), ord.getDescription())) {
-                        bi.setValue(true);
-                        match = true;
-                        LOG.log(Level.FINEST, "Match Found for {0} in order {1}", new Object[]{m.getDescription(), ord.getId()});
-                    }
+                for (Order ord : matched) {
+                    bi.setValue(true);
+                    match = true;
+                    LOG.log(Level.FINEST, "Match Found for {0} in order {1}", new Object[]{m.getDescription(), ord.getId()});
                 }
                 // If no condition found BooleanItem.isValue defaults to false
                 items.put(m.getName(), bi);
@@ -524,21 +601,17 @@ public class QualityMeasureEvaluator {
         return match;
     }
 
-    private boolean evaluateGoal(Measure m, LinkedHashMap<String, Item> items) {
+    private boolean evaluateGoal(List<Goal> matched, Measure m, LinkedHashMap<String, Item> items) {
         boolean match = false;
         switch (m.getItemType()) {
             case DateItem:
                 DateItem di = new DateItem();
                 LinkedList<Long> dL = new LinkedList<Long>();
-                for (Order ord : r.getOrders()) {
-                    for (Goal gol : ord.getGoals()) {
-                        if (codeMatch(m.getCodes(), gol.getDescription())) {
-                            // Assumption: A medication may have been stopped or not
-                            dL.add(new Long(gol.getGoalDate()));
-                            match = true;
-                            LOG.log(Level.FINEST, "Match Found for {0} in goal {1}", new Object[]{m.getDescription(), gol.getId()});
-                        }
-                    }
+                for (Goal gol : matched) {
+                    // Assumption: A medication may have been stopped or not
+                    dL.add(new Long(gol.getGoalDate()));
+                    match = true;
+                    LOG.log(Level.FINEST, "Match Found for {0} in goal {1}", new Object[]{m.getDescription(), gol.getId()});
                 }
                 if (!dL.isEmpty()) {
                     di.setDate((Long[]) dL.toArray(new Long[0]));
@@ -550,29 +623,21 @@ public class QualityMeasureEvaluator {
                 break;
             case ValueDateItem:
                 ValueDateItem vdi = new ValueDateItem();
-                for (Order ord : r.getOrders()) {
-                    for (Goal gol : ord.getGoals()) {
-                        if (codeMatch(m.getCodes(), gol.getDescription())) {
-                            // Assumption: A medication may have been stopped or not
-                            vdi.addValueDate(gol.getGoalDate(), gol.getValueString());
-                            match = true;
-                            LOG.log(Level.FINEST, "Match Found for {0} in goal {1}", new Object[]{m.getDescription(), gol.getId()});
-                        }
-                        // TODO Add check for match for order description
-                    }
+                for (Goal gol : matched) {
+                    // Assumption: A medication may have been stopped or not
+                    vdi.addValueDate(gol.getGoalDate(), gol.getValueString());
+                    match = true;
+                    LOG.log(Level.FINEST, "Match Found for {0} in goal {1}", new Object[]{m.getDescription(), gol.getId()});
+                    // TODO Add check for match for order description
                 }
                 items.put(m.getName(), vdi);
                 break;
             case BooleanItem:
                 BooleanItem bi = new BooleanItem();
-                for (Order ord : r.getOrders()) {
-                    for (Goal gol : ord.getGoals()) {
-                        if (codeMatch(m.getCodes(), gol.getDescription())) {
-                            bi.setValue(true);
-                            match = true;
-                            LOG.log(Level.FINEST, "Match Found for {0} in goal {1}", new Object[]{m.getDescription(), gol.getId()});
-                        }
-                    }
+                for (Goal gol : matched) {
+                    bi.setValue(true);
+                    match = true;
+                    LOG.log(Level.FINEST, "Match Found for {0} in goal {1}", new Object[]{m.getDescription(), gol.getId()});
                 }
                 // If no condition found BooleanItem.isValue defaults to false
                 items.put(m.getName(), bi);
@@ -584,27 +649,85 @@ public class QualityMeasureEvaluator {
     }
 
     /*
-     * Utility method to compare to lists of coded values.  Returns true if any code
-     * in one list matches any code in another list
+     * The clinical objects matched to each measure slot, by record category,
+     * for one record.  Kept as sets of object numbers so the lists come out
+     * in record order with each object once.
      */
-    private boolean codeMatch(ArrayList<CodedValue> mCodes, ArrayList<CodedValue> cCodes) {
-        // TODO Check for perfomance improvement
-        // Bad Big-O notation algorithm, but currently expecting short lists
+    private static class Hits {
 
-        // TODO Need to check for coding system.
-        // Do not now becuase no overlap in SNOMED, ICD9, ICD10
-        for (CodedValue cm : mCodes) {
-            for (String cmv : cm.getValues()) {
-                for (CodedValue cc : cCodes) {
-                    for (String ccv : cc.getValues()) {
-                        if (cmv.equalsIgnoreCase(ccv)) {
-                            return true;
-                        }
+        private final RecordIndex record;
+        private final BitSet[][] marked;
+        private final int slotCount;
+
+        Hits(MeasureIndex index, RecordIndex record) {
+            this.record = record;
+            this.slotCount = index.getSlotCount();
+            this.marked = new BitSet[Category.values().length][];
+        }
+
+        void mark(Category c, int slot, int n) {
+            BitSet[] byCategory = marked[c.ordinal()];
+            if (byCategory == null) {
+                byCategory = new BitSet[slotCount];
+                marked[c.ordinal()] = byCategory;
+            }
+            BitSet b = byCategory[slot];
+            if (b == null) {
+                b = new BitSet();
+                byCategory[slot] = b;
+            }
+            b.set(n);
+        }
+
+        private BitSet marked(Category c, int slot) {
+            BitSet[] byCategory = marked[c.ordinal()];
+            return byCategory == null ? null : byCategory[slot];
+        }
+
+        @SuppressWarnings("unchecked")
+        <T> List<T> get(Category c, int slot) {
+            BitSet b = marked(c, slot);
+            if (b == null) {
+                return Collections.emptyList();
+            }
+            List<BaseClinicalObject> objects = record.getObjects(c);
+            ArrayList<T> l = new ArrayList<T>(b.cardinality());
+            for (int n = b.nextSetBit(0); n >= 0; n = b.nextSetBit(n + 1)) {
+                l.add((T) objects.get(n));
+            }
+            return l;
+        }
+
+        /*
+         * The matched results, and the matched tests of results that did not
+         * match, in record order
+         */
+        List<Object> results(int slot) {
+            BitSet rb = marked(Category.RESULT, slot);
+            BitSet tb = marked(Category.TEST, slot);
+            if (rb == null && tb == null) {
+                return Collections.emptyList();
+            }
+            List<BaseClinicalObject> results = record.getObjects(Category.RESULT);
+            List<BaseClinicalObject> tests = record.getObjects(Category.TEST);
+            ArrayList<Object> l = new ArrayList<Object>();
+            int r = rb == null ? -1 : rb.nextSetBit(0);
+            int t = tb == null ? -1 : tb.nextSetBit(0);
+            while (r >= 0 || t >= 0) {
+                int parent = t >= 0 ? record.getParent(Category.TEST, t) : Integer.MAX_VALUE;
+                if (r >= 0 && r <= parent) {
+                    l.add(results.get(r));
+                    // The tests of a matched result are not looked at
+                    while (t >= 0 && record.getParent(Category.TEST, t) == r) {
+                        t = tb.nextSetBit(t + 1);
                     }
+                    r = rb.nextSetBit(r + 1);
+                } else {
+                    l.add(tests.get(t));
+                    t = tb.nextSetBit(t + 1);
                 }
             }
+            return l;
         }
-        // No code match found
-        return false;
     }
 }
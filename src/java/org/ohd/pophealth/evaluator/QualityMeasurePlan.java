@@ -0,0 +1,59 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.ohd.pophealth.evaluator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import org.ohd.pophealth.json.measuremodel.Measure;
+import org.ohd.pophealth.json.measuremodel.QualityMeasure;
+
+/**
+ * A <code>QualityMeasure</code> compiled for evaluation, see
+ * <code>MeasurePlan</code>.  Compile measures once when they are loaded and
+ * evaluate records against the plans.
+ *
+ * @author ohdohd
+ */
+public class QualityMeasurePlan {
+
+    private final QualityMeasure qualityMeasure;
+    private final List<MeasurePlan> measures;
+
+    public QualityMeasurePlan(QualityMeasure qualityMeasure) {
+        this.qualityMeasure = qualityMeasure;
+        ArrayList<MeasurePlan> plans = new ArrayList<MeasurePlan>();
+        for (Measure m : qualityMeasure.getMeasures()) {
+            plans.add(new MeasurePlan(m));
+        }
+        this.measures = Collections.unmodifiableList(plans);
+    }
+
+    /**
+     * Compiles a set of quality measures
+     * @param qList The quality measures
+     * @return the plans, in the same order
+     */
+    public static ArrayList<QualityMeasurePlan> compile(Collection<QualityMeasure> qList) {
+        ArrayList<QualityMeasurePlan> plans = new ArrayList<QualityMeasurePlan>(qList.size());
+        for (QualityMeasure q : qList) {
+            plans.add(new QualityMeasurePlan(q));
+        }
+        return plans;
+    }
+
+    public QualityMeasure getQualityMeasure() {
+        return qualityMeasure;
+    }
+
+    public String getId() {
+        return qualityMeasure.getId();
+    }
+
+    public List<MeasurePlan> getMeasures() {
+        return measures;
+    }
+}
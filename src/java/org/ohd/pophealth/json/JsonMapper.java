@@ -9,11 +9,14 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringWriter;
+import org.codehaus.jackson.JsonEncoding;
 import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonGenerationException;
 import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.JsonParser.Feature;
 import org.codehaus.jackson.map.JsonMappingException;
 import org.codehaus.jackson.map.ObjectMapper;
@@ -114,4 +117,63 @@ public class JsonMapper {
         }
         m.writeValue(jg, pojo);
     }
+
+    /**
+     * Writes JSON text through a generator token by token, so it comes out
+     * the same as JSON written from the objects by that generator
+     * @param json The JSON text
+     * @param jg The generator to write to
+     * @throws JsonParseException
+     * @throws IOException
+     */
+    public static void copy(String json, JsonGenerator jg)
+            throws JsonParseException, IOException {
+        JsonParser jp = jf.createJsonParser(json);
+        try {
+            if (jp.nextToken() != null) {
+                jg.copyCurrentStructure(jp);
+            }
+        } finally {
+            jp.close();
+        }
+    }
+
+    /**
+     * Writes JSON text again, indented or compact
+     * @param json The JSON text
+     * @param prettyPrint Should the resulting String be indented
+     * @return the JSON text
+     * @throws JsonParseException
+     * @throws IOException
+     */
+    public static String reformat(String json, boolean prettyPrint)
+            throws JsonParseException, IOException {
+        StringWriter sw = new StringWriter();
+        JsonGenerator jg = jf.createJsonGenerator(sw);
+        if (prettyPrint) {
+            jg.useDefaultPrettyPrinter();
+        }
+        copy(json, jg);
+        jg.close();
+        return sw.toString();
+    }
+
+    /**
+     * Writes JSON text again to a stream as UTF-8, indented or compact.  The
+     * stream is flushed but not closed.
+     * @param json The JSON text
+     * @param os The stream
+     * @param prettyPrint Should the JSON be indented
+     * @throws JsonParseException
+     * @throws IOException
+     */
+    public static void reformat(String json, OutputStream os, boolean prettyPrint)
+            throws JsonParseException, IOException {
+        JsonGenerator jg = jf.createJsonGenerator(os, JsonEncoding.UTF8);
+        if (prettyPrint) {
+            jg.useDefaultPrettyPrinter();
+        }
+        copy(json, jg);
+        jg.flush();
+    }
 }
@@ -7,6 +7,7 @@ package org.ohd.pophealth.json.clinicalmodel;
 import java.io.IOException;
 import java.util.ArrayList;
 import org.codehaus.jackson.JsonGenerationException;
+import org.codehaus.jackson.annotate.JsonIgnore;
 import org.codehaus.jackson.map.JsonMappingException;
 import org.ohd.pophealth.json.JsonMapper;
 
@@ -25,6 +26,7 @@ public class Record {
     private ArrayList<Procedure> procedures;
     private ArrayList<Order> orders;
     private ArrayList<Actor> actors;
+    private RecordIndex index;  // built from the lists, cleared when one is set
 
     public ArrayList<Actor> getActors() {
         return actors;
@@ -40,6 +42,7 @@ public class Record {
 
     public void setConditions(ArrayList<Condition> conditions) {
         this.conditions = conditions;
+        this.index = null;
     }
 
     public ArrayList<Encounter> getEncounters() {
@@ -48,6 +51,7 @@ public class Record {
 
     public void setEncounters(ArrayList<Encounter> encounters) {
         this.encounters = encounters;
+        this.index = null;
     }
 
     public ArrayList<Result> getResults() {
@@ -56,6 +60,7 @@ public class Record {
 
     public void setResults(ArrayList<Result> results) {
         this.results = results;
+        this.index = null;
     }
 
     public ArrayList<Medication> getMedications() {
@@ -64,6 +69,7 @@ public class Record {
 
     public void setMedications(ArrayList<Medication> medications) {
         this.medications = medications;
+        this.index = null;
     }
 
     public ArrayList<Allergy> getAllergies() {
@@ -72,6 +78,7 @@ public class Record {
 
     public void setAllergies(ArrayList<Allergy> allergies) {
         this.allergies = allergies;
+        this.index = null;
     }
 
     public ArrayList<Procedure> getProcedures() {
@@ -80,6 +87,7 @@ public class Record {
 
     public void setProcedures(ArrayList<Procedure> procedures) {
         this.procedures = procedures;
+        this.index = null;
     }
 
     public ArrayList<Order> getOrders() {
@@ -88,6 +96,7 @@ public class Record {
 
     public void setOrders(ArrayList<Order> orders) {
         this.orders = orders;
+        this.index = null;
     }
 
     public Patient getPatient() {
@@ -98,6 +107,30 @@ public class Record {
         this.patient = patient;
     }
 
+    /**
+     * The code index of the record, built the first time it is asked for if
+     * <code>buildIndex</code> has not been called, and built again if
+     * measures loaded since then have added codes.  Setting one of the lists
+     * clears the index, changing a list in place does not.
+     * @return the index
+     */
+    @JsonIgnore
+    public synchronized RecordIndex getIndex() {
+        if (index == null || !index.isCurrent()) {
+            index = new RecordIndex(this);
+        }
+        return index;
+    }
+
+    /**
+     * Builds the code index from the record's lists as they are now
+     * @return the index
+     */
+    public synchronized RecordIndex buildIndex() {
+        index = new RecordIndex(this);
+        return index;
+    }
+
     public String toJson(boolean prettyPrint) throws JsonMappingException,
             JsonGenerationException, IOException {
         return JsonMapper.toJson(this, prettyPrint);
@@ -0,0 +1,150 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.ohd.pophealth.json.clinicalmodel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import org.ohd.pophealth.ccr.importer.CodeDictionary;
+
+/**
+ * An index of the codes of a <code>Record</code>, built once when the record
+ * is extracted.  The clinical objects of each category are numbered in record
+ * order, with the tests of all results and the goals of all orders flattened
+ * into their own categories, and each object's codes are kept as a sorted
+ * array of <code>CodeDictionary</code> ids.  Measures can then be answered
+ * with integer lookups instead of walking the record's nested lists and
+ * comparing strings.
+ * <p>
+ * The index is a snapshot of the record's lists when it was built and is not
+ * changed afterwards.  Codes that had no id when it was built are left out,
+ * so an index built before more measures were loaded is not current and has
+ * to be built again.
+ *
+ * @author ohdohd
+ */
+public class RecordIndex {
+
+    /**
+     * The categories the clinical objects are indexed in
+     */
+    public static enum Category {
+
+        CONDITION, ENCOUNTER, PROCEDURE, RESULT, TEST, MEDICATION, ALLERGY, ORDER, GOAL
+    }
+    private static final int[] NONE = new int[0];
+    private final CodeDictionary dictionary = CodeDictionary.getInstance();
+    // Size of the dictionary before the codes were looked up
+    private final int dictionarySize = dictionary.size();
+    private final EnumMap<Category, List<BaseClinicalObject>> objects = new EnumMap<Category, List<BaseClinicalObject>>(Category.class);
+    // The code ids of each object, by object number
+    private final EnumMap<Category, int[][]> codes = new EnumMap<Category, int[][]>(Category.class);
+    // Number of the result of each test and the order of each goal
+    private int[] testParents = NONE;
+    private int[] goalParents = NONE;
+
+    public RecordIndex(Record r) {
+        add(Category.CONDITION, r.getConditions());
+        add(Category.ENCOUNTER, r.getEncounters());
+        add(Category.PROCEDURE, r.getProcedures());
+        add(Category.MEDICATION, r.getMedications());
+        add(Category.ALLERGY, r.getAllergies());
+        ArrayList<Test> tests = new ArrayList<Test>();
+        ArrayList<Integer> parents = new ArrayList<Integer>();
+        if (r.getResults() != null) {
+            for (int i = 0; i < r.getResults().size(); i++) {
+                for (Test t : r.getResults().get(i).getTests()) {
+                    tests.add(t);
+                    parents.add(i);
+                }
+            }
+        }
+        add(Category.RESULT, r.getResults());
+        add(Category.TEST, tests);
+        testParents = toArray(parents);
+        ArrayList<Goal> goals = new ArrayList<Goal>();
+        parents.clear();
+        if (r.getOrders() != null) {
+            for (int i = 0; i < r.getOrders().size(); i++) {
+                for (Goal g : r.getOrders().get(i).getGoals()) {
+                    goals.add(g);
+                    parents.add(i);
+                }
+            }
+        }
+        add(Category.ORDER, r.getOrders());
+        add(Category.GOAL, goals);
+        goalParents = toArray(parents);
+    }
+
+    private void add(Category c, List<? extends BaseClinicalObject> list) {
+        ArrayList<BaseClinicalObject> objs = new ArrayList<BaseClinicalObject>();
+        if (list != null) {
+            objs.addAll(list);
+        }
+        int[][] ids = new int[objs.size()][];
+        for (int i = 0; i < ids.length; i++) {
+            // Codes are only looked up, a code with no id is in no value set
+            ids[i] = dictionary.encodeRecord(objs.get(i).getDescription());
+        }
+        objects.put(c, Collections.unmodifiableList(objs));
+        codes.put(c, ids);
+    }
+
+    private static int[] toArray(List<Integer> l) {
+        int[] a = new int[l.size()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = l.get(i);
+        }
+        return a;
+    }
+
+    /**
+     * The clinical objects of a category in record order
+     * @param c The category
+     * @return the objects, numbered by their position
+     */
+    public List<BaseClinicalObject> getObjects(Category c) {
+        return objects.get(c);
+    }
+
+    /**
+     * The codes of a clinical object
+     * @param c The category
+     * @param n The number of the object
+     * @return the sorted <code>CodeDictionary</code> ids, not to be changed
+     */
+    public int[] getCodes(Category c, int n) {
+        return codes.get(c)[n];
+    }
+
+    /**
+     * Checks that no value set has added codes to the dictionary since the
+     * index was built
+     * @return <code>false</code> if the index has to be built again
+     */
+    public boolean isCurrent() {
+        return dictionary.size() == dictionarySize;
+    }
+
+    /**
+     * The number of the result a test belongs to, or of the order a goal
+     * belongs to
+     * @param c <code>TEST</code> or <code>GOAL</code>
+     * @param n The number of the test or goal
+     * @return the number of the result or order, -1 for other categories
+     */
+    public int getParent(Category c, int n) {
+        switch (c) {
+            case TEST:
+                return testParents[n];
+            case GOAL:
+                return goalParents[n];
+            default:
+                return -1;
+        }
+    }
+}
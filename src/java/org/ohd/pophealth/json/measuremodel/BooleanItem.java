@@ -42,10 +42,15 @@ public class BooleanItem extends Item{
         if (prettyprint) {
             jg.useDefaultPrettyPrinter();
         }
-        jg.writeBoolean(value);
+        writeJSON(jg);
         jg.flush();
         jg.close();
         return sw.toString();
     }
 
+    @Override
+    public void writeJSON(JsonGenerator jg) throws JsonGenerationException, IOException {
+        jg.writeBoolean(value);
+    }
+
 }
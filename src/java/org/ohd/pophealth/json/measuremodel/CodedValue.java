@@ -97,12 +97,18 @@ public class CodedValue {
 
 
 
+    /**
+     * Hashes only the coding system and version.  Two <code>CodedValue</code>
+     * objects with different code lists can be equal, so the codes can not
+     * be part of the hash.
+     *
+     * @return the hash code
+     */
     @Override
     public int hashCode() {
         int hash = 7;
         hash = 13 * hash + (this.codingSystem != null ? this.codingSystem.hashCode() : 0);
         hash = 13 * hash + (this.version != null ? this.version.hashCode() : 0);
-        hash = 13 * hash + (this.values != null ? this.values.hashCode() : 0);
         return hash;
     }
 
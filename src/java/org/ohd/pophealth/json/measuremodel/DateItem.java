@@ -51,6 +51,14 @@ public class DateItem extends Item {
         if (prettyPrint) {
             jg.useDefaultPrettyPrinter();
         }
+        writeJSON(jg);
+        jg.flush();
+        jg.close();
+        return sw.toString();
+    }
+
+    @Override
+    public void writeJSON(JsonGenerator jg) throws JsonGenerationException, IOException {
         jg.writeStartArray();
         if (date != null && date.length > 0) {
             for (long l : date) {
@@ -58,8 +66,5 @@ public class DateItem extends Item {
             }
         }
         jg.writeEndArray();
-        jg.flush();
-        jg.close();
-        return sw.toString();
     }
 }
@@ -7,6 +7,7 @@ package org.ohd.pophealth.json.measuremodel;
 
 import java.io.IOException;
 import org.codehaus.jackson.JsonGenerationException;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.map.JsonMappingException;
 
 /**
@@ -18,4 +19,12 @@ public abstract class Item {
     public abstract String toJSON(boolean prettyprint)throws JsonMappingException,
             JsonGenerationException, IOException;
 
+    /**
+     * Writes the item as a JSON value to a generator the caller owns
+     * @param jg The generator
+     * @throws JsonGenerationException
+     * @throws IOException
+     */
+    public abstract void writeJSON(JsonGenerator jg) throws JsonGenerationException, IOException;
+
 }
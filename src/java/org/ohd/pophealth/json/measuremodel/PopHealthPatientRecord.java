@@ -5,9 +5,11 @@
 package org.ohd.pophealth.json.measuremodel;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import org.codehaus.jackson.JsonEncoding;
 import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonGenerationException;
 import org.codehaus.jackson.JsonGenerator;
@@ -71,6 +73,38 @@ public class PopHealthPatientRecord {
         if (prettyPrint) {
             jg.useDefaultPrettyPrinter();
         }
+        writeJson(jg);
+        jg.flush();
+        jg.close();
+        return sw.toString();
+        //return JsonMapper.toJson(this, prettyPrint);
+    }
+
+    /**
+     * Writes the result as UTF-8 JSON straight to a stream.  The stream is
+     * flushed but not closed.
+     * @param os The stream
+     * @param prettyPrint Should the JSON be indented
+     * @throws JsonGenerationException
+     * @throws IOException
+     */
+    public void toJson(OutputStream os, boolean prettyPrint) throws JsonGenerationException, IOException {
+        JsonGenerator jg = jf.createJsonGenerator(os, JsonEncoding.UTF8);
+        if (prettyPrint) {
+            jg.useDefaultPrettyPrinter();
+        }
+        writeJson(jg);
+        jg.flush();
+    }
+
+    /**
+     * Writes the result as a JSON object to a generator the caller owns.  The
+     * items are written through the same generator, no Strings are built.
+     * @param jg The generator
+     * @throws JsonGenerationException
+     * @throws IOException
+     */
+    public void writeJson(JsonGenerator jg) throws JsonGenerationException, IOException {
         jg.writeStartObject();
             jg.writeStringField("first", patient.getFirst());
             jg.writeStringField("last", patient.getLast());
@@ -81,21 +115,11 @@ public class PopHealthPatientRecord {
                     jg.writeObjectFieldStart(mr.id);
                         for(String k : mr.map.keySet()){
                             jg.writeFieldName(k);
-                            jg.writeRawValue(mr.map.get(k).toJSON(prettyPrint));
-//                            jg.writeStartArray();
-//                                for(String s : mr.map.get(k)){
-//                                    // TODO this needs to be fixed when items fixed in MeasureReader class
-//                                    jg.writeRawValue(s);
-//                                }
-//                            jg.writeEndArray();
+                            mr.map.get(k).writeJSON(jg);
                         }
                     jg.writeEndObject();
                 }
            jg.writeEndObject();
         jg.writeEndObject();
-        jg.flush();
-        jg.close();
-        return sw.toString();
-        //return JsonMapper.toJson(this, prettyPrint);
     }
 }
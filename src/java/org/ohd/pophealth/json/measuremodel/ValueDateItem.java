@@ -41,6 +41,14 @@ public class ValueDateItem extends Item {
 //        if (prettyPrint) {
 //            jg.useDefaultPrettyPrinter();
 //        }
+        writeJSON(jg);
+        jg.flush();
+        jg.close();
+        return sw.toString();
+    }
+
+    @Override
+    public void writeJSON(JsonGenerator jg) throws JsonGenerationException, IOException {
         jg.writeStartArray();
           for (ValueDate v : this.values){
             jg.writeStartObject();
@@ -51,9 +59,6 @@ public class ValueDateItem extends Item {
             jg.writeEndObject();
           }
         jg.writeEndArray();
-        jg.flush();
-        jg.close();
-        return sw.toString();
     }
 
     public class ValueDate {
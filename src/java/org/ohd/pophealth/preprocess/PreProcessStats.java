@@ -0,0 +1,81 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.ohd.pophealth.preprocess;
+
+/**
+ * Counts what the preprocessing steps did to one CCR.  An instance is only
+ * used by the thread preprocessing that CCR.
+ *
+ * @author ohdohd
+ */
+public class PreProcessStats {
+
+    private int encountersFixed = 0;
+    private int problemsAdded = 0;
+    private int umlsLookups = 0;
+    private int codesInferred = 0;
+    private long umlsMillis = 0;
+
+    /**
+     * Number of encounters the CPT encounter codes were added to
+     * @return the count
+     */
+    public int getEncountersFixed() {
+        return encountersFixed;
+    }
+
+    /**
+     * Number of tobacco use problems added from the social history
+     * @return the count
+     */
+    public int getProblemsAdded() {
+        return problemsAdded;
+    }
+
+    /**
+     * Number of descriptions looked up in UMLS
+     * @return the count
+     */
+    public int getUmlsLookups() {
+        return umlsLookups;
+    }
+
+    /**
+     * Number of codes added from UMLS lookups
+     * @return the count
+     */
+    public int getCodesInferred() {
+        return codesInferred;
+    }
+
+    /**
+     * Time spent on UMLS lookups, including waiting for other threads using UMLS
+     * @return the time in milliseconds
+     */
+    public long getUmlsMillis() {
+        return umlsMillis;
+    }
+
+    void addEncountersFixed(int n) {
+        encountersFixed += n;
+    }
+
+    void addProblemsAdded(int n) {
+        problemsAdded += n;
+    }
+
+    void addUmlsLookup(int codes, long millis) {
+        umlsLookups++;
+        codesInferred += codes;
+        umlsMillis += millis;
+    }
+
+    @Override
+    public String toString() {
+        return "PreProcessStats encountersFixed=" + encountersFixed + " problemsAdded=" + problemsAdded
+                + " umlsLookups=" + umlsLookups + " codesInferred=" + codesInferred + " umlsMillis=" + umlsMillis;
+    }
+}
@@ -30,27 +30,89 @@ import org.ohd.umls.UMLSConfiguration;
 import org.ohd.umls.UMLSInterface;
 
 /**
+ * Fixes up and adds codes to a CCR before the clinical data is extracted.
+ * The preprocessing methods only change the CCR passed to them, so they can
+ * be called from many threads at once.  UMLS lookups are done one at a time
+ * since the UMLS database connection and the LVG normalizer are not thread safe.
+ * <p>
+ * UMLS and LVG are only started when codes are first inferred, or when
+ * <code>startUmls</code> is called, so fixing encounters and tobacco history
+ * never opens the database.
  *
  * @author ohdohd
  */
 public class PreProcessor implements Closeable {
 
-    private static UMLSInterface umls;
-    private static List<CodingSystem> availableCS;
+    // UMLSInterface keeps the last connection it opened in a static field
+    // that close() closes, so opening and closing are done one at a time
+    private static final Object UMLS_CONNECTION_LOCK = new Object();
+    // Each UMLSInterface has its own Statement and LVG instance, which can
+    // only be used by one thread at a time
+    private final Object umlsLock = new Object();
+    private final String lvgConfLocation;
+    private final String configFile;
+    // Guarded by umlsLock, set up on first use
+    private UMLSConfiguration umlsConfig;
+    private volatile UMLSInterface umls;
+    private volatile List<CodingSystem> availableCS;
 
     public PreProcessor(InputStream config, String lvgConfLocation) {
-        umls = new UMLSInterface(new UMLSConfiguration(config), lvgConfLocation);
-        setAvailableCS();
+        this.umlsConfig = new UMLSConfiguration(config);
+        this.configFile = null;
+        this.lvgConfLocation = lvgConfLocation;
     }
 
+    /**
+     * @param fileName The UMLS database configuration file, read when UMLS is started
+     * @param lvgConfLocation The LVG configuration
+     */
     public PreProcessor(String fileName, String lvgConfLocation) {
-        umls = new UMLSInterface(new UMLSConfiguration(fileName), lvgConfLocation);
-        setAvailableCS();
+        this.configFile = fileName;
+        this.lvgConfLocation = lvgConfLocation;
     }
 
-    private void setAvailableCS() {
-        availableCS = umls.getCodingSystem();
-        Logger.getLogger(PreProcessor.class.getName()).log(Level.FINEST, "Size of available Coding Systems: " + availableCS.size());
+    /**
+     * Connects to UMLS and starts LVG if that has not been done yet.  Called
+     * the first time a code is inferred, can be called earlier so the first
+     * CCR does not wait for it.
+     */
+    public void startUmls() {
+        getUmls();
+    }
+
+    /**
+     * Checks if UMLS has been started
+     * @return <code>true</code> if the UMLS connection is open
+     */
+    public boolean isUmlsStarted() {
+        return umls != null;
+    }
+
+    private UMLSInterface getUmls() {
+        UMLSInterface u = umls;
+        if (u != null) {
+            return u;
+        }
+        synchronized (umlsLock) {
+            if (umls == null) {
+                if (umlsConfig == null) {
+                    if (configFile == null) {
+                        throw new IllegalStateException("No UMLS configuration, codes can not be inferred");
+                    }
+                    umlsConfig = new UMLSConfiguration(configFile);
+                }
+                long start = System.currentTimeMillis();
+                synchronized (UMLS_CONNECTION_LOCK) {
+                    u = new UMLSInterface(umlsConfig, lvgConfLocation);
+                }
+                List<CodingSystem> cs = u.getCodingSystem();
+                Logger.getLogger(PreProcessor.class.getName()).log(Level.FINEST, "Size of available Coding Systems: " + cs.size());
+                availableCS = cs;
+                umls = u;
+                Logger.getLogger(PreProcessor.class.getName()).log(Level.FINE, "UMLS started in {0} ms", System.currentTimeMillis() - start);
+            }
+            return umls;
+        }
     }
 
     public ContinuityOfCareRecord preProcess(ContinuityOfCareRecord ccr) {
@@ -61,6 +123,10 @@ public class PreProcessor implements Closeable {
     }
 
     public ContinuityOfCareRecord fixTobaccoHx(ContinuityOfCareRecord ccr) {
+        return fixTobaccoHx(ccr, new PreProcessStats());
+    }
+
+    public ContinuityOfCareRecord fixTobaccoHx(ContinuityOfCareRecord ccr, PreProcessStats stats) {
         if (ccr.getBody().getSocialHistory() != null) {
             ProblemType p = fixTobaccoHx(ccr.getBody().getSocialHistory().getSocialHistoryElement());
             if (p != null) {
@@ -76,6 +142,7 @@ public class PreProcessor implements Closeable {
                     prblms.getProblem().add(p);
                     ccr.getBody().setProblems(prblms);
                 }
+                stats.addProblemsAdded(1);
             }
         }
         return ccr;
@@ -86,22 +153,24 @@ public class PreProcessor implements Closeable {
         "99344", "99345", "99347", "99348", "99349", "99350", "99384", "99385", "99386",
         "99387", "99394", "99395", "99396", "99397", "99401", "99402", "99403", "99404",
         "99411", "99412", "99420", "99429", "99455", "99456"};
-    private ArrayList<CodeType> encounterCodes = null;
+    private final ArrayList<CodeType> encounterCodes = createEncounterCodes();
 
-    private void createEncounterCodes() {
-        encounterCodes = new ArrayList<CodeType>();
+    private static ArrayList<CodeType> createEncounterCodes() {
+        ArrayList<CodeType> codes = new ArrayList<CodeType>();
         for (String c : cptEncounterList) {
             CodeType ct = new CodeType();
             ct.setCodingSystem("CPT");
             ct.setValue(c);
-            encounterCodes.add(ct);
+            codes.add(ct);
         }
+        return codes;
     }
 
     public ContinuityOfCareRecord fixEncounters(ContinuityOfCareRecord ccr) {
-        if (encounterCodes == null) {
-            createEncounterCodes();
-        }
+        return fixEncounters(ccr, new PreProcessStats());
+    }
+
+    public ContinuityOfCareRecord fixEncounters(ContinuityOfCareRecord ccr, PreProcessStats stats) {
         if (ccr.getBody().getEncounters() != null) {
             for (EncounterType et : ccr.getBody().getEncounters().getEncounter()) {
                 if (et.getDescription() == null) {
@@ -112,57 +181,62 @@ public class PreProcessor implements Closeable {
                 for (CodeType ct : encounterCodes) {
                     et.getDescription().getCode().add(ct);
                 }
+                stats.addEncountersFixed(1);
             }
         }
         return ccr;
     }
 
     public ContinuityOfCareRecord inferCodes(ContinuityOfCareRecord ccr) {
+        return inferCodes(ccr, new PreProcessStats());
+    }
+
+    public ContinuityOfCareRecord inferCodes(ContinuityOfCareRecord ccr, PreProcessStats stats) {
         if (ccr.getBody().getMedications() != null) {
-            codeMeds(ccr.getBody().getMedications().getMedication());
+            codeMeds(ccr.getBody().getMedications().getMedication(), stats);
         }
         if (ccr.getBody().getImmunizations() != null) {
-            codeMeds(ccr.getBody().getImmunizations().getImmunization());
+            codeMeds(ccr.getBody().getImmunizations().getImmunization(), stats);
         }
         if (ccr.getBody().getProblems() != null) {
-            codeProblems(ccr.getBody().getProblems().getProblem());
+            codeProblems(ccr.getBody().getProblems().getProblem(), stats);
         }
         if (ccr.getBody().getAlerts() != null) {
-            codeAlerts(ccr.getBody().getAlerts().getAlert());
+            codeAlerts(ccr.getBody().getAlerts().getAlert(), stats);
         }
         if (ccr.getBody().getResults() != null) {
-            codeResults(ccr.getBody().getResults().getResult());
+            codeResults(ccr.getBody().getResults().getResult(), stats);
         }
         if (ccr.getBody().getVitalSigns() != null) {
-            codeResults(ccr.getBody().getVitalSigns().getResult());
+            codeResults(ccr.getBody().getVitalSigns().getResult(), stats);
         }
         return ccr;
     }
 
-    private void codeMeds(List<StructuredProductType> medications) {
+    private void codeMeds(List<StructuredProductType> medications, PreProcessStats stats) {
         for (StructuredProductType spt : medications) {
             for (Product p : spt.getProduct()) {
                 Logger.getLogger(PreProcessor.class.getName()).log(Level.FINE, "Looking up code for {0}", p.getProductName().getText());
-                addCode(p.getProductName(), "rxnorm");
+                addCode(p.getProductName(), "rxnorm", stats);
                 if (p.getBrandName() != null) {
-                    addCode(p.getBrandName(), "rxnorm");
+                    addCode(p.getBrandName(), "rxnorm", stats);
                 }
             }
         }
     }
 
-    private void codeAlerts(List<AlertType> alerts) {
+    private void codeAlerts(List<AlertType> alerts, PreProcessStats stats) {
         for (AlertType at : alerts) {
             if (at.getDescription() != null) {
-                addCode(at.getDescription(), "rxnorm");
+                addCode(at.getDescription(), "rxnorm", stats);
             }
             for (Agent ag : at.getAgent()) {
                 if (ag.getProducts() != null) {
                     for (StructuredProductType spt : ag.getProducts().getProduct()) {
                         for (Product p : spt.getProduct()) {
-                            addCode(p.getProductName(), "rxnorm");
+                            addCode(p.getProductName(), "rxnorm", stats);
                             if (p.getBrandName() != null) {
-                                addCode(p.getBrandName(), "rxnorm");
+                                addCode(p.getBrandName(), "rxnorm", stats);
                             }
                         }
                     }
@@ -171,19 +245,19 @@ public class PreProcessor implements Closeable {
         }
     }
 
-    private void codeProblems(List<ProblemType> problems) {
+    private void codeProblems(List<ProblemType> problems, PreProcessStats stats) {
         for (ProblemType pt : problems) {
             if (pt.getDescription() != null) {
-                addCode(pt.getDescription(), "snomedct");
+                addCode(pt.getDescription(), "snomedct", stats);
             }
         }
     }
 
-    private void codeResults(List<ResultType> results) {
+    private void codeResults(List<ResultType> results, PreProcessStats stats) {
         for (ResultType rt : results) {
             if (rt.getDescription() != null) {
-                addCode(rt.getDescription(), "lnc");
-                addCode(rt.getDescription(), "snomedct");
+                addCode(rt.getDescription(), "lnc", stats);
+                addCode(rt.getDescription(), "snomedct", stats);
             }
             for (TestType tt : rt.getTest()) {
                 if (tt.getDescription() != null) {
@@ -205,8 +279,8 @@ public class PreProcessor implements Closeable {
                         }
                     }
                     // End Hack
-                    addCode(tt.getDescription(), "lnc");
-                    addCode(tt.getDescription(), "snomedct");
+                    addCode(tt.getDescription(), "lnc", stats);
+                    addCode(tt.getDescription(), "snomedct", stats);
                 }
             }
         }
@@ -249,23 +323,32 @@ public class PreProcessor implements Closeable {
         return null;
     }
 
-    private void addCode(CodedDescriptionType cdt, String vocab) {
+    private void addCode(CodedDescriptionType cdt, String vocab, PreProcessStats stats) {
         if (cdt.getText() == null || vocab == null) {
             return;
         } else {
             // Could check for known vocab
+            UMLSInterface umls = getUmls();
             CodingSystem cs = findCodingSystem(vocab);
             if (cs == null) {
                 Logger.getLogger(PreProcessor.class.getName()).log(Level.WARNING, "Could not find vocab: {0}", vocab);
                 return;
             }
 
-            String norm = umls.normalize(cdt.getText());
-            Logger.getLogger(PreProcessor.class.getName()).log(Level.FINEST, "Normalized to: " + norm);
-            List<String> cuis = umls.getCUIs(norm);
-            Logger.getLogger(PreProcessor.class.getName()).log(Level.FINEST, "Found [{0}] CUI matches", cuis.size());
-            for (String cui : cuis) {
-                Code code = umls.getCode(cui, cs);
+            String norm;
+            List<Code> codes = new ArrayList<Code>();
+            long start = System.currentTimeMillis();
+            synchronized (umlsLock) {
+                norm = umls.normalize(cdt.getText());
+                Logger.getLogger(PreProcessor.class.getName()).log(Level.FINEST, "Normalized to: " + norm);
+                List<String> cuis = umls.getCUIs(norm);
+                Logger.getLogger(PreProcessor.class.getName()).log(Level.FINEST, "Found [{0}] CUI matches", cuis.size());
+                for (String cui : cuis) {
+                    codes.add(umls.getCode(cui, cs));
+                }
+            }
+            int added = 0;
+            for (Code code : codes) {
                 if (code != null) {
                     Logger.getLogger(PreProcessor.class.getName()).log(Level.FINEST, "Adding Code: {0} [{1}] for [{2}]", new Object[]{code.getTerm(), code.getValue(), cdt.getText()});
                     CodeType ct = new CodeType();
@@ -273,10 +356,12 @@ public class PreProcessor implements Closeable {
                     ct.setVersion(cs.getVersion());
                     ct.setValue(code.getValue());
                     cdt.getCode().add(ct);
+                    added++;
                 } else {
                     Logger.getLogger(PreProcessor.class.getName()).log(Level.FINEST, "No Code Found for: {0}", norm);
                 }
             }
+            stats.addUmlsLookup(added, System.currentTimeMillis() - start);
 
         }
     }
@@ -291,6 +376,14 @@ public class PreProcessor implements Closeable {
     }
 
     public void close() throws IOException {
-        this.umls.close();
+        synchronized (umlsLock) {
+            if (umls != null) {
+                synchronized (UMLS_CONNECTION_LOCK) {
+                    umls.close();
+                }
+                umls = null;
+                availableCS = null;
+            }
+        }
     }
 }
@@ -0,0 +1,588 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.ohd.pophealth.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.ohd.pophealth.api.CCRBundleReader;
+import org.ohd.pophealth.api.CCREngine;
+import org.ohd.pophealth.api.CCRSource;
+import org.ohd.pophealth.api.Configuration;
+import org.ohd.pophealth.api.ContentHash;
+import org.ohd.pophealth.api.EvaluationResult;
+import org.ohd.pophealth.api.Evaluator;
+import org.ohd.pophealth.json.MeasureReader;
+import org.ohd.pophealth.json.measuremodel.QualityMeasure;
+
+/**
+ * Command line bulk importer.  Reads CCRs from directories, bundles (zip,
+ * tar.gz or concatenated XML) and file lists, evaluates them in parallel and
+ * writes one JSON result per line (NDJSON).  Optionally writes each CCR after
+ * preprocessing as XML.  Prints the throughput when it is done.
+ * <p>
+ * With a manifest, see <code>ImportManifest</code>, the importer records the
+ * content hash and outcome of every CCR it finishes and appends to the
+ * output.  A run that is stopped part way can be started again with the same
+ * arguments and carries on where it stopped, and a rerun skips CCRs whose
+ * content and measure set have not changed.  The manifest line is written
+ * after the output line, so a crash between the two can repeat one line in
+ * the output.
+ * <pre>
+ * BulkImporter -m measures [options] input...
+ *   -m, --measures FILE|DIR   quality measure JSON, a directory is read for *.json
+ *   -o, --out FILE            NDJSON output, standard output if not set
+ *   -x, --xml-dir DIR         write the preprocessed CCRs here
+ *   -t, --threads N           worker threads, one per processor if not set
+ *   --ordered                 write results in input order
+ *   --manifest FILE           record finished CCRs, skip them on reruns
+ *   --lenient                 lenient validation
+ *   --infer-codes --fix-encounters --fix-tobacco   preprocessing
+ *   input                     a CCR file, a directory, a bundle, or @FILE listing inputs
+ * </pre>
+ * Each output line is
+ * <code>{"name":..., "hash":..., "version":..., "status":"valid"|"invalid"|"failed", "result"|"errors"|"error":...}</code>.
+ * The version is that of the measure set and settings, <code>hash</code> is
+ * the content hash of the CCR and is only written with a manifest.  A rerun
+ * after the measures change appends lines with the new version, keep the
+ * last line of each hash and version.
+ * A bundle that can not be read to the end, such as a truncated tar, gives a
+ * failed line named after the bundle after the CCRs read from it, and the
+ * import goes on with the next input.
+ *
+ * @author ohdohd
+ */
+public class BulkImporter {
+
+    private final static Logger LOG = Logger.getLogger(BulkImporter.class.getName());
+    private static final JsonFactory jf = new JsonFactory();
+    private final ArrayList<String> inputs = new ArrayList<String>();
+    private final ArrayList<QualityMeasure> measures = new ArrayList<QualityMeasure>();
+    private final Configuration config = new Configuration();
+    private File out = null;
+    private File xmlDir = null;
+    private File manifestFile = null;
+    private final StringBuilder measureJson = new StringBuilder();
+    private boolean ordered = false;
+    private boolean lenient = false;
+    private boolean inferCodes = false;
+    private boolean fixEncounters = false;
+    private boolean fixTobacco = false;
+    // Counters
+    private long valid = 0;
+    private long invalid = 0;
+    private long failed = 0;
+    private long skipped = 0;
+    private final LinkedHashMap<String, Long> stageNanos = new LinkedHashMap<String, Long>();
+
+    public static void main(String[] args) {
+        BulkImporter bi = new BulkImporter();
+        try {
+            bi.parseArgs(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            usage();
+            System.exit(2);
+        }
+        try {
+            bi.run();
+        } catch (Exception ex) {
+            LOG.log(Level.SEVERE, "Bulk import failed", ex);
+            System.exit(1);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: BulkImporter -m measures [-o out.ndjson] [-x xmlDir] [-t threads] [--ordered]");
+        System.err.println("       [--manifest FILE]");
+        System.err.println("       [--lenient] [--infer-codes] [--fix-encounters] [--fix-tobacco] input...");
+        System.err.println("  input is a CCR file, a directory, a zip/tar.gz/concatenated bundle or @file listing inputs");
+    }
+
+    void parseArgs(String[] args) throws IllegalArgumentException {
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if ("-m".equals(a) || "--measures".equals(a)) {
+                loadMeasures(new File(value(args, ++i, a)));
+            } else if ("-o".equals(a) || "--out".equals(a)) {
+                out = new File(value(args, ++i, a));
+            } else if ("-x".equals(a) || "--xml-dir".equals(a)) {
+                xmlDir = new File(value(args, ++i, a));
+            } else if ("-t".equals(a) || "--threads".equals(a)) {
+                try {
+                    config.setWorkerThreads(Integer.parseInt(value(args, ++i, a)));
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Not a number of threads: " + args[i]);
+                }
+            } else if ("--manifest".equals(a)) {
+                manifestFile = new File(value(args, ++i, a));
+            } else if ("--ordered".equals(a)) {
+                ordered = true;
+            } else if ("--lenient".equals(a)) {
+                lenient = true;
+            } else if ("--infer-codes".equals(a)) {
+                inferCodes = true;
+            } else if ("--fix-encounters".equals(a)) {
+                fixEncounters = true;
+            } else if ("--fix-tobacco".equals(a)) {
+                fixTobacco = true;
+            } else if (a.startsWith("-") && a.length() > 1) {
+                throw new IllegalArgumentException("Unknown option " + a);
+            } else {
+                inputs.add(a);
+            }
+        }
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("No inputs given");
+        }
+        if (measures.isEmpty()) {
+            throw new IllegalArgumentException("No quality measures given");
+        }
+    }
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + option);
+        }
+        return args[i];
+    }
+
+    private void loadMeasures(File f) {
+        File[] files;
+        if (f.isDirectory()) {
+            files = f.listFiles();
+            Arrays.sort(files);
+        } else {
+            files = new File[]{f};
+        }
+        for (File mf : files) {
+            if (mf.isFile() && (mf == f || mf.getName().endsWith(".json"))) {
+                try {
+                    String json = readFile(mf);
+                    measures.add(MeasureReader.extractQualityMeasure(json));
+                    measureJson.append(json).append('\n');
+                } catch (Exception ex) {
+                    throw new IllegalArgumentException("Could not read quality measure " + mf + ": " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    private static String readFile(File f) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        InputStreamReader r = new InputStreamReader(new FileInputStream(f), "UTF-8");
+        try {
+            char[] c = new char[8192];
+            int n;
+            while ((n = r.read(c)) > 0) {
+                sb.append(c, 0, n);
+            }
+        } finally {
+            r.close();
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The version of the measure set, a hash of the measures and of the
+     * settings that change the results
+     * @return the version
+     */
+    String getMeasureSetVersion() {
+        StringBuilder sb = new StringBuilder(measureJson);
+        sb.append("lenient=").append(lenient).append(",inferCodes=").append(inferCodes);
+        sb.append(",fixEncounters=").append(fixEncounters).append(",fixTobacco=").append(fixTobacco);
+        return ContentHash.of(sb.toString()).substring(0, 16);
+    }
+
+    void run() throws IOException, JAXBException {
+        long start = System.currentTimeMillis();
+        Evaluator e = new Evaluator(config, measures);
+        e.setStrictValidation(!lenient);
+        e.setPreProcess_inferCodes(inferCodes);
+        e.setPreProcess_fixEncounters(fixEncounters);
+        e.setPreProcess_fixTobacco(fixTobacco);
+        e.setKeepProcessedCCR(xmlDir != null);
+        Marshaller marshaller = null;
+        if (xmlDir != null) {
+            xmlDir.mkdirs();
+            marshaller = CCREngine.getInstance(config).getJAXBContext().createMarshaller();
+            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
+        }
+        ImportManifest manifest = null;
+        String version = getMeasureSetVersion();
+        InputSources sources = new InputSources(inputs);
+        if (manifestFile != null) {
+            manifest = new ImportManifest(manifestFile);
+            sources.setManifest(manifest, version);
+            LOG.log(Level.INFO, "Resuming with {0} CCRs in manifest {1}", new Object[]{manifest.getLoaded(), manifestFile});
+        }
+        long ready = System.currentTimeMillis();
+        // A resumed run adds to the output of the earlier run
+        OutputStream os = new BufferedOutputStream(out == null ? System.out : new FileOutputStream(out, manifest != null), 64 * 1024);
+        try {
+            Iterator<EvaluationResult> results = e.evaluateAll(sources,
+                    ordered ? Evaluator.ResultOrder.INPUT : Evaluator.ResultOrder.COMPLETION);
+            while (results.hasNext()) {
+                EvaluationResult r = results.next();
+                writeFailedBundles(os, sources, version);
+                count(r);
+                String hash = manifest == null ? null : sources.takeHash(r.getIndex());
+                writeLine(os, r, hash, version);
+                if (marshaller != null && r.getProcessedCCR() != null) {
+                    writeXml(marshaller, r);
+                }
+                if (manifest != null) {
+                    // The line must be on disk before the manifest says the CCR is done
+                    os.flush();
+                    manifest.record(hash, version, status(r), r.getName());
+                }
+            }
+            writeFailedBundles(os, sources, version);
+        } finally {
+            os.flush();
+            if (out != null) {
+                os.close();
+            }
+            if (manifest != null) {
+                manifest.close();
+            }
+            e.close();
+        }
+        skipped = sources.getSkipped();
+        report(System.err, ready - start, System.currentTimeMillis() - ready);
+    }
+
+    /*
+     * Writes a failed line for each bundle that could not be read to the end.
+     * They are not put in the manifest, a resumed run reads them again.
+     */
+    private void writeFailedBundles(OutputStream os, InputSources sources, String version) throws IOException {
+        for (EvaluationResult r : sources.takeFailedBundles()) {
+            count(r);
+            writeLine(os, r, null, version);
+        }
+    }
+
+    private void count(EvaluationResult r) {
+        if (r.isFailed()) {
+            failed++;
+        } else if (r.isValid()) {
+            valid++;
+        } else {
+            invalid++;
+        }
+        for (Map.Entry<String, Long> t : r.getTimings().entrySet()) {
+            Long n = stageNanos.get(t.getKey());
+            stageNanos.put(t.getKey(), (n == null ? 0 : n) + t.getValue());
+        }
+    }
+
+    private static String status(EvaluationResult r) {
+        if (r.isFailed()) {
+            return ImportManifest.FAILED;
+        }
+        return r.isValid() ? ImportManifest.VALID : ImportManifest.INVALID;
+    }
+
+    /*
+     * Writes one result as a line of JSON, with the content hash of the CCR
+     * if it is known and the measure set version, so the lines of different
+     * runs appended to one output can be told apart
+     */
+    private void writeLine(OutputStream os, EvaluationResult r, String hash, String version) throws IOException {
+        // A generator per line, one generator would put a space between lines
+        JsonGenerator jg = jf.createJsonGenerator(os, JsonEncoding.UTF8);
+        jg.writeStartObject();
+        jg.writeStringField("name", r.getName());
+        if (hash != null) {
+            jg.writeStringField("hash", hash);
+        }
+        jg.writeStringField("version", version);
+        if (r.isFailed()) {
+            jg.writeStringField("status", "failed");
+            jg.writeStringField("error", String.valueOf(r.getFailure()));
+        } else if (r.isValid()) {
+            jg.writeStringField("status", "valid");
+            jg.writeFieldName("result");
+            r.writeJson(jg);
+        } else {
+            jg.writeStringField("status", "invalid");
+            jg.writeFieldName("errors");
+            if (r.getValidationErrors() != null && r.getValidationErrors().hasErrors()) {
+                jg.writeRawValue(r.getValidationErrors().toJson(false));
+            } else {
+                jg.writeStartObject();
+                jg.writeEndObject();
+            }
+        }
+        jg.writeEndObject();
+        jg.flush();
+        os.write('\n');
+    }
+
+    private void writeXml(Marshaller marshaller, EvaluationResult r) {
+        File f = new File(xmlDir, xmlFileName(r));
+        try {
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(f));
+            try {
+                marshaller.marshal(r.getProcessedCCR(), os);
+            } finally {
+                os.close();
+            }
+        } catch (JAXBException ex) {
+            LOG.log(Level.WARNING, "Could not write " + f, ex);
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Could not write " + f, ex);
+        }
+    }
+
+    /*
+     * A file name from the CCR name, unique within the run
+     */
+    private static String xmlFileName(EvaluationResult r) {
+        String name = r.getName() == null ? "ccr" : r.getName();
+        int slash = Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\'));
+        name = name.substring(slash + 1).replaceAll("[^A-Za-z0-9._-]", "_");
+        if (name.toLowerCase().endsWith(".xml")) {
+            name = name.substring(0, name.length() - 4);
+        }
+        return r.getIndex() + "-" + name + ".xml";
+    }
+
+    void report(PrintStream ps, long startupMillis, long runMillis) {
+        long total = valid + invalid + failed;
+        ps.println("CCRs: " + total + " (valid " + valid + ", invalid " + invalid + ", failed " + failed + ")");
+        if (skipped > 0) {
+            ps.println("Skipped: " + skipped + " unchanged since the last run");
+        }
+        ps.println("Startup: " + startupMillis + " ms, evaluation: " + runMillis + " ms");
+        if (runMillis > 0) {
+            ps.println(String.format("Throughput: %.1f CCRs/s", total * 1000.0 / runMillis));
+        }
+        if (total > 0) {
+            StringBuilder sb = new StringBuilder("Mean time per CCR:");
+            for (Map.Entry<String, Long> t : stageNanos.entrySet()) {
+                sb.append(String.format(" %s %.2f ms", t.getKey(), t.getValue() / 1e6 / total));
+            }
+            ps.println(sb.toString());
+        }
+    }
+
+    /*
+     * The CCRs of all the inputs, opening bundles one at a time.  With a
+     * manifest, CCRs it lists as done are skipped and the content hash of the
+     * others is kept by their position in the batch until the result is written.
+     */
+    static class InputSources implements Iterable<CCRSource> {
+
+        private final ArrayList<File> files = new ArrayList<File>();
+        private ImportManifest manifest = null;
+        private String version = null;
+        private final HashMap<Integer, String> hashes = new HashMap<Integer, String>();
+        private final ArrayList<EvaluationResult> failedBundles = new ArrayList<EvaluationResult>();
+        private long skipped = 0;
+
+        InputSources(ArrayList<String> inputs) throws IOException {
+            for (String in : inputs) {
+                if (in.startsWith("@")) {
+                    BufferedReader br = new BufferedReader(new FileReader(in.substring(1)));
+                    try {
+                        String line;
+                        while ((line = br.readLine()) != null) {
+                            line = line.trim();
+                            if (line.length() > 0 && !line.startsWith("#")) {
+                                add(new File(line));
+                            }
+                        }
+                    } finally {
+                        br.close();
+                    }
+                } else {
+                    add(new File(in));
+                }
+            }
+        }
+
+        private void add(File f) throws IOException {
+            if (f.isDirectory()) {
+                File[] children = f.listFiles();
+                Arrays.sort(children);
+                for (File c : children) {
+                    if (c.isDirectory() || isXml(c) || isBundle(c)) {
+                        add(c);
+                    }
+                }
+            } else if (f.isFile()) {
+                files.add(f);
+            } else {
+                throw new IOException("Input not found: " + f);
+            }
+        }
+
+        void setManifest(ImportManifest manifest, String version) {
+            this.manifest = manifest;
+            this.version = version;
+        }
+
+        synchronized String takeHash(int index) {
+            return hashes.remove(index);
+        }
+
+        synchronized long getSkipped() {
+            return skipped;
+        }
+
+        /*
+         * The bundles that failed since the last call, as failed results
+         */
+        synchronized List<EvaluationResult> takeFailedBundles() {
+            if (failedBundles.isEmpty()) {
+                return Collections.emptyList();
+            }
+            ArrayList<EvaluationResult> l = new ArrayList<EvaluationResult>(failedBundles);
+            failedBundles.clear();
+            return l;
+        }
+
+        private synchronized void bundleFailed(File f, Throwable ex) {
+            LOG.log(Level.WARNING, "Could not read bundle " + f + ", going on with the next input", ex);
+            failedBundles.add(new EvaluationResult(-1, f.getPath(), ex, 0));
+        }
+
+        private static boolean isXml(File f) {
+            return f.getName().toLowerCase().endsWith(".xml");
+        }
+
+        private static boolean isBundle(File f) {
+            String n = f.getName().toLowerCase();
+            return n.endsWith(".zip") || n.endsWith(".tar.gz") || n.endsWith(".tgz") || n.endsWith(".tar");
+        }
+
+        public Iterator<CCRSource> iterator() {
+            return new Iterator<CCRSource>() {
+
+                private int next = 0;
+                private CCRBundleReader bundle = null;
+                private Iterator<CCRSource> entries = null;
+                private CCRSource pending = null;
+                private int emitted = 0;
+
+                public boolean hasNext() {
+                    if (manifest == null) {
+                        return nextEntry();
+                    }
+                    while (pending == null && nextEntry()) {
+                        CCRSource s = entries.next();
+                        try {
+                            // Bundle entries are read once, buffer them to hash them
+                            s = CCRSource.repeatable(s);
+                            String hash = ContentHash.of(s);
+                            synchronized (InputSources.this) {
+                                if (manifest.isDone(hash, version)) {
+                                    skipped++;
+                                    continue;
+                                }
+                                hashes.put(emitted, hash);
+                            }
+                        } catch (IOException ex) {
+                            // Evaluated without a hash so the failure is reported
+                            LOG.log(Level.WARNING, "Could not read " + s.getName(), ex);
+                        }
+                        pending = s;
+                    }
+                    return pending != null;
+                }
+
+                private boolean nextEntry() {
+                    while (entries == null || !hasNextEntry()) {
+                        closeBundle();
+                        if (next >= files.size()) {
+                            return false;
+                        }
+                        File f = files.get(next++);
+                        if (isXml(f)) {
+                            entries = Arrays.asList(CCRSource.fromFile(f)).iterator();
+                        } else {
+                            try {
+                                bundle = CCRBundleReader.open(f);
+                                entries = bundle.iterator();
+                            } catch (IOException ex) {
+                                bundleFailed(f, ex);
+                            }
+                        }
+                    }
+                    return true;
+                }
+
+                /*
+                 * A corrupt or truncated bundle ends at the entry that could
+                 * not be read, the rest of the inputs are still read
+                 */
+                private boolean hasNextEntry() {
+                    try {
+                        return entries.hasNext();
+                    } catch (IllegalStateException ex) {
+                        bundleFailed(files.get(next - 1), ex.getCause() != null ? ex.getCause() : ex);
+                        return false;
+                    }
+                }
+
+                public CCRSource next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    if (manifest == null) {
+                        return entries.next();
+                    }
+                    CCRSource s = pending;
+                    pending = null;
+                    emitted++;
+                    return s;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+
+                private void closeBundle() {
+                    if (bundle != null) {
+                        try {
+                            bundle.close();
+                        } catch (IOException ex) {
+                            LOG.log(Level.FINE, null, ex);
+                        }
+                        bundle = null;
+                    }
+                    entries = null;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.ohd.pophealth.tools;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append-only record of the CCRs a bulk import has finished.  Each line is
+ * <pre>
+ * contentHash TAB measureSetVersion TAB status TAB time TAB name
+ * </pre>
+ * and is flushed as soon as it is written, so after a crash the manifest
+ * holds every CCR finished before it.  A line cut short by a crash is
+ * ignored.  A CCR is skipped on a later run if its content hash was finished
+ * with the same measure set version and did not fail; failed CCRs are tried
+ * again.
+ *
+ * @author ohdohd
+ */
+public class ImportManifest implements Closeable {
+
+    private final static Logger LOG = Logger.getLogger(ImportManifest.class.getName());
+    public static final String VALID = "valid";
+    public static final String INVALID = "invalid";
+    public static final String FAILED = "failed";
+    private final File file;
+    // content hash -> measure set version of the last outcome that was not a failure
+    private final HashMap<String, String> done = new HashMap<String, String>();
+    private final Writer out;
+    private int loaded = 0;
+    private int ignored = 0;
+
+    /**
+     * Opens a manifest, reading what an earlier run finished
+     * @param file The manifest file, created if it does not exist
+     * @throws IOException
+     */
+    public ImportManifest(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            load();
+        }
+        boolean newLine = needsNewLine();
+        out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+        if (newLine) {
+            // End the line cut short by a crash so the next entry starts clean
+            out.write('\n');
+            out.flush();
+        }
+    }
+
+    private void load() throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] f = line.split("\t", 5);
+                if (f.length < 5 || f[0].length() == 0) {
+                    if (line.length() > 0) {
+                        ignored++;
+                    }
+                    continue;
+                }
+                loaded++;
+                if (FAILED.equals(f[2])) {
+                    continue;
+                }
+                done.put(f[0], f[1]);
+            }
+        } finally {
+            br.close();
+        }
+        if (ignored > 0) {
+            LOG.log(Level.WARNING, "Ignored {0} incomplete lines in manifest {1}", new Object[]{ignored, file});
+        }
+    }
+
+    /*
+     * Checks if the file ends part way through a line
+     */
+    private boolean needsNewLine() throws IOException {
+        if (!file.exists() || file.length() == 0) {
+            return false;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(raf.length() - 1);
+            return raf.read() != '\n';
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Checks if a CCR was already finished with the same measure set
+     * @param contentHash The content hash of the CCR
+     * @param measureSetVersion The version of the measures and settings used
+     * @return <code>true</code> if the CCR can be skipped
+     */
+    public synchronized boolean isDone(String contentHash, String measureSetVersion) {
+        return contentHash != null && measureSetVersion.equals(done.get(contentHash));
+    }
+
+    /**
+     * Appends the outcome of a CCR and flushes it to disk
+     * @param contentHash The content hash of the CCR
+     * @param measureSetVersion The version of the measures and settings used
+     * @param status <code>VALID</code>, <code>INVALID</code> or <code>FAILED</code>
+     * @param name The name of the CCR
+     * @throws IOException
+     */
+    public synchronized void record(String contentHash, String measureSetVersion, String status, String name) throws IOException {
+        if (contentHash == null) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(contentHash).append('\t').append(measureSetVersion).append('\t').append(status);
+        sb.append('\t').append(System.currentTimeMillis()).append('\t');
+        sb.append(name == null ? "" : name.replace('\t', ' ').replace('\n', ' ').replace('\r', ' '));
+        sb.append('\n');
+        out.write(sb.toString());
+        out.flush();
+        if (!FAILED.equals(status)) {
+            done.put(contentHash, measureSetVersion);
+        }
+    }
+
+    /**
+     * Number of entries read from an earlier run
+     * @return the count
+     */
+    public int getLoaded() {
+        return loaded;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
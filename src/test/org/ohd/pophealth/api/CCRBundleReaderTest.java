@@ -0,0 +1,185 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.ohd.pophealth.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.xml.transform.stream.StreamSource;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Splits zip, tar and concatenated bundles into CCRs.  The tar fixtures
+ * were written by another tar implementation and hold an entry with a name
+ * longer than the 100 bytes of the ustar header, a non-ASCII name and a
+ * text file that is skipped.  <code>bundle-pax.tar</code> carries the long
+ * names in PAX extended headers, <code>bundle-gnu.tar</code> in GNU
+ * <code>././@LongLink</code> entries.
+ *
+ * @author ohdohd
+ */
+public class CCRBundleReaderTest {
+
+    private static final String LONG_NAME = "d/xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx"
+            + "xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx/long-name-ccr.xml";
+    private static final String[] TAR_NAMES = {LONG_NAME, "short.xml", "ünï.xml"};
+    private static final String[] TAR_CONTENT = {"<long/>", "<short/>", "<unicode/>"};
+
+    private static byte[] read(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] b = new byte[8192];
+            int n;
+            while ((n = is.read(b)) > 0) {
+                bos.write(b, 0, n);
+            }
+            return bos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    private byte[] fixture(String name) throws IOException {
+        InputStream is = getClass().getResourceAsStream(name);
+        assertNotNull("Fixture not found " + name, is);
+        return read(is);
+    }
+
+    private static String content(CCRSource source) throws IOException {
+        StreamSource src = source.newStreamSource();
+        try {
+            return new String(read(src.getInputStream()), "UTF-8");
+        } finally {
+            CCRSource.close(src);
+        }
+    }
+
+    /*
+     * Reads every CCR of a bundle, as name and content pairs
+     */
+    private static List<String[]> readAll(CCRBundleReader reader) throws IOException {
+        ArrayList<String[]> l = new ArrayList<String[]>();
+        try {
+            for (CCRSource source : reader) {
+                l.add(new String[]{source.getName(), content(source)});
+                assertEquals(reader.getName(), source.getFeed());
+            }
+        } finally {
+            reader.close();
+        }
+        assertEquals(l.size(), reader.getCount());
+        return l;
+    }
+
+    private static void assertEntries(String[] names, String[] content, List<String[]> actual) {
+        assertEquals(names.length, actual.size());
+        for (int i = 0; i < names.length; i++) {
+            assertEquals(names[i], actual.get(i)[0]);
+            assertEquals(content[i], actual.get(i)[1]);
+        }
+    }
+
+    private static byte[] gzip(byte[] b) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        GZIPOutputStream gz = new GZIPOutputStream(bos);
+        gz.write(b);
+        gz.close();
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void testPaxTar() throws IOException {
+        CCRBundleReader r = CCRBundleReader.open(new ByteArrayInputStream(fixture("bundle-pax.tar")), "bundle-pax.tar");
+        assertEquals(CCRBundleReader.Format.TAR, r.getFormat());
+        assertEntries(TAR_NAMES, TAR_CONTENT, readAll(r));
+    }
+
+    @Test
+    public void testGnuTar() throws IOException {
+        CCRBundleReader r = CCRBundleReader.open(new ByteArrayInputStream(fixture("bundle-gnu.tar")), "bundle-gnu.tar");
+        assertEquals(CCRBundleReader.Format.TAR, r.getFormat());
+        assertEntries(TAR_NAMES, TAR_CONTENT, readAll(r));
+    }
+
+    @Test
+    public void testGzippedTar() throws IOException {
+        // The name does not say tar, the format comes from the header after un-gzipping
+        CCRBundleReader r = CCRBundleReader.open(new ByteArrayInputStream(gzip(fixture("bundle-pax.tar"))), "bundle.gz");
+        assertEquals(CCRBundleReader.Format.TAR, r.getFormat());
+        assertEntries(TAR_NAMES, TAR_CONTENT, readAll(r));
+    }
+
+    @Test
+    public void testTruncatedTar() throws IOException {
+        byte[] tar = fixture("bundle-gnu.tar");
+        byte[] cut = new byte[700];
+        System.arraycopy(tar, 0, cut, 0, cut.length);
+        CCRBundleReader r = CCRBundleReader.open(new ByteArrayInputStream(cut), "cut.tar");
+        try {
+            readAll(r);
+            fail("Truncated tar was read");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testZip() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(bos);
+        String[][] entries = {{"a.xml", "<a/>"}, {"docs/", null}, {"docs/readme.txt", "skipped"},
+            {"docs/b.XML", "<b/>"}};
+        for (String[] e : entries) {
+            zos.putNextEntry(new ZipEntry(e[0]));
+            if (e[1] != null) {
+                zos.write(e[1].getBytes("UTF-8"));
+            }
+            zos.closeEntry();
+        }
+        zos.close();
+        CCRBundleReader r = CCRBundleReader.open(new ByteArrayInputStream(bos.toByteArray()), "bundle.zip");
+        assertEquals(CCRBundleReader.Format.ZIP, r.getFormat());
+        assertEntries(new String[]{"a.xml", "docs/b.XML"}, new String[]{"<a/>", "<b/>"}, readAll(r));
+    }
+
+    @Test
+    public void testConcatenated() throws IOException {
+        String a = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<ContinuityOfCareRecord xmlns=\"urn:astm-org:CCR\"><Patient/></ContinuityOfCareRecord>";
+        String b = "<ccr:ContinuityOfCareRecord xmlns:ccr=\"urn:astm-org:CCR\">"
+                + "<ccr:Body/></ccr:ContinuityOfCareRecord>";
+        String c = "<ContinuityOfCareRecord xmlns=\"urn:astm-org:CCR\"><Purpose/></ContinuityOfCareRecord>";
+        String bundle = a + "\n" + b + "\r\n\r\n" + c + "\n";
+        CCRBundleReader r = CCRBundleReader.open(new ByteArrayInputStream(bundle.getBytes("UTF-8")), "feed.xml");
+        assertEquals(CCRBundleReader.Format.CONCATENATED, r.getFormat());
+        List<String[]> l = readAll(r);
+        assertEquals(3, l.size());
+        assertEquals("feed.xml#1", l.get(0)[0]);
+        assertEquals("feed.xml#3", l.get(2)[0]);
+        assertEquals(a, l.get(0)[1].trim());
+        assertEquals(b, l.get(1)[1].trim());
+        assertEquals(c, l.get(2)[1].trim());
+    }
+
+    @Test
+    public void testReadOnce() throws IOException {
+        CCRBundleReader r = new CCRBundleReader(new ByteArrayInputStream(fixture("bundle-pax.tar")),
+                CCRBundleReader.Format.TAR, "bundle-pax.tar");
+        readAll(r);
+        try {
+            r.iterator();
+            fail("Bundle was read twice");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+}
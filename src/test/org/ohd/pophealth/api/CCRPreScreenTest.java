@@ -0,0 +1,154 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.ohd.pophealth.api;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks each reject code of CCRPreScreen and that well formed CCRs pass
+ *
+ * @author ohdohd
+ */
+public class CCRPreScreenTest {
+
+    private static final String DECL = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
+    private static final String ROOT_START = "<ContinuityOfCareRecord xmlns=\"urn:astm-org:CCR\">";
+    private static final String PATIENT = "<Patient><ActorID>P1</ActorID></Patient>";
+    private static final String BODY = "<Body><Problems></Problems></Body>";
+    private static final String ACTORS = "<Actors><Actor><ActorObjectID>P1</ActorObjectID></Actor></Actors>";
+    private static final String ROOT_END = "</ContinuityOfCareRecord>";
+    private static final String CCR = DECL + ROOT_START + PATIENT + BODY + ACTORS + ROOT_END;
+    private final CCRPreScreen screen = new CCRPreScreen(1024 * 1024);
+
+    private CCRPreScreen.Result screen(String xml) {
+        return screen.screen(CCRSource.fromString(xml));
+    }
+
+    private void assertRejected(String code, String xml) {
+        CCRPreScreen.Result r = screen(xml);
+        assertFalse("Expected " + code, r.isPassed());
+        assertEquals(code, r.getCode());
+    }
+
+    @Test
+    public void testPassed() {
+        assertTrue(screen(CCR).isPassed());
+        assertTrue(screen(ROOT_START + PATIENT + BODY + ACTORS + ROOT_END).isPassed());
+        assertTrue(screen("\uFEFF" + CCR).isPassed());
+        assertTrue(screen(DECL + "<!-- exported -->\n<?xml-stylesheet href=\"ccr.xsl\"?>\n"
+                + ROOT_START + PATIENT + BODY + ACTORS + ROOT_END).isPassed());
+    }
+
+    @Test
+    public void testPrefixedRoot() {
+        String xml = DECL + "<ccr:ContinuityOfCareRecord xmlns:ccr=\"urn:astm-org:CCR\">"
+                + "<ccr:Patient/><ccr:Body/><ccr:Actors></ccr:Actors></ccr:ContinuityOfCareRecord>";
+        assertTrue(screen(xml).isPassed());
+    }
+
+    @Test
+    public void testTrailingMisc() {
+        assertTrue(screen(CCR + "\n").isPassed());
+        assertTrue(screen(CCR + "\n<!-- end of export -->\n").isPassed());
+        assertTrue(screen(CCR + "<?checksum 1234?>").isPassed());
+        assertRejected(CCRPreScreen.TRUNCATED, CCR + "<!-- not closed");
+        assertRejected(CCRPreScreen.TRUNCATED, CCR + "junk");
+    }
+
+    @Test
+    public void testEmpty() {
+        assertRejected(CCRPreScreen.EMPTY, "");
+    }
+
+    @Test
+    public void testTooLarge() {
+        CCRPreScreen small = new CCRPreScreen(16);
+        CCRPreScreen.Result r = small.screen(CCRSource.fromBytes(CCR.getBytes(), "large.xml"));
+        assertFalse(r.isPassed());
+        assertEquals(CCRPreScreen.TOO_LARGE, r.getCode());
+    }
+
+    @Test
+    public void testEncoding() {
+        assertRejected(CCRPreScreen.ENCODING, "<?xml version=\"1.0\" encoding=\"x-no-such-charset\"?>"
+                + ROOT_START + PATIENT + BODY + ACTORS + ROOT_END);
+    }
+
+    @Test
+    public void testNotXml() {
+        assertRejected(CCRPreScreen.NOT_XML, "MSH|^~\\&|SENDER|FACILITY");
+        assertRejected(CCRPreScreen.NOT_XML, DECL + "<!-- only a comment -->");
+    }
+
+    @Test
+    public void testProlog() {
+        assertRejected(CCRPreScreen.PROLOG, "<?xml version=\"1.0\" encoding=\"UTF-8\"");
+        assertRejected(CCRPreScreen.PROLOG, "<?xml encoding=\"UTF-8\"?>" + ROOT_START + PATIENT + BODY + ACTORS + ROOT_END);
+    }
+
+    @Test
+    public void testHtml() {
+        assertRejected(CCRPreScreen.HTML, "<!DOCTYPE html><html><body>Service unavailable</body></html>");
+        assertRejected(CCRPreScreen.HTML, "<html><body>Not found</body></html>");
+    }
+
+    @Test
+    public void testRoot() {
+        assertRejected(CCRPreScreen.ROOT, DECL + "<ClinicalDocument xmlns=\"urn:hl7-org:v3\"></ClinicalDocument>");
+    }
+
+    @Test
+    public void testNamespace() {
+        assertRejected(CCRPreScreen.NAMESPACE, DECL + "<ContinuityOfCareRecord xmlns=\"urn:example\">"
+                + PATIENT + BODY + ACTORS + ROOT_END);
+        assertRejected(CCRPreScreen.NAMESPACE, DECL + "<ContinuityOfCareRecord>"
+                + PATIENT + BODY + ACTORS + ROOT_END);
+    }
+
+    @Test
+    public void testNoPatient() {
+        assertRejected(CCRPreScreen.NO_PATIENT, DECL + ROOT_START + BODY + ACTORS + ROOT_END);
+    }
+
+    @Test
+    public void testNoActors() {
+        assertRejected(CCRPreScreen.NO_ACTORS, DECL + ROOT_START + PATIENT + BODY + ROOT_END);
+    }
+
+    @Test
+    public void testTruncated() {
+        assertRejected(CCRPreScreen.TRUNCATED, DECL + ROOT_START + PATIENT + BODY + ACTORS);
+    }
+
+    @Test
+    public void testStructural() {
+        // Lenient validation ignores these, it only rejects what can not be parsed
+        assertTrue(screen(DECL + ROOT_START + PATIENT + BODY + ROOT_END).isStructural());
+        assertTrue(screen(DECL + ROOT_START + BODY + ACTORS + ROOT_END).isStructural());
+        assertTrue(screen(DECL + "<ContinuityOfCareRecord>" + PATIENT + BODY + ACTORS + ROOT_END).isStructural());
+        assertTrue(screen(DECL + "<ClinicalDocument xmlns=\"urn:hl7-org:v3\"></ClinicalDocument>").isStructural());
+        assertFalse(screen("").isStructural());
+        assertFalse(screen("<html><body>Not found</body></html>").isStructural());
+        assertFalse(screen(DECL + ROOT_START + PATIENT + BODY + ACTORS).isStructural());
+        assertFalse(screen(CCR).isStructural());
+    }
+
+    @Test
+    public void testLargeCCRUsesHeadAndTail() {
+        // Bigger than the head so the end of the CCR is read separately
+        StringBuilder sb = new StringBuilder(DECL + ROOT_START + PATIENT + "<Body><Problems>");
+        while (sb.length() < 256 * 1024) {
+            sb.append("<Problem><CCRDataObjectID>1</CCRDataObjectID></Problem>\n");
+        }
+        sb.append("</Problems></Body>");
+        String large = sb.toString();
+        assertTrue(screen.screen(CCRSource.fromBytes((large + ACTORS + ROOT_END).getBytes(), "large.xml")).isPassed());
+        CCRPreScreen.Result r = screen.screen(CCRSource.fromBytes(large.getBytes(), "cut.xml"));
+        assertEquals(CCRPreScreen.TRUNCATED, r.getCode());
+        r = screen.screen(CCRSource.fromBytes((large + ROOT_END).getBytes(), "no-actors.xml"));
+        assertEquals(CCRPreScreen.NO_ACTORS, r.getCode());
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.ohd.pophealth.ccr.importer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+import org.ohd.pophealth.json.measuremodel.CodedValue;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that code ids intersect exactly when codes match in the same or an
+ * unknown coding system
+ *
+ * @author ohdohd
+ */
+public class CodeDictionaryTest {
+
+    private CodeDictionary dict;
+
+    @Before
+    public void setUp() {
+        Vocabulary v = new Vocabulary();
+        v.addTermSet(termSet("icd9", "icd9", "ICD9-CM", "ICD-9"));
+        v.addTermSet(termSet("snomed", "snomed", "SNOMED CT", "SNOMEDCT"));
+        v.addTermSet(termSet("text", "text", "free text"));
+        dict = new CodeDictionary(v);
+    }
+
+    private static TermSet termSet(String id, String... terms) {
+        TermSet ts = new TermSet(id);
+        for (String t : terms) {
+            ts.addTerm(t);
+        }
+        return ts;
+    }
+
+    private static ArrayList<CodedValue> codes(String codingSystem, String... values) {
+        ArrayList<CodedValue> l = new ArrayList<CodedValue>();
+        l.add(new CodedValue(codingSystem, null, new ArrayList<String>(Arrays.asList(values))));
+        return l;
+    }
+
+    /*
+     * Encodes the value set first, as measures are loaded before records
+     */
+    private boolean matches(ArrayList<CodedValue> valueSet, ArrayList<CodedValue> record) {
+        int[] vs = dict.encodeValueSet(valueSet);
+        return CodeDictionary.intersects(dict.encodeRecord(record), vs);
+    }
+
+    @Test
+    public void testSystemNames() {
+        assertEquals(dict.getSystem("icd9"), dict.getSystem("ICD-9CM"));
+        assertEquals(dict.getSystem("icd9"), dict.getSystem("icd9 cm"));
+        assertEquals(CodeDictionary.ANY, dict.getSystem("LOCAL"));
+        assertEquals(CodeDictionary.ANY, dict.getSystem(null));
+        assertTrue(dict.isSameSystem("ICD9-CM", "ICD-9"));
+        assertTrue(dict.isSameSystem("ICD9-CM", "LOCAL"));
+        assertFalse(dict.isSameSystem("ICD9-CM", "SNOMED CT"));
+    }
+
+    @Test
+    public void testSameSystem() {
+        assertTrue(matches(codes("ICD9-CM", "250.00"), codes("ICD-9", "250.00")));
+        assertFalse(matches(codes("ICD9-CM", "250.00"), codes("ICD-9", "250.01")));
+    }
+
+    @Test
+    public void testCaseFolded() {
+        assertTrue(matches(codes("ICD9-CM", "v70.0"), codes("icd9", "V70.0")));
+    }
+
+    @Test
+    public void testOtherSystem() {
+        assertFalse(matches(codes("ICD9-CM", "250.00"), codes("SNOMED CT", "250.00")));
+    }
+
+    @Test
+    public void testUnknownSystem() {
+        assertTrue(matches(codes("ICD9-CM", "401.1"), codes("LOCAL", "401.1")));
+        assertTrue(matches(codes(null, "401.9"), codes("SNOMED CT", "401.9")));
+        assertTrue(matches(codes(null, "401.0"), codes(null, "401.0")));
+    }
+
+    @Test
+    public void testTextNeverMatches() {
+        assertFalse(matches(codes("ICD9-CM", "diabetes"), codes("free text", "diabetes")));
+        assertFalse(matches(codes(null, "asthma"), codes("text", "asthma")));
+    }
+
+    @Test
+    public void testRecordCodesAreNotAdded() {
+        int size = dict.size();
+        dict.encodeRecord(codes("ICD9-CM", "999.99"));
+        assertEquals(size, dict.size());
+        dict.encodeValueSet(codes("ICD9-CM", "999.99"));
+        assertTrue(dict.size() > size);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.ohd.pophealth.ccr.importer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.transform.stream.StreamSource;
+import org.astm.ccr.ContinuityOfCareRecord;
+import org.junit.Before;
+import org.junit.Test;
+import org.ohd.pophealth.json.clinicalmodel.Record;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the StAX extractor gives the same Record as unmarshalling the
+ * whole CCR with JAXB and converting it with RecordCreator
+ *
+ * @author ohdohd
+ */
+public class StreamingRecordCreatorTest {
+
+    private static final String WARMUP_CCR = "org/ohd/pophealth/api/warmup-ccr.xml";
+    private static final String VOCABULARY = "org/ohd/pophealth/ccr/importer/ccrvocabulary.json";
+    private RecordCreator rc;
+    private Unmarshaller u;
+    private byte[] ccr;
+
+    @Before
+    public void setUp() throws Exception {
+        InputStream is = getClass().getClassLoader().getResourceAsStream(VOCABULARY);
+        assertNotNull("Vocabulary not found at " + VOCABULARY, is);
+        try {
+            rc = new RecordCreator(Vocabulary.fromJson(is));
+        } finally {
+            is.close();
+        }
+        u = JAXBContext.newInstance("org.astm.ccr").createUnmarshaller();
+        ccr = read(WARMUP_CCR);
+    }
+
+    private byte[] read(String resource) throws IOException {
+        InputStream is = getClass().getClassLoader().getResourceAsStream(resource);
+        assertNotNull("CCR not found at " + resource, is);
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] b = new byte[8192];
+            int n;
+            while ((n = is.read(b)) > 0) {
+                bos.write(b, 0, n);
+            }
+            return bos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    private Record fromJAXB() throws Exception {
+        JAXBElement<ContinuityOfCareRecord> e = u.unmarshal(
+                new StreamSource(new ByteArrayInputStream(ccr)), ContinuityOfCareRecord.class);
+        return rc.createRecord(e.getValue());
+    }
+
+    @Test
+    public void testSameRecordAsJAXB() throws Exception {
+        String expected = fromJAXB().toJson(false);
+        String actual = new StreamingRecordCreator(rc).createRecord(new ByteArrayInputStream(ccr), u).toJson(false);
+        assertNotNull(expected);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testSameRecordFromReader() throws Exception {
+        String expected = fromJAXB().toJson(false);
+        StreamSource src = new StreamSource(new InputStreamReader(new ByteArrayInputStream(ccr), "UTF-8"));
+        String actual = new StreamingRecordCreator(rc).createRecord(src, u).toJson(false);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testWarmupCCRHasClinicalData() throws Exception {
+        Record r = new StreamingRecordCreator(rc).createRecord(new ByteArrayInputStream(ccr), u);
+        // An empty record would make the comparisons above pass trivially
+        assertNotNull(r.getPatient());
+        assertFalse(r.getConditions().isEmpty());
+        assertFalse(r.getResults().isEmpty());
+    }
+}